@@ -0,0 +1,86 @@
+package org.adrianwalker.rdbmsmap.benchmarks;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * The database benchmarks run against. By default a PostgreSQL binary is
+ * unpacked and started in a temporary directory, and the schema created in
+ * it. Set the rdbms.map.url system property, with rdbms.map.username and
+ * rdbms.map.password, to use an already running database with the schema
+ * installed instead.
+ */
+final class Database implements AutoCloseable {
+
+  private static final String URL_PROPERTY = "rdbms.map.url";
+  private static final String USERNAME_PROPERTY = "rdbms.map.username";
+  private static final String PASSWORD_PROPERTY = "rdbms.map.password";
+  private static final String SCHEMA = "/rdbms-map.sql";
+
+  private final EmbeddedPostgres postgres;
+  private final Connection connection;
+
+  public Database() throws IOException, SQLException {
+
+    String url = System.getProperty(URL_PROPERTY);
+
+    if (null == url) {
+      postgres = EmbeddedPostgres.start();
+      connection = postgres.getPostgresDatabase().getConnection();
+      createSchema();
+    } else {
+      postgres = null;
+      connection = DriverManager.getConnection(url,
+              System.getProperty(USERNAME_PROPERTY, "postgres"),
+              System.getProperty(PASSWORD_PROPERTY, "postgres"));
+    }
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  @Override
+  public void close() throws IOException, SQLException {
+
+    try {
+      connection.close();
+    } finally {
+      if (null != postgres) {
+        postgres.close();
+      }
+    }
+  }
+
+  private void createSchema() throws IOException, SQLException {
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute(readSchema());
+    }
+  }
+
+  private static String readSchema() throws IOException {
+
+    try (InputStream in = Database.class.getResourceAsStream(SCHEMA)) {
+      if (null == in) {
+        throw new IOException(SCHEMA + " not found");
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+
+      return out.toString("UTF-8");
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package org.adrianwalker.rdbmsmap.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.adrianwalker.rdbmsmap.RdbmsMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Benchmarks the map operations which go to the database, for each map size
+ * and key and value type. Every operation leaves the map the size it was,
+ * so results for one size are comparable across iterations.
+ *
+ * Run with, for JSON results:
+ *
+ *   java -jar target/benchmarks.jar -rf json -rff results.json
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RdbmsMapBenchmark {
+
+  // entries written by each putAll
+  private static final int PUT_ALL_SIZE = 100;
+
+  @Param({"100", "10000"})
+  private int size;
+
+  @Param({"INTEGER", "TEXT"})
+  private String type;
+
+  private Database database;
+  private RdbmsMap<Object, Object> map;
+  private Map<Object, Object> batch;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+
+    database = new Database();
+    map = new RdbmsMap<Object, Object>(database.getConnection());
+
+    Map<Object, Object> entries = new HashMap<Object, Object>();
+    for (int i = 0; i < size; i++) {
+      entries.put(key(i), value(i));
+    }
+
+    map.putAll(entries);
+
+    // rewrites existing keys, so the map does not grow
+    batch = new HashMap<Object, Object>();
+    for (int i = 0; i < PUT_ALL_SIZE; i++) {
+      batch.put(key(i), value(i + 1));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+
+    map.clear();
+    map.close();
+    database.close();
+  }
+
+  @Benchmark
+  public Object get() {
+
+    return map.get(nextKey());
+  }
+
+  @Benchmark
+  public Object put() {
+
+    int i = nextIndex();
+
+    return map.put(key(i), value(i));
+  }
+
+  @Benchmark
+  public void putAll() {
+
+    map.putAll(batch);
+  }
+
+  // puts the removed entry back, so includes the cost of a put
+  @Benchmark
+  public Object remove() {
+
+    int i = nextIndex();
+    Object value = map.remove(key(i));
+    map.put(key(i), value(i));
+
+    return value;
+  }
+
+  @Benchmark
+  public boolean containsValue() {
+
+    return map.containsValue(value(nextIndex()));
+  }
+
+  @Benchmark
+  public int size() {
+
+    return map.size();
+  }
+
+  @Benchmark
+  public void entrySet(final Blackhole blackhole) {
+
+    for (Map.Entry<Object, Object> entry : map.entrySet()) {
+      blackhole.consume(entry);
+    }
+  }
+
+  private int nextIndex() {
+
+    next = (next + 1) % size;
+
+    return next;
+  }
+
+  private Object nextKey() {
+
+    return key(nextIndex());
+  }
+
+  private Object key(final int i) {
+
+    return "TEXT".equals(type) ? "key " + i : i;
+  }
+
+  private Object value(final int i) {
+
+    return "TEXT".equals(type) ? "value " + i : i;
+  }
+}
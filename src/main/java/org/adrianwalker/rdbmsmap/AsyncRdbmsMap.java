@@ -0,0 +1,256 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs RdbmsMap operations on an executor, returning futures completed with
+ * their results, so callers never block on the database. At most
+ * maximumInFlight operations run at once, later operations wait in the
+ * executor until one completes. Operations are not ordered, wait for a
+ * write's future before reading what it wrote.
+ *
+ * Unless an executor is given, operations run on virtual threads when the
+ * JVM has them, or otherwise on a pool of maximumInFlight daemon threads.
+ * Each running operation borrows a connection from the wrapped map's data
+ * source, so maximumInFlight should not exceed the size of its pool. A map
+ * on a single connection can only be wrapped with one operation in flight.
+ * Futures are completed, and their dependent stages run, on
+ * CompletableFuture's default async executor rather than on the thread
+ * which ran the operation.
+ *
+ * Closing this map waits for every operation already submitted, running or
+ * still queued in the executor, and shuts down the default executor. It
+ * does not close the wrapped map or a given executor.
+ */
+public final class AsyncRdbmsMap<K, V> implements AutoCloseable {
+
+  private final RdbmsMap<K, V> map;
+  private final int maximumInFlight;
+  private final Semaphore inFlight;
+  private final ExecutorService executor;
+  private final boolean defaultExecutor;
+  // guards closed and outstanding
+  private final Object lock = new Object();
+  private boolean closed;
+  // operations submitted and not yet completed
+  private int outstanding;
+
+  public AsyncRdbmsMap(final RdbmsMap<K, V> map, final int maximumInFlight) {
+
+    this(map, maximumInFlight, executor(map, maximumInFlight), true);
+  }
+
+  public AsyncRdbmsMap(final RdbmsMap<K, V> map, final int maximumInFlight, final ExecutorService executor) {
+
+    this(map, maximumInFlight, executor, false);
+  }
+
+  private AsyncRdbmsMap(final RdbmsMap<K, V> map, final int maximumInFlight, final ExecutorService executor, final boolean defaultExecutor) {
+
+    if (maximumInFlight < 1) {
+      throw new IllegalArgumentException("maximum in flight must be positive");
+    }
+
+    if (maximumInFlight > 1 && !map.isShared()) {
+      throw new IllegalArgumentException("map " + map.getMapId() + " is on a single connection, maximum in flight must be 1");
+    }
+
+    this.map = map;
+    this.maximumInFlight = maximumInFlight;
+    this.inFlight = new Semaphore(maximumInFlight);
+    this.executor = executor;
+    this.defaultExecutor = defaultExecutor;
+  }
+
+  public RdbmsMap<K, V> getMap() {
+    return map;
+  }
+
+  public int getMaximumInFlight() {
+    return maximumInFlight;
+  }
+
+  public int getInFlight() {
+    return maximumInFlight - inFlight.availablePermits();
+  }
+
+  public CompletableFuture<V> getAsync(final K key) {
+
+    return submit(new Work<V>() {
+
+      @Override
+      public V execute() {
+        return map.get(key);
+      }
+    });
+  }
+
+  public CompletableFuture<V> putAsync(final K key, final V value) {
+
+    return submit(new Work<V>() {
+
+      @Override
+      public V execute() {
+        return map.put(key, value);
+      }
+    });
+  }
+
+  public CompletableFuture<V> removeAsync(final K key) {
+
+    return submit(new Work<V>() {
+
+      @Override
+      public V execute() {
+        return map.remove(key);
+      }
+    });
+  }
+
+  public CompletableFuture<Map<K, V>> getAllAsync(final Collection<? extends K> keys) {
+
+    return submit(new Work<Map<K, V>>() {
+
+      @Override
+      public Map<K, V> execute() {
+        return map.getAll(keys);
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+    }
+
+    if (defaultExecutor) {
+      executor.shutdown();
+    }
+
+    synchronized (lock) {
+      while (outstanding > 0) {
+        try {
+          lock.wait();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private <T> CompletableFuture<T> submit(final Work<T> work) {
+
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("async map " + map.getMapId() + " is closed");
+      }
+
+      outstanding++;
+    }
+
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+
+    try {
+      executor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+
+          try {
+            inFlight.acquire();
+          } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            complete(future, null, ie);
+            return;
+          }
+
+          T result = null;
+          Throwable failure = null;
+
+          try {
+            result = work.execute();
+          } catch (final Throwable t) {
+            failure = t;
+          } finally {
+            inFlight.release();
+          }
+
+          complete(future, result, failure);
+        }
+      });
+    } catch (final RejectedExecutionException ree) {
+      completed();
+      future.completeExceptionally(ree);
+    }
+
+    return future;
+  }
+
+  /*
+   * Completes a future off the worker, after its permit is released, so
+   * dependent stages which submit and wait for other operations do not hold
+   * the worker or the permit they need.
+   */
+  private <T> void complete(final CompletableFuture<T> future, final T result, final Throwable failure) {
+
+    CompletableFuture.runAsync(new Runnable() {
+
+      @Override
+      public void run() {
+
+        try {
+          if (null == failure) {
+            future.complete(result);
+          } else {
+            future.completeExceptionally(failure);
+          }
+        } finally {
+          completed();
+        }
+      }
+    });
+  }
+
+  private void completed() {
+
+    synchronized (lock) {
+      if (--outstanding == 0) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  // virtual threads when the jvm has them, otherwise a bounded pool of daemon threads
+  private static ExecutorService executor(final RdbmsMap<?, ?> map, final int threads) {
+
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (final ReflectiveOperationException roe) {
+      return Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+          Thread thread = new Thread(runnable, "rdbms-map-" + map.getMapId() + "-async");
+          thread.setDaemon(true);
+
+          return thread;
+        }
+      });
+    }
+  }
+}
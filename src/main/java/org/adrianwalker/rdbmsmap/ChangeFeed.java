@@ -0,0 +1,170 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/*
+ * Listens on a map's notification channel with a connection of its own and
+ * passes the changes received since the last poll to the listeners as one
+ * batch, on a background thread. The driver only reads notifications when a
+ * statement runs, so the connection is polled every POLL_INTERVAL.
+ *
+ * If the connection fails, changes may have been missed, so once listening
+ * again the listeners are sent a RELOAD change. A notification whose key
+ * this map cannot read, such as an encoded key when it has no codec, is
+ * passed on as a RELOAD change too.
+ */
+final class ChangeFeed<K> implements Runnable {
+
+  private static final long POLL_INTERVAL = 100;
+  private static final long RETRY_INTERVAL = 1000;
+
+  private final RdbmsMap<K, ?> map;
+  private final DataSource dataSource;
+  private final String channel;
+  private final List<ChangeListener<K>> listeners;
+  private final Thread thread;
+  private volatile boolean closed;
+  private Connection connection;
+
+  public ChangeFeed(final RdbmsMap<K, ?> map, final DataSource dataSource, final String channel) throws SQLException {
+
+    this.map = map;
+    this.dataSource = dataSource;
+    this.channel = channel;
+    this.listeners = new CopyOnWriteArrayList<ChangeListener<K>>();
+    // listen before returning, so no change made after is missed
+    this.connection = listen();
+    this.thread = new Thread(this, "rdbms-map-" + map.getMapId() + "-changes");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  public void add(final ChangeListener<K> listener) {
+    listeners.add(listener);
+  }
+
+  public void remove(final ChangeListener<K> listener) {
+    listeners.remove(listener);
+  }
+
+  public boolean isEmpty() {
+    return listeners.isEmpty();
+  }
+
+  public void close() {
+
+    closed = true;
+    thread.interrupt();
+
+    try {
+      thread.join();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+
+    try {
+      while (!closed) {
+        try {
+          if (null == connection) {
+            connection = listen();
+            deliver(Collections.singletonList(new MapChange<K>(map.getMapId(), ChangeType.RELOAD, null)));
+          }
+
+          poll();
+          Thread.sleep(POLL_INTERVAL);
+
+        } catch (final SQLException | RuntimeException e) {
+          // listening again sends a RELOAD, for any changes lost with the failure
+          closeConnection();
+          Thread.sleep(RETRY_INTERVAL);
+        }
+      }
+    } catch (final InterruptedException ie) {
+      // closed
+    } finally {
+      closeConnection();
+    }
+  }
+
+  private Connection listen() throws SQLException {
+
+    Connection listening = dataSource.getConnection();
+
+    try (Statement statement = listening.createStatement()) {
+      listening.setAutoCommit(true);
+      statement.execute("listen " + channel);
+    } catch (final SQLException | RuntimeException e) {
+      listening.close();
+      throw e;
+    }
+
+    return listening;
+  }
+
+  private void poll() throws SQLException {
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("select 1");
+    }
+
+    PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications();
+
+    if (null == notifications || notifications.length == 0) {
+      return;
+    }
+
+    List<MapChange<K>> changes = new ArrayList<MapChange<K>>(notifications.length);
+
+    for (PGNotification notification : notifications) {
+      try {
+        changes.add(map.toChange(notification.getParameter()));
+      } catch (final RuntimeException re) {
+        // a key this map cannot read, the listeners reload rather than miss the change
+        changes.add(new MapChange<K>(map.getMapId(), ChangeType.RELOAD, null));
+      }
+    }
+
+    deliver(changes);
+  }
+
+  private void deliver(final List<MapChange<K>> changes) {
+
+    List<MapChange<K>> batch = Collections.unmodifiableList(changes);
+
+    for (ChangeListener<K> listener : listeners) {
+      try {
+        listener.changed(batch);
+      } catch (final RuntimeException re) {
+        // one failing listener must not stop the feed for the others
+      }
+    }
+  }
+
+  private void closeConnection() {
+
+    if (null == connection) {
+      return;
+    }
+
+    try {
+      connection.close();
+    } catch (final SQLException sqle) {
+      // the connection is discarded either way
+    } finally {
+      connection = null;
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.List;
+
+/*
+ * Receives the changes published for a map, see
+ * RdbmsMap.addChangeListener(). Changes arrive in batches, in the order
+ * their transactions committed, on the map's change feed thread.
+ */
+public interface ChangeListener<K> {
+
+  void changed(List<MapChange<K>> changes);
+}
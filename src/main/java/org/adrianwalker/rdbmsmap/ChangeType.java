@@ -0,0 +1,47 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * The kind of change made to a map, see MapChange.
+ */
+public enum ChangeType {
+
+  /*
+   * The key was put, with a new or the same value.
+   */
+  PUT("P"),
+  /*
+   * The key was removed, or was not in the map.
+   */
+  REMOVE("R"),
+  /*
+   * Every entry was removed.
+   */
+  CLEAR("C"),
+  /*
+   * Any number of entries may have changed, and should be read again. Sent
+   * for bulk changes, keys too long to publish and changes which may have
+   * been missed while reconnecting.
+   */
+  RELOAD("X");
+
+  private final String code;
+
+  private ChangeType(final String code) {
+    this.code = code;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public static ChangeType fromCode(final String code) {
+
+    for (ChangeType type : values()) {
+      if (type.code.equals(code)) {
+        return type;
+      }
+    }
+
+    return null;
+  }
+}
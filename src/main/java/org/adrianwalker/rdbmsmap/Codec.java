@@ -0,0 +1,13 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * Converts keys and values of types a map cannot store natively to and from
+ * bytes, see RdbmsMap.setCodec(). Equal objects must encode to equal bytes
+ * for them to be found as keys, and values to be found by containsValue().
+ */
+public interface Codec {
+
+  byte[] encode(Object obj);
+
+  Object decode(byte[] bytes);
+}
@@ -0,0 +1,249 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * A condition on a map's keys or values, evaluated by the database so only
+ * matching entries are read. Filters are combined with and(), or() and
+ * not().
+ *
+ * Equality compares keys or values of the operand's type only, as
+ * containsValue() does. Ordering compares numbers of any type by their
+ * numeric value, and strings by code point. A key or value which can not
+ * be ordered against the operand matches neither the filter nor its
+ * negation.
+ */
+public final class Filter {
+
+  private enum Operator {
+
+    EQUALS("="),
+    GREATER_THAN(">"),
+    GREATER_THAN_OR_EQUAL(">="),
+    LESS_THAN("<"),
+    LESS_THAN_OR_EQUAL("<="),
+    STARTS_WITH(null),
+    AND(" and "),
+    OR(" or "),
+    NOT(null);
+
+    private final String sql;
+
+    private Operator(final String sql) {
+      this.sql = sql;
+    }
+  }
+
+  private static final String KEY = "key_";
+  private static final String VALUE = "value_";
+
+  private final Operator operator;
+  // key_ or value_, the prefix of the columns compared
+  private final String side;
+  private final Object operand;
+  private final List<Filter> filters;
+
+  private Filter(final Operator operator, final String side, final Object operand, final List<Filter> filters) {
+
+    this.operator = operator;
+    this.side = side;
+    this.operand = operand;
+    this.filters = filters;
+  }
+
+  public static Filter keyEquals(final Object key) {
+    return equals(KEY, key);
+  }
+
+  public static Filter keyGreaterThan(final Comparable<?> key) {
+    return compare(Operator.GREATER_THAN, KEY, key);
+  }
+
+  public static Filter keyGreaterThanOrEqual(final Comparable<?> key) {
+    return compare(Operator.GREATER_THAN_OR_EQUAL, KEY, key);
+  }
+
+  public static Filter keyLessThan(final Comparable<?> key) {
+    return compare(Operator.LESS_THAN, KEY, key);
+  }
+
+  public static Filter keyLessThanOrEqual(final Comparable<?> key) {
+    return compare(Operator.LESS_THAN_OR_EQUAL, KEY, key);
+  }
+
+  public static Filter keyStartsWith(final String prefix) {
+    return compare(Operator.STARTS_WITH, KEY, prefix);
+  }
+
+  public static Filter valueEquals(final Object value) {
+    return equals(VALUE, value);
+  }
+
+  public static Filter valueIsNull() {
+    return equals(VALUE, null);
+  }
+
+  public static Filter valueGreaterThan(final Comparable<?> value) {
+    return compare(Operator.GREATER_THAN, VALUE, value);
+  }
+
+  public static Filter valueGreaterThanOrEqual(final Comparable<?> value) {
+    return compare(Operator.GREATER_THAN_OR_EQUAL, VALUE, value);
+  }
+
+  public static Filter valueLessThan(final Comparable<?> value) {
+    return compare(Operator.LESS_THAN, VALUE, value);
+  }
+
+  public static Filter valueLessThanOrEqual(final Comparable<?> value) {
+    return compare(Operator.LESS_THAN_OR_EQUAL, VALUE, value);
+  }
+
+  public static Filter valueStartsWith(final String prefix) {
+    return compare(Operator.STARTS_WITH, VALUE, prefix);
+  }
+
+  public static Filter and(final Filter... filters) {
+    return combine(Operator.AND, filters);
+  }
+
+  public static Filter or(final Filter... filters) {
+    return combine(Operator.OR, filters);
+  }
+
+  public static Filter not(final Filter filter) {
+    return new Filter(Operator.NOT, null, null, Collections.singletonList(filter));
+  }
+
+  /*
+   * Returns the filter as a condition on the columns of SELECT_ENTRIES, or
+   * of single_entry for single table maps, with a parameter per operand.
+   */
+  String toSql(final boolean singleTable) {
+
+    StringBuilder sql = new StringBuilder();
+    appendSql(sql, singleTable);
+
+    return sql.toString();
+  }
+
+  // the types and values of the parameters of toSql(), in order
+  List<Object[]> getParameters() {
+
+    List<Object[]> parameters = new ArrayList<Object[]>();
+    addParameters(parameters);
+
+    return parameters;
+  }
+
+  private static Filter equals(final String side, final Object operand) {
+
+    if (null != operand && null == ObjectType.of(operand)) {
+      throw new IllegalArgumentException("unsupported type " + operand.getClass().getName());
+    }
+
+    return new Filter(Operator.EQUALS, side, operand, null);
+  }
+
+  private static Filter compare(final Operator operator, final String side, final Object operand) {
+
+    if (!(operand instanceof Number || operand instanceof String || operand instanceof Boolean)) {
+      throw new IllegalArgumentException("can not compare " + (null == operand ? "null" : operand.getClass().getName()));
+    }
+
+    return new Filter(operator, side, operand, null);
+  }
+
+  private static Filter combine(final Operator operator, final Filter... filters) {
+
+    if (filters.length == 0) {
+      throw new IllegalArgumentException("no filters");
+    }
+
+    return new Filter(operator, null, null, Arrays.asList(filters));
+  }
+
+  private void appendSql(final StringBuilder sql, final boolean singleTable) {
+
+    switch (operator) {
+      case AND:
+      case OR:
+        sql.append('(');
+
+        for (int i = 0; i < filters.size(); i++) {
+          if (i > 0) {
+            sql.append(operator.sql);
+          }
+
+          filters.get(i).appendSql(sql, singleTable);
+        }
+
+        sql.append(')');
+        break;
+
+      case NOT:
+        // unordered keys and values compare as null, and match neither a filter nor its negation
+        sql.append("coalesce(not ");
+        filters.get(0).appendSql(sql, singleTable);
+        sql.append(", false)");
+        break;
+
+      case EQUALS:
+        ObjectType type = ObjectType.of(operand);
+        sql.append('(').append(typeColumn(singleTable)).append(" = '").append(type.getCode()).append('\'');
+
+        if (type != ObjectType.NULL) {
+          sql.append(" and ").append(column(type, singleTable)).append(" = ?");
+        }
+
+        sql.append(')');
+        break;
+
+      case STARTS_WITH:
+        sql.append("starts_with(").append(column(ObjectType.TEXT, singleTable)).append(", ?)");
+        break;
+
+      default:
+        sql.append(comparable(singleTable)).append(' ').append(operator.sql).append(" ?");
+    }
+  }
+
+  private void addParameters(final List<Object[]> parameters) {
+
+    if (null != filters) {
+      for (Filter filter : filters) {
+        filter.addParameters(parameters);
+      }
+    } else if (null != operand) {
+      ObjectType type = operand instanceof Number && operator != Operator.EQUALS ? ObjectType.NUMERIC : ObjectType.of(operand);
+      parameters.add(new Object[]{type, operand});
+    }
+  }
+
+  private String typeColumn(final boolean singleTable) {
+
+    return (singleTable ? "" : "entry.") + side + "type";
+  }
+
+  private String column(final ObjectType type, final boolean singleTable) {
+
+    return singleTable ? RdbmsMap.column(side, type) : side + type.getTable() + ".value";
+  }
+
+  // numbers of every type compare as numerics, text by code point
+  private String comparable(final boolean singleTable) {
+
+    if (operand instanceof String) {
+      return column(ObjectType.TEXT, singleTable) + " collate \"C\"";
+    }
+
+    if (operand instanceof Boolean) {
+      return column(ObjectType.BOOLEAN, singleTable);
+    }
+
+    return RdbmsMap.numeric(side, singleTable);
+  }
+}
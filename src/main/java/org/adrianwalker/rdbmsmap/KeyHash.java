@@ -0,0 +1,115 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * Hashes keys for maps using StorageMode.KEY_HASH. Hashes are stored in the
+ * database so must never change for a given key.
+ *
+ * Nulls, integers, booleans and maps are encoded exactly, with the type in
+ * the high word and the value in the low word. Other types are hashed with
+ * the sign bit set, so they can only collide with each other, and lookups
+ * for them also compare the key itself. Encoded keys are hashed by their
+ * encoded bytes.
+ */
+final class KeyHash {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private KeyHash() {
+  }
+
+  public static boolean isExact(final ObjectType type) {
+
+    switch (type) {
+      case NULL:
+      case INTEGER:
+      case BOOLEAN:
+      case MAP:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public static long hash(final ObjectType type, final Object key) {
+
+    switch (type) {
+      case NULL:
+        return exact(type, 0);
+      case INTEGER:
+        return exact(type, (Integer) key);
+      case BOOLEAN:
+        return exact(type, (Boolean) key ? 1 : 0);
+      case MAP:
+        return exact(type, ((RdbmsMap) key).getMapId());
+      case NUMERIC:
+        // numerics equal regardless of scale
+        return hashed(hash(type, ObjectType.toBigDecimal((Number) key).stripTrailingZeros().toPlainString()));
+      case TEXT:
+        return hashed(hash(type, (String) key));
+      case LONG:
+        return hashed(type, (Long) key);
+      case REAL:
+        float f = (Float) key;
+        // real has no negative zero
+        return hashed(type, Float.floatToIntBits(f == 0 ? 0 : f));
+      case DOUBLE:
+        double d = (Double) key;
+        // double precision has no negative zero
+        return hashed(type, Double.doubleToLongBits(d == 0 ? 0 : d));
+      case BYTES:
+      case ENCODED:
+        return hashed(hash(type, (byte[]) key));
+      default:
+        throw new IllegalArgumentException(type.name());
+    }
+  }
+
+  private static long exact(final ObjectType type, final int value) {
+    return ((long) type.ordinal() << 32) | (value & 0xffffffffL);
+  }
+
+  private static long hashed(final long hash) {
+    return hash | Long.MIN_VALUE;
+  }
+
+  private static long hashed(final ObjectType type, final long value) {
+    return hashed(mix(mix(value) ^ type.ordinal()));
+  }
+
+  // FNV-1a over the bytes, finished with a full avalanche mix
+  private static long hash(final ObjectType type, final byte[] bytes) {
+
+    long hash = FNV_OFFSET_BASIS ^ type.ordinal();
+
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+
+    return mix(hash);
+  }
+
+  // FNV-1a over the string's chars, finished with a full avalanche mix
+  private static long hash(final ObjectType type, final String s) {
+
+    long hash = FNV_OFFSET_BASIS ^ type.ordinal();
+
+    for (int i = 0; i < s.length(); i++) {
+      hash ^= s.charAt(i);
+      hash *= FNV_PRIME;
+    }
+
+    return mix(hash);
+  }
+
+  // splitmix64 finaliser
+  static long mix(final long value) {
+
+    long z = value;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,114 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * A range of keys of one type, in their natural order, with optional low and
+ * high bounds. Ranges are immutable, narrowing one returns a new range.
+ */
+final class KeyRange {
+
+  private final ObjectType type;
+  private final Comparable low;
+  private final boolean lowInclusive;
+  private final Comparable high;
+  private final boolean highInclusive;
+
+  private KeyRange(final ObjectType type,
+          final Comparable low, final boolean lowInclusive,
+          final Comparable high, final boolean highInclusive) {
+
+    this.type = type;
+    this.low = low;
+    this.lowInclusive = lowInclusive;
+    this.high = high;
+    this.highInclusive = highInclusive;
+  }
+
+  public static KeyRange all(final ObjectType type) {
+    return new KeyRange(type, null, false, null, false);
+  }
+
+  public ObjectType getType() {
+    return type;
+  }
+
+  public Comparable getLow() {
+    return low;
+  }
+
+  public boolean isLowInclusive() {
+    return lowInclusive;
+  }
+
+  public Comparable getHigh() {
+    return high;
+  }
+
+  public boolean isHighInclusive() {
+    return highInclusive;
+  }
+
+  public boolean contains(final Object key) {
+
+    return isType(key) && aboveLow((Comparable) key, lowInclusive) && belowHigh((Comparable) key, highInclusive);
+  }
+
+  // true if key is within the range's bounds, counting the bounds as inclusive
+  public boolean containsClosed(final Object key) {
+
+    return isType(key) && aboveLow((Comparable) key, true) && belowHigh((Comparable) key, true);
+  }
+
+  public boolean isType(final Object key) {
+    return null != key && ObjectType.of(key) == type;
+  }
+
+  // narrows the range to keys below key, keeping the current high bound if it is lower
+  public KeyRange head(final Comparable key, final boolean inclusive) {
+
+    if (null != high) {
+      int compare = high.compareTo(key);
+
+      if (compare < 0 || compare == 0 && !highInclusive) {
+        return this;
+      }
+    }
+
+    return new KeyRange(type, low, lowInclusive, key, inclusive);
+  }
+
+  // narrows the range to keys above key, keeping the current low bound if it is higher
+  public KeyRange tail(final Comparable key, final boolean inclusive) {
+
+    if (null != low) {
+      int compare = low.compareTo(key);
+
+      if (compare > 0 || compare == 0 && !lowInclusive) {
+        return this;
+      }
+    }
+
+    return new KeyRange(type, key, inclusive, high, highInclusive);
+  }
+
+  private boolean aboveLow(final Comparable key, final boolean inclusive) {
+
+    if (null == low) {
+      return true;
+    }
+
+    int compare = key.compareTo(low);
+
+    return compare > 0 || compare == 0 && inclusive;
+  }
+
+  private boolean belowHigh(final Comparable key, final boolean inclusive) {
+
+    if (null == high) {
+      return true;
+    }
+
+    int compare = key.compareTo(high);
+
+    return compare < 0 || compare == 0 && inclusive;
+  }
+}
@@ -0,0 +1,36 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * A change published by a map, see RdbmsMap.setPublishing(). Only changes to
+ * single keys have a key.
+ */
+public final class MapChange<K> {
+
+  private final int mapId;
+  private final ChangeType type;
+  private final K key;
+
+  public MapChange(final int mapId, final ChangeType type, final K key) {
+
+    this.mapId = mapId;
+    this.type = type;
+    this.key = key;
+  }
+
+  public int getMapId() {
+    return mapId;
+  }
+
+  public ChangeType getType() {
+    return type;
+  }
+
+  public K getKey() {
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return type + (type == ChangeType.PUT || type == ChangeType.REMOVE ? " " + key : "");
+  }
+}
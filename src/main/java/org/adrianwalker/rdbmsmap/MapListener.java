@@ -0,0 +1,16 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * Notified after each operation on an RdbmsMap the listener is set on, see
+ * RdbmsMap.setListener(). Operations are named after the Map methods, with
+ * iteration of the collection views reported as "iterator" once the last
+ * page has been read or the iterator is closed. Reads answered by a near
+ * cache are not reported.
+ *
+ * Listeners are called on the thread that ran the operation, so must be
+ * thread safe for maps used by many threads.
+ */
+public interface MapListener {
+
+  void completed(String operation, long elapsedNanos, OperationStats stats);
+}
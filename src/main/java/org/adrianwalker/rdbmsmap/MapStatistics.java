@@ -0,0 +1,164 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A listener keeping totals and a latency histogram per operation, which
+ * can be registered as an MBean to read them over JMX:
+ *
+ *   MapStatistics statistics = new MapStatistics();
+ *   map.setListener(statistics);
+ *   ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+ *           new ObjectName("org.adrianwalker.rdbmsmap:type=MapStatistics,name=users"));
+ *
+ * Latencies are kept in power of two buckets, so percentiles are accurate to
+ * within a factor of two.
+ */
+public final class MapStatistics implements MapListener, MapStatisticsMBean {
+
+  private static final int BUCKETS = 64;
+  private static final double NANOS_PER_MICRO = 1000;
+
+  private final ConcurrentMap<String, Statistics> operations = new ConcurrentHashMap<String, Statistics>();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+
+  @Override
+  public void completed(final String operation, final long elapsedNanos, final OperationStats stats) {
+
+    Statistics statistics = operations.get(operation);
+
+    if (null == statistics) {
+      operations.putIfAbsent(operation, new Statistics());
+      statistics = operations.get(operation);
+    }
+
+    statistics.record(elapsedNanos, stats);
+    cacheHits.add(stats.getCacheHits());
+    cacheMisses.add(stats.getCacheMisses());
+  }
+
+  @Override
+  public String[] getOperations() {
+    return operations.keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public double getStatementCacheHitRate() {
+
+    long hits = cacheHits.sum();
+    long prepares = hits + cacheMisses.sum();
+
+    return prepares == 0 ? 0 : (double) hits / prepares;
+  }
+
+  @Override
+  public long getCount(final String operation) {
+
+    Statistics statistics = operations.get(operation);
+
+    return null == statistics ? 0 : statistics.count.sum();
+  }
+
+  @Override
+  public double getMeanLatency(final String operation) {
+
+    Statistics statistics = operations.get(operation);
+
+    if (null == statistics) {
+      return 0;
+    }
+
+    long count = statistics.count.sum();
+
+    return count == 0 ? 0 : statistics.nanos.sum() / NANOS_PER_MICRO / count;
+  }
+
+  /*
+   * Returns the latency under which the given percentage of operations
+   * completed, rounded up to the top of its bucket.
+   */
+  @Override
+  public long getLatencyPercentile(final String operation, final double percentile) {
+
+    Statistics statistics = operations.get(operation);
+
+    if (null == statistics) {
+      return 0;
+    }
+
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += statistics.latencies.get(i);
+    }
+
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += statistics.latencies.get(i);
+
+      if (seen >= rank && seen > 0) {
+        return (long) Math.ceil((i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (i + 1)) / NANOS_PER_MICRO);
+      }
+    }
+
+    return 0;
+  }
+
+  @Override
+  public long getStatements(final String operation) {
+
+    Statistics statistics = operations.get(operation);
+
+    return null == statistics ? 0 : statistics.statements.sum();
+  }
+
+  @Override
+  public long getRoundTrips(final String operation) {
+
+    Statistics statistics = operations.get(operation);
+
+    return null == statistics ? 0 : statistics.roundTrips.sum();
+  }
+
+  @Override
+  public long getRowsRead(final String operation) {
+
+    Statistics statistics = operations.get(operation);
+
+    return null == statistics ? 0 : statistics.rowsRead.sum();
+  }
+
+  @Override
+  public void reset() {
+
+    operations.clear();
+    cacheHits.reset();
+    cacheMisses.reset();
+  }
+
+  private static final class Statistics {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    // bucket i counts latencies from 2^i up to 2^(i + 1) nanoseconds
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    private void record(final long elapsedNanos, final OperationStats stats) {
+
+      count.increment();
+      nanos.add(elapsedNanos);
+      statements.add(stats.getStatements());
+      roundTrips.add(stats.getRoundTrips());
+      rowsRead.add(stats.getRowsRead());
+      latencies.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(elapsedNanos, 1)));
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * Management interface of MapStatistics. Latencies are in microseconds.
+ */
+public interface MapStatisticsMBean {
+
+  String[] getOperations();
+
+  double getStatementCacheHitRate();
+
+  long getCount(String operation);
+
+  double getMeanLatency(String operation);
+
+  long getLatencyPercentile(String operation, double percentile);
+
+  long getStatements(String operation);
+
+  long getRoundTrips(String operation);
+
+  long getRowsRead(String operation);
+
+  void reset();
+}
@@ -0,0 +1,339 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * A read only map over a snapshot file written by RdbmsMap.snapshotTo(),
+ * memory mapped so lookups never touch the database. Keys are found in the
+ * file's hash table and compared in place, so get() allocates nothing but
+ * the value it returns, apart from for numeric and codec encoded keys.
+ *
+ * refresh() maps the file again, after a newer snapshot has been written to
+ * the same path. Lookups already running finish against the snapshot they
+ * started with. The map can be read by any number of threads at once.
+ */
+public final class MappedSnapshotMap<K, V> extends AbstractMap<K, V> {
+
+  // ObjectType.values() copies the array on each call
+  private static final ObjectType[] TYPES = ObjectType.values();
+
+  private final Path path;
+  private final Codec codec;
+  private volatile Snapshot snapshot;
+
+  public MappedSnapshotMap(final Path path) {
+
+    this(path, null);
+  }
+
+  /*
+   * Opens a snapshot with the codec of the map it was written from, to
+   * decode and look up objects of types which have no table of their own.
+   */
+  public MappedSnapshotMap(final Path path, final Codec codec) {
+
+    this.path = path;
+    this.codec = codec;
+    this.snapshot = map(path);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /*
+   * Replaces the snapshot with the file now at the path.
+   */
+  public void refresh() {
+    snapshot = map(path);
+  }
+
+  @Override
+  public V get(final Object key) {
+
+    Snapshot current = snapshot;
+    int record = current.find(key);
+
+    return 0 == record ? null : (V) current.read(current.next(record));
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return 0 != snapshot.find(key);
+  }
+
+  @Override
+  public int size() {
+    return snapshot.size;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+
+    final Snapshot current = snapshot;
+
+    return new AbstractSet<Entry<K, V>>() {
+
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+
+        return new Iterator<Entry<K, V>>() {
+
+          private int slot = nextSlot(0);
+
+          @Override
+          public boolean hasNext() {
+            return slot < current.slots;
+          }
+
+          @Override
+          public Entry<K, V> next() {
+
+            if (slot >= current.slots) {
+              throw new NoSuchElementException();
+            }
+
+            int record = current.record(slot);
+            slot = nextSlot(slot + 1);
+
+            return new SimpleImmutableEntry<K, V>((K) current.read(record), (V) current.read(current.next(record)));
+          }
+
+          private int nextSlot(final int from) {
+
+            int next = from;
+
+            while (next < current.slots && current.record(next) == 0) {
+              next++;
+            }
+
+            return next;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return current.size;
+      }
+    };
+  }
+
+  // the hash of a key, from its bytes if encoded by a codec
+  static long hash(final ObjectType type, final Object key, final Object encoded) {
+
+    return KeyHash.hash(type, type == ObjectType.ENCODED ? encoded : key);
+  }
+
+  static int slot(final long hash, final int slots) {
+
+    return (int) KeyHash.mix(hash) & (slots - 1);
+  }
+
+  // real and double precision have no negative zero
+  static int bits(final float f) {
+    return Float.floatToIntBits(f == 0 ? 0 : f);
+  }
+
+  static long bits(final double d) {
+    return Double.doubleToLongBits(d == 0 ? 0 : d);
+  }
+
+  private Snapshot map(final Path path) {
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.limit() < SnapshotWriter.HEADER_SIZE || buffer.getInt(0) != SnapshotWriter.MAGIC) {
+        throw new IllegalArgumentException(path + " is not a snapshot");
+      }
+
+      return new Snapshot(buffer);
+
+    } catch (final IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  private final class Snapshot {
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int slots;
+
+    public Snapshot(final MappedByteBuffer buffer) {
+
+      this.buffer = buffer;
+      this.size = buffer.getInt(4);
+      this.slots = buffer.getInt(8);
+    }
+
+    public int record(final int slot) {
+      return buffer.getInt(SnapshotWriter.HEADER_SIZE + slot * SnapshotWriter.SLOT_SIZE + 8);
+    }
+
+    // the offset of key's record, or 0 if the key is not in the snapshot
+    public int find(final Object key) {
+
+      ObjectType type = ObjectType.of(key);
+      Object encoded = key;
+
+      if (type == ObjectType.MAP) {
+        return 0;
+      } else if (null == type) {
+        if (null == codec) {
+          return 0;
+        }
+
+        type = ObjectType.ENCODED;
+        encoded = codec.encode(key);
+      } else if (type == ObjectType.NUMERIC) {
+        encoded = SnapshotWriter.encode(type, key, null, true);
+      }
+
+      long hash = hash(type, key, encoded);
+
+      for (int slot = slot(hash, slots);; slot = (slot + 1) & (slots - 1)) {
+        int record = record(slot);
+
+        if (0 == record) {
+          return 0;
+        }
+
+        if (buffer.getLong(SnapshotWriter.HEADER_SIZE + slot * SnapshotWriter.SLOT_SIZE) == hash && matches(record, type, encoded)) {
+          return record;
+        }
+      }
+    }
+
+    // the offset of the object following the one at offset
+    public int next(final int offset) {
+      return offset + 5 + buffer.getInt(offset + 1);
+    }
+
+    public Object read(final int offset) {
+
+      ObjectType type = TYPES[buffer.get(offset)];
+      int length = buffer.getInt(offset + 1);
+      int data = offset + 5;
+
+      switch (type) {
+        case NULL:
+          return null;
+        case INTEGER:
+          return buffer.getInt(data);
+        case BOOLEAN:
+          return buffer.get(data) != 0;
+        case LONG:
+          return buffer.getLong(data);
+        case REAL:
+          return Float.intBitsToFloat(buffer.getInt(data));
+        case DOUBLE:
+          return Double.longBitsToDouble(buffer.getLong(data));
+        case TEXT:
+          return readString(data, length);
+        case NUMERIC:
+          return new BigDecimal(readString(data, length));
+        case BYTES:
+          return readBytes(data, length);
+        case ENCODED:
+          if (null == codec) {
+            throw new IllegalStateException(path + " has encoded objects but no codec");
+          }
+
+          return codec.decode(readBytes(data, length));
+        default:
+          throw new IllegalStateException(type.name());
+      }
+    }
+
+    private boolean matches(final int offset, final ObjectType type, final Object key) {
+
+      if (buffer.get(offset) != type.ordinal()) {
+        return false;
+      }
+
+      int length = buffer.getInt(offset + 1);
+      int data = offset + 5;
+
+      switch (type) {
+        case NULL:
+          return true;
+        case INTEGER:
+          return buffer.getInt(data) == (Integer) key;
+        case BOOLEAN:
+          return (buffer.get(data) != 0) == (Boolean) key;
+        case LONG:
+          return buffer.getLong(data) == (Long) key;
+        case REAL:
+          return buffer.getInt(data) == bits((Float) key);
+        case DOUBLE:
+          return buffer.getLong(data) == bits((Double) key);
+        case TEXT:
+        case NUMERIC:
+          String s = (String) key;
+
+          if (length != s.length() * 2) {
+            return false;
+          }
+
+          for (int i = 0; i < s.length(); i++) {
+            if (buffer.getChar(data + i * 2) != s.charAt(i)) {
+              return false;
+            }
+          }
+
+          return true;
+        case BYTES:
+        case ENCODED:
+          byte[] bytes = (byte[]) key;
+
+          if (length != bytes.length) {
+            return false;
+          }
+
+          for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(data + i) != bytes[i]) {
+              return false;
+            }
+          }
+
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private String readString(final int data, final int length) {
+
+      char[] chars = new char[length / 2];
+
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = buffer.getChar(data + i * 2);
+      }
+
+      return new String(chars);
+    }
+
+    private byte[] readBytes(final int data, final int length) {
+
+      byte[] bytes = new byte[length];
+
+      for (int i = 0; i < length; i++) {
+        bytes[i] = buffer.get(data + i);
+      }
+
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A bounded, least recently used cache of a map's keys and values, held in
+ * front of the database by an RdbmsMap. Lookups of keys not in the map are
+ * cached too, so repeated misses do not go to the database either.
+ *
+ * The cache is kept up to date by the writes of the map it is set on. It
+ * does not see changes made by other maps or processes, or writes which are
+ * later rolled back. A value read or written while the cache changed is not
+ * cached, as a concurrent write to the same key may have cached a newer one.
+ *
+ * Byte array keys are compared by content, as the map compares them.
+ */
+public final class NearCache<K, V> {
+
+  // returned by lookup() for keys which are not cached
+  static final Object MISS = new Object();
+  // cached for keys which are not in the map
+  static final Object ABSENT = new Object();
+  // cached for keys mapped to null
+  private static final Object NULL = new Object();
+
+  private final int maximumSize;
+  private final Map<Object, Object> entries;
+  // changed by every write to the cache
+  private long stamp;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public NearCache(final int maximumSize) {
+
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximum size must be positive");
+    }
+
+    this.maximumSize = maximumSize;
+    this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Object, Object> eldest) {
+
+        if (size() > NearCache.this.maximumSize) {
+          evictions++;
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized double getHitRate() {
+
+    long requests = hits + misses;
+
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  public synchronized void clear() {
+
+    stamp++;
+    entries.clear();
+  }
+
+  /*
+   * Returns the cached value for key, ABSENT if the key is known not to be in
+   * the map, or MISS if nothing is cached for it.
+   */
+  synchronized Object lookup(final Object key) {
+
+    Object value = entries.get(key(key));
+
+    if (null == value) {
+      misses++;
+      return MISS;
+    }
+
+    hits++;
+
+    return value == NULL ? null : value;
+  }
+
+  /*
+   * Returns the cache's current stamp, taken before going to the database
+   * for a value to be cached with put(key, value, stamp).
+   */
+  synchronized long stamp() {
+    return stamp;
+  }
+
+  synchronized void put(final Object key, final Object value) {
+
+    stamp++;
+    entries.put(stored(key), null == value ? NULL : value);
+  }
+
+  synchronized void putAbsent(final Object key) {
+    put(key, ABSENT);
+  }
+
+  // caches value if the cache has not changed since stamp, otherwise invalidates key
+  synchronized void put(final Object key, final Object value, final long stamp) {
+
+    if (this.stamp == stamp) {
+      put(key, value);
+    } else {
+      invalidate(key);
+    }
+  }
+
+  synchronized void putAbsent(final Object key, final long stamp) {
+    put(key, ABSENT, stamp);
+  }
+
+  synchronized void invalidate(final Object key) {
+
+    stamp++;
+    entries.remove(key(key));
+  }
+
+  // byte arrays have identity equality
+  private static Object key(final Object key) {
+    return key instanceof byte[] ? ByteBuffer.wrap((byte[]) key) : key;
+  }
+
+  // copied, so a cached key is not changed with the caller's array
+  private static Object stored(final Object key) {
+    return key instanceof byte[] ? ByteBuffer.wrap(((byte[]) key).clone()) : key;
+  }
+}
@@ -0,0 +1,255 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+enum ObjectType {
+
+  NULL("0", "object_null", null),
+  INTEGER("I", "object_integer", "int4"),
+  BOOLEAN("B", "object_boolean", "bool"),
+  NUMERIC("N", "object_numeric", "numeric"),
+  TEXT("T", "object_text", "text"),
+  MAP("M", "object_map", "int4"),
+  // appended so the ordinals of earlier types, stored in key hashes, do not change
+  LONG("L", "object_bigint", "int8"),
+  REAL("R", "object_real", "float4"),
+  DOUBLE("D", "object_double", "float8"),
+  // the driver can not bind bytea arrays, bytes are bound as hex text
+  BYTES("Y", "object_bytea", "text"),
+  ENCODED("E", "object_encoded", "text");
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String code;
+  private final String table;
+  private final String arrayType;
+
+  private ObjectType(final String code, final String table, final String arrayType) {
+
+    this.code = code;
+    this.table = table;
+    this.arrayType = arrayType;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  // the element type of arrays of this type's values, null types have no arrays
+  public String getArrayType() {
+    return arrayType;
+  }
+
+  public boolean isBytes() {
+    return this == BYTES || this == ENCODED;
+  }
+
+  public static ObjectType of(final Object obj) {
+
+    if (null == obj) {
+      return NULL;
+    } else if (obj instanceof Integer) {
+      return INTEGER;
+    } else if (obj instanceof Boolean) {
+      return BOOLEAN;
+    } else if (obj instanceof Long) {
+      return LONG;
+    } else if (obj instanceof Float) {
+      return REAL;
+    } else if (obj instanceof Double) {
+      return DOUBLE;
+    } else if (obj instanceof Number) {
+      return NUMERIC;
+    } else if (obj instanceof String) {
+      return TEXT;
+    } else if (obj instanceof RdbmsMap) {
+      return MAP;
+    } else if (obj instanceof byte[]) {
+      return BYTES;
+    } else {
+      return null;
+    }
+  }
+
+  public static ObjectType fromCode(final String code) {
+
+    for (ObjectType type : values()) {
+      if (type.code.equals(code)) {
+        return type;
+      }
+    }
+
+    return null;
+  }
+
+  /*
+   * Converts numbers stored as numerics, other than BigDecimals, exactly.
+   */
+  public static BigDecimal toBigDecimal(final Number number) {
+
+    if (number instanceof BigDecimal) {
+      return (BigDecimal) number;
+    } else if (number instanceof BigInteger) {
+      return new BigDecimal((BigInteger) number);
+    } else {
+      return new BigDecimal(number.toString());
+    }
+  }
+
+  /*
+   * Binds obj, with encoded objects already encoded to bytes by the caller.
+   */
+  public void bind(final PreparedStatement statement, final int index, final Object obj) throws SQLException {
+
+    switch (this) {
+      case NULL:
+        break;
+      case INTEGER:
+        statement.setInt(index, (Integer) obj);
+        break;
+      case BOOLEAN:
+        statement.setBoolean(index, (Boolean) obj);
+        break;
+      case NUMERIC:
+        statement.setBigDecimal(index, toBigDecimal((Number) obj));
+        break;
+      case TEXT:
+        statement.setString(index, (String) obj);
+        break;
+      case MAP:
+        statement.setInt(index, ((RdbmsMap) obj).getMapId());
+        break;
+      case LONG:
+        statement.setLong(index, (Long) obj);
+        break;
+      case REAL:
+        statement.setFloat(index, (Float) obj);
+        break;
+      case DOUBLE:
+        statement.setDouble(index, (Double) obj);
+        break;
+      case BYTES:
+      case ENCODED:
+        statement.setBytes(index, (byte[]) obj);
+        break;
+      default:
+        throw new IllegalStateException(name());
+    }
+  }
+
+  /*
+   * Converts obj to an element of an array of getArrayType(), with encoded
+   * objects already encoded to bytes by the caller.
+   */
+  public Object toArrayElement(final Object obj) {
+
+    switch (this) {
+      case NUMERIC:
+        return toBigDecimal((Number) obj);
+      case MAP:
+        return ((RdbmsMap) obj).getMapId();
+      case BYTES:
+      case ENCODED:
+        return toHex((byte[]) obj);
+      default:
+        return obj;
+    }
+  }
+
+  /*
+   * Reads a value written by bind(). Map values are returned as their
+   * integer map id, and encoded values as their bytes, it is up to the
+   * caller to wrap or decode them.
+   */
+  public Object read(final ResultSet result, final int index) throws SQLException {
+
+    switch (this) {
+      case NULL:
+        return null;
+      case INTEGER:
+        return result.getInt(index);
+      case BOOLEAN:
+        return result.getBoolean(index);
+      case NUMERIC:
+        return result.getBigDecimal(index);
+      case TEXT:
+        return result.getString(index);
+      case MAP:
+        return result.getInt(index);
+      case LONG:
+        return result.getLong(index);
+      case REAL:
+        return result.getFloat(index);
+      case DOUBLE:
+        return result.getDouble(index);
+      case BYTES:
+      case ENCODED:
+        return result.getBytes(index);
+      default:
+        throw new IllegalStateException(name());
+    }
+  }
+
+  /*
+   * Reads a value from the text written by toArrayElement(), with map values
+   * and encoded values returned as read() returns them.
+   */
+  public Object fromText(final String text) {
+
+    switch (this) {
+      case NULL:
+        return null;
+      case INTEGER:
+      case MAP:
+        return Integer.valueOf(text);
+      case BOOLEAN:
+        return Boolean.valueOf(text);
+      case NUMERIC:
+        return new BigDecimal(text);
+      case TEXT:
+        return text;
+      case LONG:
+        return Long.valueOf(text);
+      case REAL:
+        return Float.valueOf(text);
+      case DOUBLE:
+        return Double.valueOf(text);
+      case BYTES:
+      case ENCODED:
+        return fromHex(text);
+      default:
+        throw new IllegalStateException(name());
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+
+    char[] hex = new char[bytes.length * 2];
+
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+
+    return new String(hex);
+  }
+
+  private static byte[] fromHex(final String hex) {
+
+    byte[] bytes = new byte[hex.length() / 2];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,68 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * The database work done by one map operation. Statements counts every
+ * statement sent, with each statement in a batch counted separately, and
+ * round trips counts the requests made to the database, with each batch
+ * counted once.
+ */
+public final class OperationStats {
+
+  private int statements;
+  private int roundTrips;
+  private long rowsRead;
+  private int cacheHits;
+  private int cacheMisses;
+
+  OperationStats() {
+  }
+
+  public int getStatements() {
+    return statements;
+  }
+
+  public int getRoundTrips() {
+    return roundTrips;
+  }
+
+  public long getRowsRead() {
+    return rowsRead;
+  }
+
+  public int getCacheHits() {
+    return cacheHits;
+  }
+
+  public int getCacheMisses() {
+    return cacheMisses;
+  }
+
+  void executed(final int statements) {
+
+    this.statements += statements;
+    roundTrips++;
+  }
+
+  void read() {
+    rowsRead++;
+  }
+
+  void prepared(final boolean cached) {
+
+    if (cached) {
+      cacheHits++;
+    } else {
+      cacheMisses++;
+    }
+  }
+
+  @Override
+  public String toString() {
+
+    return "statements=" + statements
+            + ", roundTrips=" + roundTrips
+            + ", rowsRead=" + rowsRead
+            + ", cacheHits=" + cacheHits
+            + ", cacheMisses=" + cacheMisses;
+  }
+}
@@ -0,0 +1,325 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+ * An RdbmsMap with atomic compound operations. Each write runs in its own
+ * transaction holding a database lock on the key, so writes of the same key
+ * from any thread or process, through any RdbmsConcurrentMap on the map,
+ * happen one after the other. Writes of different keys do not wait for each
+ * other. Writes made through a plain RdbmsMap do not take the lock, so they
+ * are not ordered with these, though the map's unique key indexes still
+ * keep them from leaving duplicate keys. putIfAbsent() of a key not in the
+ * map is a single insert, which takes no lock.
+ *
+ * Remapping functions run while the key is locked, and must not write to the
+ * map themselves. Keys mapped to null are treated as absent by
+ * putIfAbsent(), computeIfAbsent() and merge(), as they are by HashMap.
+ *
+ * To share the map between threads wrap a map built on a data source.
+ * Closing this map closes the wrapped map.
+ */
+public final class RdbmsConcurrentMap<K, V> implements ConcurrentMap<K, V>, AutoCloseable {
+
+  private final RdbmsMap<K, V> map;
+
+  public RdbmsConcurrentMap(final RdbmsMap<K, V> map) {
+
+    this.map = map;
+  }
+
+  public RdbmsMap<K, V> getMap() {
+    return map;
+  }
+
+  @Override
+  public void close() {
+    map.close();
+  }
+
+  @Override
+  public V get(final Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+    return map.containsValue(value);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return map.keySet();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return map.values();
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return map.entrySet();
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+
+    return atomically("put", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+        return map.put(key, value);
+      }
+    });
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+
+    if (m.isEmpty()) {
+      return;
+    }
+
+    map.atomically("putAll", m.keySet(), new RdbmsMap.Operation<Void>() {
+
+      @Override
+      public Void execute() {
+        map.putAll(m);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public V remove(final Object key) {
+
+    return atomically("remove", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+        return map.remove(key);
+      }
+    });
+  }
+
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+
+    // one insert when the key is not in the map, which concurrent inserts of the key wait on
+    if (map.putAbsent(key, value)) {
+      return null;
+    }
+
+    // the key may be mapped to null, which is treated as absent
+    return atomically("putIfAbsent", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        V current = valueOf(map.read(key));
+
+        if (null == current) {
+          map.put(key, value);
+        }
+
+        return current;
+      }
+    });
+  }
+
+  @Override
+  public boolean remove(final Object key, final Object value) {
+
+    return atomically("remove", key, new RdbmsMap.Operation<Boolean>() {
+
+      @Override
+      public Boolean execute() {
+
+        Object current = map.read(key);
+
+        if (current == NearCache.ABSENT || !Objects.equals(current, value)) {
+          return false;
+        }
+
+        map.remove(key);
+
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+
+    return atomically("replace", key, new RdbmsMap.Operation<Boolean>() {
+
+      @Override
+      public Boolean execute() {
+
+        Object current = map.read(key);
+
+        if (current == NearCache.ABSENT || !Objects.equals(current, oldValue)) {
+          return false;
+        }
+
+        map.put(key, newValue);
+
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public V replace(final K key, final V value) {
+
+    return atomically("replace", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        Object current = map.read(key);
+
+        if (current == NearCache.ABSENT) {
+          return null;
+        }
+
+        map.put(key, value);
+
+        return (V) current;
+      }
+    });
+  }
+
+  @Override
+  public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+
+    return atomically("computeIfAbsent", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        V current = valueOf(map.read(key));
+
+        if (null != current) {
+          return current;
+        }
+
+        V value = mappingFunction.apply(key);
+
+        if (null != value) {
+          map.put(key, value);
+        }
+
+        return value;
+      }
+    });
+  }
+
+  @Override
+  public V computeIfPresent(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+
+    return atomically("computeIfPresent", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        V current = valueOf(map.read(key));
+
+        if (null == current) {
+          return null;
+        }
+
+        return store(key, remappingFunction.apply(key, current));
+      }
+    });
+  }
+
+  @Override
+  public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+
+    return atomically("compute", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        Object current = map.read(key);
+        V value = remappingFunction.apply(key, valueOf(current));
+
+        if (null == value && current == NearCache.ABSENT) {
+          return null;
+        }
+
+        return store(key, value);
+      }
+    });
+  }
+
+  @Override
+  public V merge(final K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+
+    if (null == value) {
+      throw new NullPointerException("value");
+    }
+
+    return atomically("merge", key, new RdbmsMap.Operation<V>() {
+
+      @Override
+      public V execute() {
+
+        V current = valueOf(map.read(key));
+
+        return store(key, null == current ? value : remappingFunction.apply(current, value));
+      }
+    });
+  }
+
+  private <T> T atomically(final String name, final Object key, final RdbmsMap.Operation<T> operation) {
+
+    return map.atomically(name, Collections.singleton(key), operation);
+  }
+
+  // puts value, or removes the key if value is null, returning value
+  private V store(final K key, final V value) {
+
+    if (null == value) {
+      map.remove(key);
+    } else {
+      map.put(key, value);
+    }
+
+    return value;
+  }
+
+  private static <V> V valueOf(final Object value) {
+
+    return value == NearCache.ABSENT ? null : (V) value;
+  }
+}
@@ -1,576 +1,3198 @@
 package org.adrianwalker.rdbmsmap;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import javax.sql.DataSource;
 
-public final class RdbmsMap<K, V> implements Map<K, V> {
+public final class RdbmsMap<K, V> implements Map<K, V>, AutoCloseable {
 
-  // object types
-  private static final String OBJECT_NULL_TYPE = "0";
-  private static final String OBJECT_INTEGER_TYPE = "I";
-  private static final String OBJECT_BOOLEAN_TYPE = "B";
-  private static final String OBJECT_NUMERIC_TYPE = "N";
-  private static final String OBJECT_TEXT_TYPE = "T";
-  private static final String OBJECT_MAP_TYPE = "M";
   // entry types
   private static final String ENTRY_KEY_TYPE = "K";
   private static final String ENTRY_VALUE_TYPE = "V";
-  // object types
+  // object table placeholders
   private static final String OBJECT_TABLE = "object_table";
-  private static final String OBJECT_NULL_TABLE = "object_null";
-  private static final String OBJECT_INTEGER_TABLE = "object_integer";
-  private static final String OBJECT_BOOLEAN_TABLE = "object_boolean";
-  private static final String OBJECT_NUMERIC_TABLE = "object_numeric";
-  private static final String OBJECT_TEXT_TABLE = "object_text";
-  private static final String OBJECT_MAP_TABLE = "object_map";
+  private static final String KEY_TABLE = "key_table";
+  private static final String VALUE_TABLE = "value_table";
+  // key lookups, by object table or by key hash
+  private static final String KEY_PREDICATE = "key_predicate";
+  private static final String KEY_LOOKUP = "entry.id = (select entry_id from " + KEY_TABLE + " where map_id = ? and type = ? and value = ?)";
+  private static final String KEY_HASH_LOOKUP = "entry.map_id = ? and entry.key_hash = ?";
+  private static final String KEY_HASH_CHECK = " and exists(select 1 from " + KEY_TABLE + " where entry_id = entry.id and type = ? and value = ?)";
   // inserts
-  private static final String INSERT_MAP = "insert into map(id) values(nextval('map_id_seq')) returning id";
-  private static final String INSERT_ENTRY = "insert into entry(id, map_id, key_type, value_type) values(nextval('entry_id_seq'), ?, ?, ?) returning id";
-  private static final String INSERT_OBJECT = "insert into " + OBJECT_TABLE + "(id, entry_id, map_id, type, value) values(nextval('" + OBJECT_TABLE + "_id_seq'), ?, ?, ?, ?) returning id";
+  private static final String INSERT_MAP = "insert into map(id, storage) values(nextval('map_id_seq'), ?) returning id";
+  private static final String SELECT_ENTRY_IDS = "select nextval('entry_id_seq') from generate_series(1, ?)";
+  private static final String INSERT_ENTRY = "insert into entry(id, map_id, key_type, value_type, key_hash) values(?, ?, ?, ?, ?)";
+  private static final String INSERT_OBJECT = "insert into " + OBJECT_TABLE + "(id, entry_id, map_id, type, value) values(nextval('" + OBJECT_TABLE + "_id_seq'), ?, ?, ?, ?)";
   // counts
-  private static final String COUNT_ENTRIES = "select count(*) from entry where map_id = ?";
+  // maintained by the entry_count triggers
+  private static final String COUNT_ENTRIES = "select coalesce(sum(delta), 0) from map_entry_count where map_id = ?";
+  private static final String HAS_ENTRIES = "select exists(select 1 from entry where map_id = ?)";
   private static final String COUNT_OBJECT = "select count(*) from " + OBJECT_TABLE + " where map_id = ? and type = ? and value = ?";
+  private static final String COUNT_KEY = "select count(*) from entry where " + KEY_PREDICATE;
   // selects
-  private static final String SELECT_ENTRIES = "select id, key_type, value_type from entry where map_id = ?";
-  private static final String SELECT_ENTRY_BY_OBJECT = "select value_type, id from entry where id = (select entry_id from " + OBJECT_TABLE + " where map_id = ? and type = ? and value = ?)";
-  private static final String SELECT_OBJECT_BY_ENTRY = "select value from " + OBJECT_TABLE + " where map_id = ? and type = ? and entry_id = ?";
-  private static final String SELECT_OBJECT = "select value from " + OBJECT_TABLE + " where map_id = ? and type = ?";
+  private static final String SELECT_STORAGE = "select storage from map where id = ?";
+  private static final String ENTRIES = " from entry" + objectJoins("entry", ENTRY_KEY_TYPE, "key_") + objectJoins("entry", ENTRY_VALUE_TYPE, "value_") + " where entry.map_id = ?";
+  private static final String SELECT_ENTRIES = "select entry.id, entry.key_type, " + objectColumns("key_") + ", entry.value_type, " + objectColumns("value_") + ENTRIES;
+  // the ids of a map and the maps nested in its values, to a depth, without following cycles
+  private static final String SELECT_TREE_IDS = "with recursive tree(map_id, depth, path) as ("
+          + "select ?, 0, array[?] "
+          + "union all "
+          + "select map_value.value, tree.depth + 1, tree.path || map_value.value from tree join ("
+          + "select map_id, value from object_map where type = '" + ENTRY_VALUE_TYPE + "' "
+          + "union all select map_id, value_map from single_entry where value_map is not null) map_value on map_value.map_id = tree.map_id "
+          + "where tree.depth < ? and map_value.value <> all(tree.path))";
+  // every map in the tree is returned, with null entry columns for empty maps
+  private static final String SELECT_TREE = SELECT_TREE_IDS + " select tree.map_id, entry.key_type, " + objectColumns("key_") + ", entry.value_type, " + objectColumns("value_") + " from (select distinct map_id from tree) tree left join entry on entry.map_id = tree.map_id" + objectJoins("entry", ENTRY_KEY_TYPE, "key_") + objectJoins("entry", ENTRY_VALUE_TYPE, "value_")
+          + " union all select map_id, key_type, " + singleColumns("key_") + ", value_type, " + singleColumns("value_") + " from single_entry where map_id in (select map_id from tree)";
+  // copies, source rows carry the id and map id of the entry they are copied to
+  private static final String COPY_ENTRIES = "new_entry as (insert into entry(id, map_id, key_type, value_type, key_hash) select new_id, new_map_id, key_type, value_type, key_hash from source)";
+  private static final String MERGE_ENTRIES = "with source as (select id, nextval('entry_id_seq') as new_id, ?::integer as new_map_id, key_type, value_type, key_hash from entry where map_id = ?), "
+          + COPY_ENTRIES + copyObjects(false) + " select count(*) from source";
+  private static final String COPY_TREE = SELECT_TREE_IDS + ", "
+          + "maps as (select map_id as old_id, nextval('map_id_seq') as new_id from (select distinct map_id from tree) tree), "
+          + "new_map as (insert into map(id, storage) select maps.new_id, map.storage from maps join map on map.id = maps.old_id), "
+          + "source as (select entry.id, nextval('entry_id_seq') as new_id, maps.new_id as new_map_id, entry.key_type, entry.value_type, entry.key_hash from entry join maps on entry.map_id = maps.old_id), "
+          + COPY_ENTRIES + copyObjects(true) + ", "
+          + "copy_single_entry as (insert into single_entry(map_id, key_hash, key_type, " + singleColumnList("key_") + ", value_type, " + singleColumnList("value_") + ") "
+          + "select maps.new_id, single.key_hash, single.key_type, " + singleColumnList("single.key_") + ", single.value_type, " + singleColumnList("single.value_").replace("single.value_map", "coalesce(value_maps.new_id, single.value_map)") + " "
+          + "from single_entry single join maps on maps.old_id = single.map_id left join maps value_maps on value_maps.old_id = single.value_map)"
+          + " select new_id from maps where old_id = ?";
+  private static final String DELETE_MATCHING_KEYS = "delete from entry where id in (" + matchingKeys() + ")";
+  private static final String DELETE_MATCHING_KEY_HASHES = "delete from entry using entry source where entry.map_id = ? and source.map_id = ? and entry.key_hash = source.key_hash";
+  private static final String SELECT_VALUE_BY_KEY = "select entry.value_type, " + objectColumns("value_") + " from entry" + objectJoins("entry", ENTRY_VALUE_TYPE, "value_") + " where " + KEY_PREDICATE;
+  // multi key lookups, the keys of each type are bound as an array and matched to their position in it
+  private static final String REQUEST_VALUE = "request_value";
+  private static final String KEYS_REQUEST = "unnest(?) with ordinality as request(value, index) join " + KEY_TABLE + " request_key on request_key.value = " + REQUEST_VALUE + " and request_key.map_id = ? and request_key.type = '" + ENTRY_KEY_TYPE + "'";
+  private static final String SELECT_VALUES_BY_KEYS = "select request.index, entry.value_type, " + objectColumns("value_") + " from " + KEYS_REQUEST + " join entry on entry.id = request_key.entry_id" + objectJoins("entry", ENTRY_VALUE_TYPE, "value_");
+  private static final String SELECT_KEY_INDEXES = "select request.index from " + KEYS_REQUEST;
   // deletes
   private static final String DELETE_ENTRIES = "delete from entry where map_id = ?";
-  private static final String DELETE_ENTRY_BY_OBJECT = "delete from entry where id = (select entry_id from " + OBJECT_TABLE + " where map_id = ? and type = ? and value = ?)";
+  private static final String DELETE_ENTRY = "delete from entry where id = ?";
+  private static final String DELETE_ENTRY_BY_KEY = "delete from entry where " + KEY_PREDICATE;
+  private static final String DELETE_ENTRIES_BY_KEYS = "delete from entry where id in (select request_key.entry_id from " + KEYS_REQUEST + ")";
+  // sql states of a concurrent insert of the same key, and of a deadlock
+  private static final String UNIQUE_VIOLATION = "23505";
+  private static final String DEADLOCK_DETECTED = "40P01";
+  // reruns of a transaction rolled back by a concurrent writer, entries which
+  // conflict with each other would otherwise be rerun forever
+  private static final int RETRIES = 16;
+  // locks, taken in the order of the array by one statement for all the keys
+  private static final String LOCK_KEYS = "select count(pg_advisory_xact_lock(?, lock_id)) from unnest(?) lock_id";
+  // map locks, taken by putAll, are keyed on the map id alone
+  private static final String LOCK_MAP = "select pg_advisory_xact_lock(?)";
+  private static final String LOCK_MAP_SHARED = "select pg_advisory_xact_lock_shared(?)";
+  private static final int LOCKED_KEYS = 1024;
+  // the first statement of a transaction reading one snapshot
+  private static final String READ_SNAPSHOT = "set transaction isolation level repeatable read, read only";
   // specific cases for nulls
-  private static final String INSERT_OBJECT_NULL = "insert into " + OBJECT_NULL_TABLE + "(id, entry_id, map_id, type) values(nextval('" + OBJECT_NULL_TABLE + "_id_seq'), ?, ?, ?) returning id";
-  private static final String COUNT_OBJECT_NULL = "select count(*) from " + OBJECT_NULL_TABLE + " where map_id = ? and type = ?";
-  private static final String SELECT_ENTRY_BY_OBJECT_NULL = "select value_type, id from entry where id = (select entry_id from " + OBJECT_NULL_TABLE + " where map_id = ? and type = ?)";
-  private static final String SELECT_OBJECT_NULL_BY_ENTRY = "select null from " + OBJECT_NULL_TABLE + " where map_id = ? and type = ? and entry_id = ?";
-  private static final String SELECT_OBJECT_NULL = "select null from " + OBJECT_NULL_TABLE + " where map_id = ? and type = ?";
-  private static final String DELETE_ENTRY_BY_OBJECT_NULL = "delete from entry where id = (select entry_id from " + OBJECT_NULL_TABLE + " where map_id = ? and type = ?)";
-
-  private final Connection connection;
+  private static final String INSERT_OBJECT_NULL = "insert into " + OBJECT_TABLE + "(id, entry_id, map_id, type) values(nextval('" + OBJECT_TABLE + "_id_seq'), ?, ?, ?)";
+  private static final String COUNT_OBJECT_NULL = "select count(*) from " + OBJECT_TABLE + " where map_id = ? and type = ?";
+  // upserts, previous values are read from the statement snapshot before the cascade deletes them
+  private static final String DELETE_PREVIOUS_ENTRY = "previous as (delete from entry where " + KEY_PREDICATE + " returning id, value_type)";
+  // the new entry is inserted after the previous entry is deleted, so a unique key hash is never seen twice
+  // the cascade only removes the previous key at the end of the statement, after the new key is checked against the unique key index
+  private static final String DELETE_PREVIOUS_KEY = "previous_key as (delete from " + KEY_TABLE + " where entry_id in (select id from previous) and type = '" + ENTRY_KEY_TYPE + "' returning id)";
+  private static final String INSERT_NEW_ENTRY = "new_entry as (insert into entry(id, map_id, key_type, value_type, key_hash) select nextval('entry_id_seq'), ?, ?, ?, ? from (select count(*) from previous_key) deleted returning id)";
+  private static final String INSERT_NEW_KEY = "new_key as (insert into " + KEY_TABLE + "(id, entry_id, map_id, type, value) select nextval('" + KEY_TABLE + "_id_seq'), id, ?, ?, ? from new_entry)";
+  private static final String INSERT_NEW_VALUE = "new_value as (insert into " + VALUE_TABLE + "(id, entry_id, map_id, type, value) select nextval('" + VALUE_TABLE + "_id_seq'), id, ?, ?, ? from new_entry)";
+  private static final String SELECT_PREVIOUS_VALUE = "select previous.value_type, " + objectColumns("previous_") + " from previous" + objectJoins("previous", ENTRY_VALUE_TYPE, "previous_");
+  private static final String UPSERT = "with " + DELETE_PREVIOUS_ENTRY + ", " + DELETE_PREVIOUS_KEY + ", " + INSERT_NEW_ENTRY + ", " + INSERT_NEW_KEY + ", " + INSERT_NEW_VALUE + " " + SELECT_PREVIOUS_VALUE;
+  private static final String REMOVE = "with " + DELETE_PREVIOUS_ENTRY + " " + SELECT_PREVIOUS_VALUE;
+  // the key is inserted first, the entry and value only if the key's unique index does not already hold it,
+  // the key's foreign key on the entry is checked at the end of the statement. The key's lock is held, as
+  // RdbmsConcurrentMap's operations do, while inserting.
+  private static final String INSERT_IF_ABSENT = "with locked as (select pg_advisory_xact_lock(?, ?)), new_entry_id as (select nextval('entry_id_seq') id from locked), "
+          + "new_key as (insert into " + KEY_TABLE + "(id, entry_id, map_id, type, value) select nextval('" + KEY_TABLE + "_id_seq'), id, ?, ?, ? from new_entry_id on conflict do nothing returning entry_id), "
+          + "new_entry as (insert into entry(id, map_id, key_type, value_type, key_hash) select entry_id, ?, ?, ?, ? from new_key returning id), "
+          + INSERT_NEW_VALUE + " select count(*) from new_key";
+  // single table storage, keys are found by hash, compared as well unless the hash is exact
+  private static final String KEY_COLUMN = "key_column";
+  private static final String SINGLE_KEY_LOOKUP = "map_id = ? and key_hash = ?";
+  private static final String SINGLE_KEY_CHECK = " and " + KEY_COLUMN + " = ?";
+  private static final String SINGLE_ENTRIES = " from single_entry where map_id = ?";
+  private static final String SINGLE_SELECT_ENTRIES = "select id, key_type, " + singleColumns("key_") + ", value_type, " + singleColumns("value_") + SINGLE_ENTRIES;
+  private static final String SINGLE_HAS_ENTRIES = "select exists(select 1 from single_entry where map_id = ?)";
+  private static final String SINGLE_COUNT_KEY = "select count(*) from single_entry where " + KEY_PREDICATE;
+  private static final String SINGLE_SELECT_VALUE_BY_KEY = "select value_type, " + singleColumns("value_") + " from single_entry where " + KEY_PREDICATE;
+  private static final String SINGLE_DELETE_ENTRY_BY_KEY = "delete from single_entry where " + KEY_PREDICATE;
+  private static final String SINGLE_REMOVE = "delete from single_entry where " + KEY_PREDICATE + " returning value_type, " + singleColumns("value_");
+  private static final String SINGLE_DELETE_ENTRIES = "delete from single_entry where map_id = ?";
+  private static final String SINGLE_DELETE_ENTRY = "delete from single_entry where id = ?";
+  // every column is replaced, clearing the columns of the previous key and value types
+  private static final String SINGLE_UPDATE = " on conflict (map_id, key_hash) do update set key_type = excluded.key_type, " + singleExcluded("key_") + ", value_type = excluded.value_type, " + singleExcluded("value_");
+  // only if the key is the same, so a different key with the same hash is neither inserted nor updated
+  private static final String SINGLE_REPLACE = SINGLE_UPDATE
+          + " where single_entry.key_type = excluded.key_type and (" + singleColumnList("single_entry.key_") + ") is not distinct from (" + singleColumnList("excluded.key_") + ")";
+  // single table inserts, placeholders for the columns and parameters of the key and value types
+  private static final String INSERT_COLUMNS = "insert_columns";
+  private static final String INSERT_PARAMETERS = "insert_parameters";
+  // the previous entry is locked, so the value returned is the one replaced. Nothing is written on a conflict
+  // with any other entry, a key inserted since the statement began or a different key with the same hash
+  private static final String SINGLE_UPSERT = "with previous as (select id, value_type, " + singleColumnList("value_") + " from single_entry where " + KEY_PREDICATE + " for update), "
+          + "written as (insert into single_entry(" + INSERT_COLUMNS + ") values(" + INSERT_PARAMETERS + ")" + SINGLE_UPDATE + " where single_entry.id in (select id from previous) returning id) "
+          + "select (select count(*) from written), previous.value_type, " + singleColumns("previous.value_") + " from (select 1) one left join previous on true";
+  private static final String SINGLE_INSERT = "insert into single_entry(" + INSERT_COLUMNS + ") values(" + INSERT_PARAMETERS + ")" + SINGLE_REPLACE;
+  // holds the key's lock, as RdbmsConcurrentMap's operations do, while inserting
+  private static final String SINGLE_INSERT_IF_ABSENT = "insert into single_entry(" + INSERT_COLUMNS + ") select " + INSERT_PARAMETERS
+          + " from (select pg_advisory_xact_lock(?, ?)) locked on conflict (map_id, key_hash) do nothing";
+  // counts the source entries and those written from the same snapshot
+  private static final String SINGLE_MERGE = "with source as (select key_hash, key_type, " + singleColumnList("key_") + ", value_type, " + singleColumnList("value_") + " from single_entry where map_id = ?), "
+          + "merged as (insert into single_entry(map_id, key_hash, key_type, " + singleColumnList("key_") + ", value_type, " + singleColumnList("value_") + ") "
+          + "select ?, key_hash, key_type, " + singleColumnList("key_") + ", value_type, " + singleColumnList("value_") + " from source" + SINGLE_REPLACE + " returning id) "
+          + "select (select count(*) from source), (select count(*) from merged)";
+  private static final String SINGLE_KEYS_REQUEST = "unnest(?) with ordinality as request(value, index) join single_entry request_key on request_key." + KEY_COLUMN + " = " + REQUEST_VALUE + " and request_key.map_id = ?";
+  private static final String SINGLE_SELECT_VALUES_BY_KEYS = "select request.index, request_key.value_type, " + singleColumns("request_key.value_") + " from " + SINGLE_KEYS_REQUEST;
+  private static final String SINGLE_SELECT_KEY_INDEXES = "select request.index from " + SINGLE_KEYS_REQUEST;
+  private static final String SINGLE_DELETE_ENTRIES_BY_KEYS = "delete from single_entry where id in (select request_key.id from " + SINGLE_KEYS_REQUEST + ")";
+  // per object type sql
+  private static final Map<ObjectType, String> INSERT_OBJECT_SQL = perType(INSERT_OBJECT, INSERT_OBJECT_NULL);
+  private static final Map<ObjectType, String> COUNT_OBJECT_SQL = perType(COUNT_OBJECT, COUNT_OBJECT_NULL);
+  private static final Map<ObjectType, String> COUNT_KEY_SQL = perKeyType(COUNT_KEY, StorageMode.STANDARD);
+  private static final Map<ObjectType, String> COUNT_KEY_HASH_SQL = perKeyType(COUNT_KEY, StorageMode.KEY_HASH);
+  private static final Map<ObjectType, String> SELECT_VALUE_BY_KEY_SQL = perKeyType(SELECT_VALUE_BY_KEY, StorageMode.STANDARD);
+  private static final Map<ObjectType, String> SELECT_VALUE_BY_KEY_HASH_SQL = perKeyType(SELECT_VALUE_BY_KEY, StorageMode.KEY_HASH);
+  private static final Map<ObjectType, String> DELETE_ENTRY_BY_KEY_SQL = perKeyType(DELETE_ENTRY_BY_KEY, StorageMode.STANDARD);
+  private static final Map<ObjectType, String> DELETE_ENTRY_BY_KEY_HASH_SQL = perKeyType(DELETE_ENTRY_BY_KEY, StorageMode.KEY_HASH);
+  private static final Map<ObjectType, String> REMOVE_SQL = perKeyType(REMOVE, StorageMode.STANDARD);
+  private static final Map<ObjectType, String> REMOVE_KEY_HASH_SQL = perKeyType(REMOVE, StorageMode.KEY_HASH);
+  private static final Map<ObjectType, Map<ObjectType, String>> UPSERT_SQL = perKeyAndValueType(UPSERT, StorageMode.STANDARD);
+  private static final Map<ObjectType, Map<ObjectType, String>> UPSERT_KEY_HASH_SQL = perKeyAndValueType(UPSERT, StorageMode.KEY_HASH);
+  private static final Map<ObjectType, Map<ObjectType, String>> INSERT_IF_ABSENT_SQL = perKeyAndValueType(INSERT_IF_ABSENT, StorageMode.STANDARD);
+  private static final Map<ObjectType, String> SELECT_VALUES_BY_KEYS_SQL = perArrayType(SELECT_VALUES_BY_KEYS);
+  private static final Map<ObjectType, String> SELECT_KEY_INDEXES_SQL = perArrayType(SELECT_KEY_INDEXES);
+  private static final Map<ObjectType, String> DELETE_ENTRIES_BY_KEYS_SQL = perArrayType(DELETE_ENTRIES_BY_KEYS);
+  private static final Map<ObjectType, String> SINGLE_COUNT_KEY_SQL = perSingleKeyType(SINGLE_COUNT_KEY);
+  private static final Map<ObjectType, String> SINGLE_SELECT_VALUE_BY_KEY_SQL = perSingleKeyType(SINGLE_SELECT_VALUE_BY_KEY);
+  private static final Map<ObjectType, String> SINGLE_DELETE_ENTRY_BY_KEY_SQL = perSingleKeyType(SINGLE_DELETE_ENTRY_BY_KEY);
+  private static final Map<ObjectType, String> SINGLE_REMOVE_SQL = perSingleKeyType(SINGLE_REMOVE);
+  private static final Map<ObjectType, String> SINGLE_COUNT_VALUE_SQL = perSingleValueType();
+  private static final Map<ObjectType, Map<ObjectType, String>> SINGLE_UPSERT_SQL = perSingleKeyAndValueType(SINGLE_UPSERT);
+  private static final Map<ObjectType, Map<ObjectType, String>> SINGLE_INSERT_SQL = perSingleKeyAndValueType(SINGLE_INSERT);
+  private static final Map<ObjectType, Map<ObjectType, String>> SINGLE_INSERT_IF_ABSENT_SQL = perSingleKeyAndValueType(SINGLE_INSERT_IF_ABSENT);
+  private static final Map<ObjectType, String> SINGLE_SELECT_VALUES_BY_KEYS_SQL = perArrayType(SINGLE_SELECT_VALUES_BY_KEYS);
+  private static final Map<ObjectType, String> SINGLE_SELECT_KEY_INDEXES_SQL = perArrayType(SINGLE_SELECT_KEY_INDEXES);
+  private static final Map<ObjectType, String> SINGLE_DELETE_ENTRIES_BY_KEYS_SQL = perArrayType(SINGLE_DELETE_ENTRIES_BY_KEYS);
+  // change notifications, sent when the transaction commits
+  private static final String PUBLISH_CHANGES = "select pg_notify(?, payload) from unnest(?) payload";
+  private static final String CHANNEL_PREFIX = "rdbms_map_";
+  // notification payloads must be shorter than 8000 bytes
+  private static final int MAXIMUM_PAYLOAD = 7999;
+  // select entries columns, each type code is followed by its object columns
+  private static final int ENTRY_ID_COLUMN = 1;
+  private static final int MAP_ID_COLUMN = 1;
+  private static final int KEY_TYPE_COLUMN = 2;
+  private static final int VALUE_TYPE_COLUMN = KEY_TYPE_COLUMN + ObjectType.values().length + 1;
+  // number of rows written per batch by putAll
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  // number of rows read per round trip by iterators
+  private static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private final Sessions sessions;
   private final int mapId;
-
+  private volatile StorageMode storageMode;
+  private volatile boolean closed;
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+  private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+  private volatile NearCache<K, V> nearCache;
+  private volatile MapListener listener;
+  private volatile Codec codec;
+  private volatile boolean publishing;
+  private ChangeFeed<K> changeFeed;
+  private final ThreadLocal<OperationStats> operationStats = new ThreadLocal<OperationStats>();
+
+  /*
+   * Creates a map using a single connection. The map must only be used by
+   * one thread at a time.
+   */
   public RdbmsMap(final Connection connection) {
 
-    this.connection = connection;
+    this(connection, StorageMode.STANDARD);
+  }
 
-    try {
-      this.mapId = inserMap();
+  public RdbmsMap(final Connection connection, final StorageMode storageMode) {
 
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
-    }
+    this(connect(connection), storageMode);
+  }
+
+  /*
+   * Creates a map which borrows a connection from the data source for each
+   * operation. The map can be used by any number of threads at once.
+   * Statements are cached for each connection a pool hands out, and reused
+   * by later operations which borrow it. Without a pool every operation
+   * borrows a new connection and prepares its statements again.
+   */
+  public RdbmsMap(final DataSource dataSource) {
+
+    this(dataSource, StorageMode.STANDARD);
+  }
+
+  public RdbmsMap(final DataSource dataSource, final StorageMode storageMode) {
+
+    this(new Sessions(dataSource), storageMode);
+  }
+
+  private RdbmsMap(final Sessions sessions, final StorageMode storageMode) {
+
+    this.sessions = sessions;
+    this.storageMode = storageMode;
+    this.mapId = execute("create", new Operation<Integer>() {
+
+      @Override
+      public Integer execute() throws SQLException {
+        return inserMap();
+      }
+    });
   }
 
-  private RdbmsMap(final Connection connection, final int mapId) {
+  private RdbmsMap(final Sessions sessions, final int mapId) {
 
-    this.connection = connection;
+    this.sessions = sessions;
     this.mapId = mapId;
   }
 
+  /*
+   * Opens an existing map, such as one created by another process, with the
+   * connection. Throws IllegalStateException if there is no map with the id.
+   */
+  public static <K, V> RdbmsMap<K, V> open(final Connection connection, final int mapId) {
+
+    return open(connect(connection), mapId);
+  }
+
+  public static <K, V> RdbmsMap<K, V> open(final DataSource dataSource, final int mapId) {
+
+    return open(new Sessions(dataSource), mapId);
+  }
+
   public int getMapId() {
     return mapId;
   }
 
+  public StorageMode getStorageMode() {
+
+    // maps read as values of other maps load their mode when first needed
+    if (null == storageMode) {
+      storageMode = execute("getStorageMode", new Operation<StorageMode>() {
+
+        @Override
+        public StorageMode execute() throws SQLException {
+          return selectStorageMode();
+        }
+      });
+    }
+
+    return storageMode;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(final int batchSize) {
+
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batch size must be positive");
+    }
+
+    this.batchSize = batchSize;
+  }
+
+  public int getFetchSize() {
+    return fetchSize;
+  }
+
+  public void setFetchSize(final int fetchSize) {
+
+    if (fetchSize < 1) {
+      throw new IllegalArgumentException("fetch size must be positive");
+    }
+
+    this.fetchSize = fetchSize;
+  }
+
+  public NearCache<K, V> getNearCache() {
+    return nearCache;
+  }
+
+  /*
+   * Sets a cache of keys and values to be checked before the database, or
+   * null to read every key from the database.
+   */
+  public void setNearCache(final NearCache<K, V> nearCache) {
+    this.nearCache = nearCache;
+  }
+
+  public Codec getCodec() {
+    return codec;
+  }
+
+  /*
+   * Sets a codec to store keys and values of types which have no table of
+   * their own. Without one, writing them throws IllegalArgumentException.
+   */
+  public void setCodec(final Codec codec) {
+    this.codec = codec;
+  }
+
+  public MapListener getListener() {
+    return listener;
+  }
+
+  /*
+   * Sets a listener notified after each operation which goes to the
+   * database, or null to stop counting.
+   */
+  public void setListener(final MapListener listener) {
+    this.listener = listener;
+  }
+
+  public boolean isPublishing() {
+    return publishing;
+  }
+
+  /*
+   * Sets whether changes made through this map are published to the change
+   * listeners of every map with its id, in any process. Each change is one
+   * notification, sent when the transaction making it commits, costing an
+   * extra statement per write.
+   */
+  public void setPublishing(final boolean publishing) {
+    this.publishing = publishing;
+  }
+
+  /*
+   * Adds a listener for the changes published to this map by any process.
+   * Listeners are called on a background thread, which listens with a
+   * connection of its own, so the map must be on a data source. Keys of
+   * types stored by a codec are decoded with this map's codec.
+   */
+  public synchronized void addChangeListener(final ChangeListener<K> listener) {
+
+    if (closed) {
+      throw new IllegalStateException("map " + mapId + " is closed");
+    }
+
+    if (!isShared()) {
+      throw new IllegalStateException("change listeners need a map on a data source");
+    }
+
+    if (null == changeFeed) {
+      try {
+        changeFeed = new ChangeFeed<K>(this, sessions.getDataSource(), CHANNEL_PREFIX + mapId);
+      } catch (final SQLException sqle) {
+        throw new RuntimeException(sqle);
+      }
+    }
+
+    changeFeed.add(listener);
+  }
+
+  // stops the change feed, and releases its connection, when the last listener is removed
+  public synchronized void removeChangeListener(final ChangeListener<K> listener) {
+
+    if (null == changeFeed) {
+      return;
+    }
+
+    changeFeed.remove(listener);
+
+    if (changeFeed.isEmpty()) {
+      changeFeed.close();
+      changeFeed = null;
+    }
+  }
+
+  /*
+   * Releases this map's hold on the prepared statements cached for its
+   * connection, the statements are closed once every map using the
+   * connection has been closed. The connection itself is left open. Maps on
+   * a data source hold nothing between operations, and maps read as values
+   * share the hold of the map they were read from.
+   */
   @Override
-  public void clear() {
+  public void close() {
+
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    synchronized (this) {
+      if (null != changeFeed) {
+        changeFeed.close();
+        changeFeed = null;
+      }
+    }
 
     try {
-      delete();
+      sessions.close();
     } catch (final SQLException sqle) {
       throw new RuntimeException(sqle);
     }
   }
 
-  @Override
-  public boolean containsKey(final Object key) {
+  /*
+   * Runs work in one transaction, committed when the work returns and rolled
+   * back if it throws. Every operation the work makes on this map, and on
+   * other maps using the same connection or data source, uses the same
+   * connection. Work run inside another transaction joins it.
+   */
+  public <T> T inTransaction(final Work<T> work) {
 
     try {
-      return countObjects(key, ENTRY_KEY_TYPE) > 0;
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
+      return transaction("inTransaction", new Operation<T>() {
+
+        @Override
+        public T execute() {
+          return work.execute();
+        }
+      });
+    } catch (final RuntimeException re) {
+      // cached writes may have been rolled back
+      if (null != nearCache) {
+        nearCache.clear();
+      }
+
+      throw re;
     }
   }
 
   @Override
-  public boolean containsValue(final Object value) {
+  public void clear() {
 
     try {
-      return countObjects(value, ENTRY_VALUE_TYPE) > 0;
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
+      execute("clear", new Operation<Void>() {
+
+        @Override
+        public Void execute() throws SQLException {
+          delete();
+          publish(ChangeType.CLEAR, null);
+          return null;
+        }
+      });
+    } finally {
+      if (null != nearCache) {
+        nearCache.clear();
+      }
     }
   }
 
   @Override
-  public Set<Entry<K, V>> entrySet() {
+  public boolean containsKey(final Object key) {
 
-    try {
-      return selectEntries();
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
+    if (null != nearCache) {
+      return get("containsKey", key, true) != NearCache.ABSENT;
     }
+
+    return execute("containsKey", new Operation<Boolean>() {
+
+      @Override
+      public Boolean execute() throws SQLException {
+        return countKeys(key) > 0;
+      }
+    });
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+
+    return execute("containsValue", new Operation<Boolean>() {
+
+      @Override
+      public Boolean execute() throws SQLException {
+        return countObjects(value, ENTRY_VALUE_TYPE) > 0;
+      }
+    });
+  }
+
+  /*
+   * Returns a view of the map's entries. Iterators read fetchSize entries per
+   * query and hold no transaction or connection between queries, so they
+   * need not be read to the end.
+   */
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+
+    return new EntrySet();
   }
 
   @Override
   public V get(final Object key) {
 
-    try {
-      return select(key);
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
-    }
+    Object value = get("get", key, null != nearCache);
+
+    return value == NearCache.ABSENT ? null : (V) value;
   }
 
   @Override
   public Set<K> keySet() {
 
-    try {
-      return (Set<K>) selectObjects(ENTRY_KEY_TYPE);
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
-    }
+    return new KeySet();
   }
 
   @Override
   public V put(final K key, final V value) {
 
-    Object previousValue = remove(key);
+    long stamp = stamp();
+    V previousValue;
 
     try {
-      insert(key, value);
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
+      previousValue = execute("put", new Operation<V>() {
+
+        @Override
+        public V execute() throws SQLException {
+
+          V previousValue = upsert(key, value);
+          publish(ChangeType.PUT, Collections.singleton(key));
+
+          return previousValue;
+        }
+      });
+    } catch (final RuntimeException re) {
+      invalidate(key);
+      throw re;
     }
 
-    return (V) previousValue;
+    cache(key, value, stamp);
+
+    return previousValue;
   }
 
   @Override
   public void putAll(final Map<? extends K, ? extends V> m) {
 
-    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-      put(entry.getKey(), entry.getValue());
+    if (m.isEmpty()) {
+      return;
+    }
+
+    try {
+      transaction("putAll", new Operation<Void>() {
+
+        @Override
+        public Void execute() throws SQLException {
+          insertAll(m);
+          publish(ChangeType.PUT, m.keySet());
+          return null;
+        }
+      }, RETRIES);
+    } finally {
+      for (K key : m.keySet()) {
+        invalidate(key);
+      }
     }
   }
 
   @Override
   public V remove(final Object key) {
 
+    long stamp = stamp();
+    V previousValue;
+
     try {
-      if (countObjects(key, ENTRY_KEY_TYPE) > 0) {
-        V value = select(key);
-        delete(key, ENTRY_KEY_TYPE);
+      previousValue = execute("remove", new Operation<V>() {
 
-        return value;
-      }
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
+        @Override
+        public V execute() throws SQLException {
+
+          V previousValue = delete(key);
+          publish(ChangeType.REMOVE, Collections.singleton(key));
+
+          return previousValue;
+        }
+      });
+    } catch (final RuntimeException re) {
+      invalidate(key);
+      throw re;
     }
 
-    return null;
+    cache(key, NearCache.ABSENT, stamp);
+
+    return previousValue;
   }
 
   @Override
   public int size() {
 
-    try {
-      return countEntries();
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
-    }
+    return execute("size", new Operation<Integer>() {
+
+      @Override
+      public Integer execute() throws SQLException {
+        return countEntries();
+      }
+    });
   }
 
   @Override
   public boolean isEmpty() {
 
-    return size() == 0;
+    return !execute("isEmpty", new Operation<Boolean>() {
+
+      @Override
+      public Boolean execute() throws SQLException {
+        return hasEntries();
+      }
+    });
   }
 
   @Override
   public Collection<V> values() {
 
-    try {
-      return selectObjects(ENTRY_VALUE_TYPE);
-    } catch (final SQLException sqle) {
-      throw new RuntimeException(sqle);
-    }
+    return new Values();
   }
 
-  private PreparedStatement prepareStatement(final String sql) throws SQLException {
-
-    return connection.prepareStatement(sql);
-  }
+  /*
+   * Returns the keys in the map mapped to their values. The keys of each
+   * type are read with one query, rather than one query per key.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
 
-  private int inserMap() throws SQLException {
+    Map<K, V> values = new HashMap<K, V>();
+    final List<K> misses = new ArrayList<K>();
 
-    PreparedStatement insertMap = prepareStatement(INSERT_MAP);
+    for (K key : keys) {
+      Object value = null == nearCache ? NearCache.MISS : nearCache.lookup(key);
 
-    ResultSet result = insertMap.executeQuery();
-    if (!result.next()) {
-      throw new RuntimeException();
+      if (value == NearCache.MISS) {
+        misses.add(key);
+      } else if (value != NearCache.ABSENT) {
+        values.put(key, (V) value);
+      }
     }
 
-    return result.getInt(1);
-  }
+    if (misses.isEmpty()) {
+      return values;
+    }
 
-  private int countEntries() throws SQLException {
+    long stamp = stamp();
+    Map<K, V> selected = execute("getAll", new Operation<Map<K, V>>() {
 
-    PreparedStatement countEntries = prepareStatement(COUNT_ENTRIES);
-    countEntries.setInt(1, mapId);
+      @Override
+      public Map<K, V> execute() throws SQLException {
+        return selectAll(misses);
+      }
+    });
 
-    ResultSet result = countEntries.executeQuery();
-    if (!result.next()) {
-      return 0;
+    for (K key : misses) {
+      cache(key, selected.containsKey(key) ? selected.get(key) : NearCache.ABSENT, stamp);
     }
 
-    return result.getInt(1);
-  }
-
-  private int countObjects(final Object obj, final String entryType) throws SQLException {
+    values.putAll(selected);
 
-    String objectType = getType(obj);
+    return values;
+  }
 
-    PreparedStatement countObject;
+  /*
+   * Removes the keys from the map with one statement per key type, returning
+   * the number of entries removed.
+   */
+  public int removeAll(final Collection<?> keys) {
 
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT_NULL);
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-      countObject.setInt(3, (Integer) obj);
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-      countObject.setBoolean(3, (Boolean) obj);
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-      countObject.setDouble(3, (Double) obj);
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-      countObject.setString(3, (String) obj);
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      countObject = prepareStatement(COUNT_OBJECT.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-      countObject.setString(3, (String) obj);
-    } else {
+    if (keys.isEmpty()) {
       return 0;
     }
 
-    countObject.setInt(1, mapId);
-    countObject.setString(2, entryType);
-    countObject.executeQuery();
+    long stamp = stamp();
+    int removed;
 
-    ResultSet result = countObject.executeQuery();
-    if (!result.next()) {
-      return 0;
-    }
+    try {
+      removed = transaction("removeAll", new Operation<Integer>() {
 
-    return result.getInt(1);
-  }
+        @Override
+        public Integer execute() throws SQLException {
 
-  private V select(final Object key) throws SQLException {
+          int removed = deleteAll(keys);
+          publish(ChangeType.REMOVE, keys);
 
-    String keyType = getType(key);
+          return removed;
+        }
+      });
+    } catch (final RuntimeException re) {
+      for (Object key : keys) {
+        invalidate(key);
+      }
 
-    PreparedStatement selectEntry;
+      throw re;
+    }
 
-    if (keyType.equals(OBJECT_NULL_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT_NULL);
-    } else if (keyType.equals(OBJECT_INTEGER_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-      selectEntry.setInt(3, (Integer) key);
-    } else if (keyType.equals(OBJECT_BOOLEAN_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-      selectEntry.setBoolean(3, (Boolean) key);
-    } else if (keyType.equals(OBJECT_NUMERIC_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-      selectEntry.setDouble(3, (Double) key);
-    } else if (keyType.equals(OBJECT_TEXT_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-      selectEntry.setString(3, (String) key);
-    } else if (keyType.equals(OBJECT_MAP_TYPE)) {
-      selectEntry = prepareStatement(SELECT_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-      selectEntry.setString(3, (String) key);
-    } else {
-      return null;
+    for (Object key : keys) {
+      cache(key, NearCache.ABSENT, stamp);
     }
 
-    selectEntry.setInt(1, mapId);
-    selectEntry.setString(2, ENTRY_KEY_TYPE);
+    return removed;
+  }
 
-    ResultSet result = selectEntry.executeQuery();
-    if (!result.next()) {
-      return null;
-    }
+  /*
+   * Returns true if every key is in the map, checking the keys of each type
+   * with one query.
+   */
+  public boolean containsAllKeys(final Collection<?> keys) {
 
-    String objectType = result.getString(1);
-    int entryId = result.getInt(2);
+    if (keys.isEmpty()) {
+      return true;
+    }
 
-    Object value = selectObject(objectType, ENTRY_VALUE_TYPE, entryId);
+    return execute("containsAllKeys", new Operation<Boolean>() {
 
-    return (V) value;
+      @Override
+      public Boolean execute() throws SQLException {
+        return countAll(keys);
+      }
+    });
   }
 
-  private Collection selectObjects(final String entryType, final String objectType) throws SQLException {
+  /*
+   * Copies a map, and the maps nested in its values, to new maps in the
+   * database with one statement, without reading any entries. Maps used as
+   * keys are not copied.
+   */
+  public static <K, V> RdbmsMap<K, V> copyOf(final RdbmsMap<K, V> source) {
 
-    Collection objs;
+    return source.copy();
+  }
 
-    if (entryType.equals(ENTRY_KEY_TYPE)) {
-      objs = new HashSet();
-    } else if (entryType.equals(ENTRY_VALUE_TYPE)) {
-      objs = new ArrayList();
-    } else {
-      return null;
-    }
+  /*
+   * Puts every entry of source, which must be in the same database, into
+   * this map with two statements, without reading any entries. Maps in
+   * source's values are shared, as they would be by putAll(). Maps with
+   * different storage modes are merged with putAll().
+   */
+  public void mergeFrom(final RdbmsMap<? extends K, ? extends V> source) {
 
-    PreparedStatement selectObject;
-
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_NULL);
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-    } else {
-      return objs;
+    if (source.getMapId() == mapId) {
+      return;
     }
 
-    selectObject.setInt(1, mapId);
-    selectObject.setString(2, entryType);
-
-    ResultSet result = selectObject.executeQuery();
+    if (source.getStorageMode() != getStorageMode()) {
+      putAll(source);
+      return;
+    }
 
-    while (result.next()) {
-      if (objectType.equals(OBJECT_NULL_TYPE)) {
-        objs.add(null);
-      } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-        objs.add(result.getInt(1));
-      } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-        objs.add(result.getBoolean(1));
-      } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-        objs.add(result.getDouble(1));
-      } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-        objs.add(result.getString(1));
-      } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-        objs.add(new RdbmsMap<K, V>(connection, result.getInt(1)));
+    try {
+      transaction("mergeFrom", new Operation<Void>() {
+
+        @Override
+        public Void execute() throws SQLException {
+          merge(source.getMapId());
+          publish(ChangeType.RELOAD, null);
+          return null;
+        }
+      });
+    } finally {
+      if (null != nearCache) {
+        nearCache.clear();
       }
     }
+  }
 
-    return objs;
+  /*
+   * Copies the map, and the maps nested in its values, into HashMaps with
+   * one query. Maps used as keys are not copied.
+   */
+  public Map<K, V> toLocalMap() {
+
+    return toLocalMap(Integer.MAX_VALUE);
   }
 
-  private Collection selectObjects(final String entryType) throws SQLException {
+  /*
+   * Copies the map, and the maps nested in its values to the given depth,
+   * into HashMaps with one query. Maps nested deeper, and maps used as keys,
+   * are returned as RdbmsMaps.
+   */
+  public Map<K, V> toLocalMap(final int depth) {
+
+    if (depth < 0) {
+      throw new IllegalArgumentException("depth must not be negative");
+    }
 
-    Collection objs = selectObjects(entryType, OBJECT_NULL_TYPE);
-    objs.addAll(selectObjects(entryType, OBJECT_INTEGER_TYPE));
-    objs.addAll(selectObjects(entryType, OBJECT_BOOLEAN_TYPE));
-    objs.addAll(selectObjects(entryType, OBJECT_NUMERIC_TYPE));
-    objs.addAll(selectObjects(entryType, OBJECT_TEXT_TYPE));
-    objs.addAll(selectObjects(entryType, OBJECT_MAP_TYPE));
+    return execute("toLocalMap", new Operation<Map<K, V>>() {
 
-    return objs;
+      @Override
+      public Map<K, V> execute() throws SQLException {
+        return selectTree(depth);
+      }
+    });
   }
 
-  private String getType(final Object obj) {
+  /*
+   * Writes the map's entries to a snapshot file, read by MappedSnapshotMap,
+   * reading them a page at a time. Every page is read in one repeatable read
+   * transaction, so the file is the map as it was when the first page was
+   * read. Inside another transaction the pages are read at its isolation
+   * level. The file at path is replaced atomically, so maps reading an earlier
+   * snapshot there can refresh() to see this one. Maps nested in the map can
+   * not be written.
+   */
+  public void snapshotTo(final Path path) {
+
+    execute("snapshotTo", new Operation<Void>() {
+
+      @Override
+      public Void execute() throws SQLException {
+
+        Connection connection = sessions.current().getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+
+        if (autoCommit) {
+          connection.setAutoCommit(false);
+        }
+
+        try {
+          if (autoCommit) {
+            update(prepareStatement(READ_SNAPSHOT));
+          }
+
+          writeSnapshot(path);
+        } finally {
+          // nothing was written
+          if (autoCommit) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+          }
+        }
+
+        return null;
+      }
+    });
+  }
 
-    String keyType;
+  private void writeSnapshot(final Path path) {
 
-    if (null == obj) {
-      keyType = OBJECT_NULL_TYPE;
-    } else if (obj instanceof Integer) {
-      keyType = OBJECT_INTEGER_TYPE;
-    } else if (obj instanceof Boolean) {
-      keyType = OBJECT_BOOLEAN_TYPE;
-    } else if (obj instanceof Number) {
-      keyType = OBJECT_NUMERIC_TYPE;
-    } else if (obj instanceof String) {
-      keyType = OBJECT_TEXT_TYPE;
-    } else if (obj instanceof RdbmsMap) {
-      keyType = OBJECT_MAP_TYPE;
-    } else {
-      return null;
+    PageIterator<Entry<K, V>> entries = new PageIterator<Entry<K, V>>() {
+
+      @Override
+      protected Entry<K, V> element(final Entry<K, V> entry) {
+        return entry;
+      }
+    };
+
+    try {
+      SnapshotWriter.write(path, entries, codec);
+    } catch (final IOException ioe) {
+      throw new RuntimeException(ioe);
+    } finally {
+      entries.close();
     }
+  }
+
+  /*
+   * Work done with a connection open, see execute().
+   */
+  interface Operation<T> {
 
-    return keyType;
+    T execute() throws SQLException;
   }
 
-  private int insertEntry(final K key, final V value) throws SQLException {
+  /*
+   * Runs an operation in a transaction holding a lock on each of the keys,
+   * so operations on the same keys by any map, in any process, run one
+   * after the other. Locks are taken in a fixed order and released when the
+   * transaction ends.
+   */
+  <T> T atomically(final String name, final Collection<?> keys, final Operation<T> operation) {
 
-    String keyType = getType(key);
-    String valueType = getType(value);
+    try {
+      return transaction(name, new Operation<T>() {
 
-    PreparedStatement insertEntry = prepareStatement(INSERT_ENTRY);
-    insertEntry.setInt(1, mapId);
-    insertEntry.setString(2, keyType);
-    insertEntry.setString(3, valueType);
+        @Override
+        public T execute() throws SQLException {
 
-    ResultSet result = insertEntry.executeQuery();
-    if (!result.next()) {
-      return 0;
+          lock(keys);
+
+          return operation.execute();
+        }
+      });
+    } catch (final RuntimeException re) {
+      // writes made by the operation were rolled back
+      for (Object key : keys) {
+        invalidate(key);
+      }
+
+      throw re;
     }
+  }
+
+  /*
+   * Returns the database value for key, or NearCache.ABSENT if the key is
+   * not in the map, without reading the near cache.
+   */
+  Object read(final Object key) {
 
-    return result.getInt(1);
+    return get("get", key, false);
   }
 
-  private void insertObject(final int entryId, final Object obj, final String entryType) throws SQLException {
+  /*
+   * Puts an entry, in one statement, unless the key is in the map, returning
+   * true if it was put. A key mapped to null is in the map. Concurrent puts
+   * of the same key wait for each other, so only one of them puts it.
+   */
+  boolean putAbsent(final K key, final V value) {
 
-    String objectType = getType(obj);
+    long stamp = stamp();
+    boolean inserted;
 
-    PreparedStatement insertObject;
+    try {
+      inserted = execute("putIfAbsent", new Operation<Boolean>() {
 
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT_NULL);
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-      insertObject.setInt(4, (Integer) obj);
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-      insertObject.setBoolean(4, (Boolean) obj);
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-      insertObject.setDouble(4, (Double) obj);
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-      insertObject.setString(4, (String) obj);
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      insertObject = prepareStatement(INSERT_OBJECT.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-      insertObject.setInt(4, ((RdbmsMap) obj).mapId);
-    } else {
-      return;
+        @Override
+        public Boolean execute() throws SQLException {
+
+          boolean inserted = insertIfAbsent(key, value);
+
+          if (inserted) {
+            publish(ChangeType.PUT, Collections.singleton(key));
+          }
+
+          return inserted;
+        }
+      });
+    } catch (final RuntimeException re) {
+      invalidate(key);
+      throw re;
     }
 
-    insertObject.setInt(1, entryId);
-    insertObject.setInt(2, mapId);
-    insertObject.setString(3, entryType);
-    insertObject.executeQuery();
-  }
-
-  private void insert(final K key, final V value) throws SQLException {
-
-    int entryId = insertEntry(key, value);
-    insertObject(entryId, key, ENTRY_KEY_TYPE);
-    insertObject(entryId, value, ENTRY_VALUE_TYPE);
-  }
-
-  private void delete(final Object obj, final String entryType) throws SQLException {
-
-    String objectType = getType(obj);
-
-    PreparedStatement deleteEntry;
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT_NULL);
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-      deleteEntry.setInt(3, (Integer) obj);
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-      deleteEntry.setBoolean(3, (Boolean) obj);
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-      deleteEntry.setDouble(3, (Double) obj);
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-      deleteEntry.setString(3, (String) obj);
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      deleteEntry = prepareStatement(DELETE_ENTRY_BY_OBJECT.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-      deleteEntry.setInt(3, ((RdbmsMap) obj).mapId);
-    } else {
-      return;
+    if (inserted) {
+      cache(key, value, stamp);
     }
 
-    deleteEntry.setInt(1, mapId);
-    deleteEntry.setString(2, entryType);
-    deleteEntry.executeUpdate();
+    return inserted;
   }
 
-  private void delete() throws SQLException {
+  /*
+   * Streams the entries matching filter, in no order. The filter is
+   * evaluated by the database so only matching entries are read. The
+   * iterator holds a connection until it has been read to the end or
+   * closed.
+   */
+  public Iterator<Entry<K, V>> entries(final Filter filter) {
 
-    PreparedStatement deleteEntries = prepareStatement(DELETE_ENTRIES);
-    deleteEntries.setInt(1, mapId);
-    deleteEntries.executeUpdate();
-  }
-
-  private Object selectObject(final String objectType, final String entryType, final int entryId) throws SQLException {
-
-    PreparedStatement selectObject;
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_NULL_BY_ENTRY);
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_BY_ENTRY.replace(OBJECT_TABLE, OBJECT_INTEGER_TABLE));
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_BY_ENTRY.replace(OBJECT_TABLE, OBJECT_BOOLEAN_TABLE));
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_BY_ENTRY.replace(OBJECT_TABLE, OBJECT_NUMERIC_TABLE));
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_BY_ENTRY.replace(OBJECT_TABLE, OBJECT_TEXT_TABLE));
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      selectObject = prepareStatement(SELECT_OBJECT_BY_ENTRY.replace(OBJECT_TABLE, OBJECT_MAP_TABLE));
-    } else {
-      return null;
+    if (null == filter) {
+      throw new NullPointerException("filter");
     }
 
-    selectObject.setInt(1, mapId);
-    selectObject.setString(2, entryType);
-    selectObject.setInt(3, entryId);
+    return new PageIterator<Entry<K, V>>(filter) {
 
-    ResultSet result = selectObject.executeQuery();
+      @Override
+      protected Entry<K, V> element(final Entry<K, V> entry) {
+        return entry;
+      }
+    };
+  }
 
-    if (!result.next()) {
-      return null;
-    }
+  public int countWhere(final Filter filter) {
 
-    Object value;
-    if (objectType.equals(OBJECT_NULL_TYPE)) {
-      value = null;
-    } else if (objectType.equals(OBJECT_INTEGER_TYPE)) {
-      value = result.getInt(1);
-    } else if (objectType.equals(OBJECT_BOOLEAN_TYPE)) {
-      value = result.getBoolean(1);
-    } else if (objectType.equals(OBJECT_NUMERIC_TYPE)) {
-      value = result.getDouble(1);
-    } else if (objectType.equals(OBJECT_TEXT_TYPE)) {
-      value = result.getString(1);
-    } else if (objectType.equals(OBJECT_MAP_TYPE)) {
-      value = new RdbmsMap<K, V>(connection, result.getInt(1));
-    } else {
-      return null;
+    if (null == filter) {
+      throw new NullPointerException("filter");
     }
 
-    return value;
+    return execute("countWhere", new Operation<Integer>() {
+
+      @Override
+      public Integer execute() throws SQLException {
+
+        PreparedStatement countWhere = prepareStatement("select count(*)" + where(filter));
+        bindWhere(countWhere, filter);
+
+        try (ResultSet result = query(countWhere)) {
+          return next(result) ? result.getInt(1) : 0;
+        }
+      }
+    });
   }
 
-  private Set<Entry<K, V>> selectEntries() throws SQLException {
+  /*
+   * Returns the sum of the map's number values, of any type, ignoring other
+   * values, or zero if there are none.
+   */
+  public BigDecimal sumValues() {
+    return sumValues(null);
+  }
 
-    Set<Entry<K, V>> entries = new HashSet<Entry<K, V>>();
+  // returns the sum of the number values of the entries matching filter
+  public BigDecimal sumValues(final Filter filter) {
 
-    PreparedStatement selectEntries = prepareStatement(SELECT_ENTRIES);
-    selectEntries.setInt(1, mapId);
+    return execute("sumValues", new Operation<BigDecimal>() {
 
-    ResultSet result = selectEntries.executeQuery();
+      @Override
+      public BigDecimal execute() throws SQLException {
 
-    while (result.next()) {
-      int entryId = result.getInt(1);
-      String keyType = result.getString(2);
-      String valueType = result.getString(3);
+        PreparedStatement sumValues = prepareStatement("select coalesce(sum(" + numeric("value_", singleTable()) + "), 0)" + where(filter));
+        bindWhere(sumValues, filter);
 
-      Entry<K, V> entry = new AbstractMap.SimpleEntry<K, V>(
-              (K) selectObject(keyType, ENTRY_KEY_TYPE, entryId),
-              (V) selectObject(valueType, ENTRY_VALUE_TYPE, entryId));
+        try (ResultSet result = query(sumValues)) {
+          return next(result) ? result.getBigDecimal(1) : BigDecimal.ZERO;
+        }
+      }
+    });
+  }
 
-      entries.add(entry);
-    }
+  // true if the map can be used by more than one thread at once
+  boolean isShared() {
+    return null != sessions.getDataSource();
+  }
+
+  // throws IllegalArgumentException for an object the map cannot store, without using the database
+  void checkStorable(final Object obj) {
+    storedType(obj);
+  }
+
+  /*
+   * Streams the entries with keys in range, in key order.
+   */
+  Iterator<Entry<K, V>> entries(final KeyRange range, final boolean descending) {
 
-    return entries;
+    return new PageIterator<Entry<K, V>>(range, descending) {
+
+      @Override
+      protected Entry<K, V> element(final Entry<K, V> entry) {
+        return entry;
+      }
+    };
+  }
+
+  /*
+   * Returns the entry with the lowest key in range, or the highest if
+   * descending, or null if there are no keys in range.
+   */
+  Entry<K, V> firstEntry(final KeyRange range, final boolean descending) {
+
+    return execute(descending ? "lastEntry" : "firstEntry", new Operation<Entry<K, V>>() {
+
+      @Override
+      public Entry<K, V> execute() throws SQLException {
+
+        PreparedStatement selectFirst = prepareStatement(selectRange(range, descending) + " limit 1");
+        bindRange(selectFirst, 1, range);
+
+        try (ResultSet result = query(selectFirst)) {
+          if (!next(result)) {
+            return null;
+          }
+
+          return new MapEntry(
+                  (K) readObject(result, KEY_TYPE_COLUMN, KEY_TYPE_COLUMN + 1),
+                  (V) readObject(result, VALUE_TYPE_COLUMN, VALUE_TYPE_COLUMN + 1));
+        }
+      }
+    });
+  }
+
+  /*
+   * Returns the lowest key in range mapped to value, or null if no key in
+   * range is.
+   */
+  K firstKey(final KeyRange range, final Object value) {
+
+    final ObjectType valueType = typeOf(value);
+
+    if (null == valueType) {
+      return null;
+    }
+
+    return execute("firstKey", new Operation<K>() {
+
+      @Override
+      public K execute() throws SQLException {
+
+        PreparedStatement selectFirst = prepareStatement(selectRange(range, false, valueType) + " limit 1");
+        bind(selectFirst, bindRange(selectFirst, 1, range), valueType, value);
+
+        try (ResultSet result = query(selectFirst)) {
+          return next(result) ? (K) readObject(result, KEY_TYPE_COLUMN, KEY_TYPE_COLUMN + 1) : null;
+        }
+      }
+    });
+  }
+
+  int size(final KeyRange range) {
+
+    return execute("size", new Operation<Integer>() {
+
+      @Override
+      public Integer execute() throws SQLException {
+
+        PreparedStatement countRange = prepareStatement("select count(*) from " + rangeTable(range) + " range_key" + rangePredicate(range));
+        bindRange(countRange, 1, range);
+
+        try (ResultSet result = query(countRange)) {
+          return next(result) ? result.getInt(1) : 0;
+        }
+      }
+    });
+  }
+
+  void clear(final KeyRange range) {
+
+    try {
+      execute("clear", new Operation<Void>() {
+
+        @Override
+        public Void execute() throws SQLException {
+
+          PreparedStatement deleteRange = prepareStatement(singleTable()
+                  ? "delete from single_entry range_key" + rangePredicate(range)
+                  : "delete from entry where id in (select range_key.entry_id from " + rangeTable(range) + " range_key" + rangePredicate(range) + ")");
+          bindRange(deleteRange, 1, range);
+          update(deleteRange);
+          publish(ChangeType.RELOAD, null);
+
+          return null;
+        }
+      });
+    } finally {
+      if (null != nearCache) {
+        nearCache.clear();
+      }
+    }
+  }
+
+  private static <K, V> RdbmsMap<K, V> open(final Sessions sessions, final int mapId) {
+
+    RdbmsMap<K, V> map = new RdbmsMap<K, V>(sessions, mapId);
+
+    try {
+      map.getStorageMode();
+    } catch (final RuntimeException re) {
+      map.close();
+      throw re;
+    }
+
+    return map;
+  }
+
+  private static Sessions connect(final Connection connection) {
+
+    try {
+      return new Sessions(connection);
+    } catch (final SQLException sqle) {
+      throw new RuntimeException(sqle);
+    }
+  }
+
+  /*
+   * Runs an operation with the current thread's connection, borrowing one
+   * from the data source for the duration if the thread has none open.
+   */
+  private <T> T execute(final String name, final Operation<T> operation) {
+
+    if (closed) {
+      throw new IllegalStateException("map " + mapId + " is closed");
+    }
+
+    MapListener listener = this.listener;
+
+    // operations made by other operations are counted as part of them
+    if (null == listener || null != operationStats.get()) {
+      return executeInSession(operation);
+    }
+
+    OperationStats stats = new OperationStats();
+    operationStats.set(stats);
+    long start = System.nanoTime();
+
+    try {
+      return executeInSession(operation);
+    } finally {
+      operationStats.remove();
+      listener.completed(name, System.nanoTime() - start, stats);
+    }
+  }
+
+  // the session is only held open for the operation, which uses it through sessions.current()
+  private <T> T executeInSession(final Operation<T> operation) {
+
+    try {
+      Session session = sessions.open();
+
+      try {
+        return operation.execute();
+      } finally {
+        session.close();
+      }
+    } catch (final SQLException sqle) {
+      throw new RuntimeException(sqle);
+    }
+  }
+
+  // the current operation's stats, or null if no listener is set
+  private OperationStats stats() {
+
+    return null == listener ? null : operationStats.get();
+  }
+
+  private ResultSet query(final PreparedStatement statement) throws SQLException {
+
+    ResultSet result = statement.executeQuery();
+    executed(stats(), 1);
+
+    return result;
+  }
+
+  private int update(final PreparedStatement statement) throws SQLException {
+
+    int rows = statement.executeUpdate();
+    executed(stats(), 1);
+
+    return rows;
+  }
+
+  private boolean next(final ResultSet result) throws SQLException {
+
+    return read(stats(), result.next());
+  }
+
+  private static void executed(final OperationStats stats, final int statements) {
+
+    if (null != stats) {
+      stats.executed(statements);
+    }
+  }
+
+  private static boolean read(final OperationStats stats, final boolean read) {
+
+    if (null != stats && read) {
+      stats.read();
+    }
+
+    return read;
+  }
+
+  /*
+   * Runs an operation in a transaction, committed when the operation
+   * returns unless the connection was already in a transaction.
+   */
+  private <T> T transaction(final String name, final Operation<T> operation) {
+
+    return transaction(name, operation, 0);
+  }
+
+  /*
+   * Runs an operation in a transaction, rerun up to retries times when it is
+   * rolled back by a deadlock or a concurrent insert of the same key. An
+   * operation in the connection's own transaction is not rerun.
+   */
+  private <T> T transaction(final String name, final Operation<T> operation, final int retries) {
+
+    return execute(name, new Operation<T>() {
+
+      @Override
+      public T execute() throws SQLException {
+
+        Connection connection = sessions.current().getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+
+        if (autoCommit) {
+          connection.setAutoCommit(false);
+        }
+
+        try {
+          for (int attempt = 0;; attempt++) {
+            try {
+              T result = operation.execute();
+
+              if (autoCommit) {
+                connection.commit();
+              }
+
+              return result;
+            } catch (final SQLException | RuntimeException e) {
+              if (autoCommit) {
+                connection.rollback();
+              }
+
+              if (!autoCommit || attempt == retries || !(e instanceof SQLException) || !retryable((SQLException) e)) {
+                throw e;
+              }
+            }
+          }
+        } finally {
+          if (autoCommit) {
+            connection.setAutoCommit(true);
+          }
+        }
+      }
+    });
+  }
+
+  /*
+   * Returns the value for key, or NearCache.ABSENT if the key is not in the
+   * map, optionally reading through the near cache.
+   */
+  private Object get(final String name, final Object key, final boolean cached) {
+
+    if (cached) {
+      Object value = nearCache.lookup(key);
+
+      if (value != NearCache.MISS) {
+        return value;
+      }
+    }
+
+    long stamp = stamp();
+    Object value = execute(name, new Operation<Object>() {
+
+      @Override
+      public Object execute() throws SQLException {
+        return select(key);
+      }
+    });
+
+    if (cached) {
+      cache(key, value, stamp);
+    }
+
+    return value;
+  }
+
+  // reads a change from a notification payload written by publish()
+  MapChange<K> toChange(final String payload) {
+
+    ChangeType type = ChangeType.fromCode(payload.substring(0, 1));
+
+    if (payload.length() == 1) {
+      return new MapChange<K>(mapId, type, null);
+    }
+
+    ObjectType keyType = ObjectType.fromCode(payload.substring(1, 2));
+
+    try {
+      return new MapChange<K>(mapId, type, (K) toObject(keyType, keyType.fromText(payload.substring(2))));
+    } catch (final SQLException sqle) {
+      throw new RuntimeException(sqle);
+    }
+  }
+
+  /*
+   * Notifies the map's channel of a change to each key, or of a change to
+   * the whole map if keys is null. Keys too long for a notification are
+   * published as a RELOAD.
+   */
+  private void publish(final ChangeType type, final Collection<?> keys) throws SQLException {
+
+    if (!publishing) {
+      return;
+    }
+
+    List<String> payloads = new ArrayList<String>();
+
+    if (null == keys) {
+      payloads.add(type.getCode());
+    } else {
+      for (Object key : keys) {
+        ObjectType keyType = typeOf(key);
+
+        // keys which can not be stored were never in the map
+        if (null == keyType) {
+          continue;
+        }
+
+        String payload = type.getCode() + keyType.getCode() + (keyType == ObjectType.NULL ? "" : keyType.toArrayElement(encode(keyType, key)));
+
+        payloads.add(payload.getBytes(StandardCharsets.UTF_8).length > MAXIMUM_PAYLOAD ? ChangeType.RELOAD.getCode() : payload);
+      }
+    }
+
+    if (payloads.isEmpty()) {
+      return;
+    }
+
+    PreparedStatement publishChanges = prepareStatement(PUBLISH_CHANGES);
+    publishChanges.setString(1, CHANNEL_PREFIX + mapId);
+    publishChanges.setArray(2, publishChanges.getConnection().createArrayOf("text", payloads.toArray()));
+
+    query(publishChanges).close();
+  }
+
+  private void invalidate(final Object key) {
+
+    if (null != nearCache) {
+      nearCache.invalidate(key);
+    }
+  }
+
+  // the near cache's stamp, taken before reading or writing values to cache
+  private long stamp() {
+
+    NearCache<K, V> cache = nearCache;
+
+    return null == cache ? 0 : cache.stamp();
+  }
+
+  // caches a value, or NearCache.ABSENT, unless the near cache changed since stamp
+  private void cache(final Object key, final Object value, final long stamp) {
+
+    NearCache<K, V> cache = nearCache;
+
+    if (null != cache) {
+      cache.put(key, value, stamp);
+    }
+  }
+
+  private static Map<ObjectType, String> perType(final String sql, final String nullSql) {
+
+    Map<ObjectType, String> sqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    for (ObjectType type : ObjectType.values()) {
+      if (type == ObjectType.NULL) {
+        sqls.put(type, nullSql.replace(OBJECT_TABLE, type.getTable()));
+      } else {
+        sqls.put(type, sql.replace(OBJECT_TABLE, type.getTable()));
+      }
+    }
+
+    return sqls;
+  }
+
+  private static Map<ObjectType, String> perKeyType(final String sql, final StorageMode storageMode) {
+
+    Map<ObjectType, String> sqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    for (ObjectType keyType : ObjectType.values()) {
+      sqls.put(keyType, withTable(withKeyPredicate(sql, storageMode, keyType), KEY_TABLE, keyType));
+    }
+
+    return sqls;
+  }
+
+  // sql for the types which can be bound as arrays, bytes are bound as hex and decoded
+  private static Map<ObjectType, String> perArrayType(final String sql) {
+
+    Map<ObjectType, String> sqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    for (ObjectType type : ObjectType.values()) {
+      if (null != type.getArrayType()) {
+        String requestValue = type.isBytes() ? "decode(request.value, 'hex')" : "request.value";
+        sqls.put(type, sql.replace(REQUEST_VALUE, requestValue).replace(KEY_TABLE, type.getTable()).replace(KEY_COLUMN, column("key_", type)));
+      }
+    }
+
+    return sqls;
+  }
+
+  private static Map<ObjectType, Map<ObjectType, String>> perKeyAndValueType(final String sql, final StorageMode storageMode) {
+
+    Map<ObjectType, Map<ObjectType, String>> sqls = new EnumMap<ObjectType, Map<ObjectType, String>>(ObjectType.class);
+
+    for (ObjectType keyType : ObjectType.values()) {
+      Map<ObjectType, String> valueSqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+      for (ObjectType valueType : ObjectType.values()) {
+        String keySql = withTable(withKeyPredicate(sql, storageMode, keyType), KEY_TABLE, keyType);
+        valueSqls.put(valueType, withTable(keySql, VALUE_TABLE, valueType));
+      }
+
+      sqls.put(keyType, valueSqls);
+    }
+
+    return sqls;
+  }
+
+  private static String withKeyPredicate(final String sql, final StorageMode storageMode, final ObjectType keyType) {
+
+    String keyPredicate;
+
+    if (storageMode == StorageMode.STANDARD) {
+      keyPredicate = KEY_LOOKUP;
+    } else if (KeyHash.isExact(keyType)) {
+      keyPredicate = KEY_HASH_LOOKUP;
+    } else {
+      keyPredicate = KEY_HASH_LOOKUP + KEY_HASH_CHECK;
+    }
+
+    return sql.replace(KEY_PREDICATE, keyPredicate);
+  }
+
+  /*
+   * Substitutes an object table into a statement template, dropping the
+   * value column and parameter for the null table which has no value.
+   */
+  private static String withTable(final String sql, final String placeholder, final ObjectType type) {
+
+    String typed = sql;
+
+    if (type == ObjectType.NULL) {
+      typed = typed
+              .replace(placeholder + " where map_id = ? and type = ? and value = ?", placeholder + " where map_id = ? and type = ?")
+              .replace(placeholder + "(id, entry_id, map_id, type, value)", placeholder + "(id, entry_id, map_id, type)")
+              .replace(placeholder + "_id_seq'), id, ?, ?, ?", placeholder + "_id_seq'), id, ?, ?");
+    }
+
+    return typed.replace(placeholder, type.getTable());
+  }
+
+  /*
+   * One column per object type, in ObjectType order, holding the value of an
+   * entry's key or value. Only the column matching the entry's type is set.
+   */
+  private static String objectColumns(final String prefix) {
+
+    StringBuilder columns = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (columns.length() > 0) {
+        columns.append(", ");
+      }
+
+      if (type == ObjectType.NULL) {
+        columns.append("null");
+      } else {
+        columns.append(prefix).append(type.getTable()).append(".value");
+      }
+    }
+
+    return columns.toString();
+  }
+
+  private static String objectJoins(final String entryAlias, final String entryType, final String prefix) {
+
+    StringBuilder joins = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (type == ObjectType.NULL) {
+        continue;
+      }
+
+      String alias = prefix + type.getTable();
+      joins.append(" left join ").append(type.getTable()).append(' ').append(alias)
+              .append(" on ").append(alias).append(".entry_id = ").append(entryAlias).append(".id")
+              .append(" and ").append(alias).append(".type = '").append(entryType).append('\'');
+    }
+
+    return joins.toString();
+  }
+
+  /*
+   * Statements inserting copies of the objects of the source entries, one
+   * per object table, optionally pointing map values at copies of the maps.
+   */
+  private static String copyObjects(final boolean copyMaps) {
+
+    StringBuilder copies = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      String table = type.getTable();
+      String value;
+
+      if (type == ObjectType.NULL) {
+        value = "";
+      } else if (type == ObjectType.MAP && copyMaps) {
+        value = ", coalesce(maps.new_id, object.value)";
+      } else {
+        value = ", object.value";
+      }
+
+      copies.append(", copy_").append(table).append(" as (insert into ").append(table)
+              .append("(id, entry_id, map_id, type").append(type == ObjectType.NULL ? "" : ", value").append(")")
+              .append(" select nextval('").append(table).append("_id_seq'), source.new_id, source.new_map_id, object.type").append(value)
+              .append(" from ").append(table).append(" object join source on object.entry_id = source.id");
+
+      if (type == ObjectType.MAP && copyMaps) {
+        copies.append(" left join maps on maps.old_id = object.value and object.type = '").append(ENTRY_VALUE_TYPE).append('\'');
+      }
+
+      copies.append(')');
+    }
+
+    return copies.toString();
+  }
+
+  /*
+   * Selects the ids of a target map's entries with keys equal to keys of a
+   * source map, binding the target and source map ids once per object table.
+   */
+  private static String matchingKeys() {
+
+    StringBuilder matches = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      String table = type.getTable();
+
+      if (matches.length() > 0) {
+        matches.append(" union all ");
+      }
+
+      matches.append("select target.entry_id from ").append(table).append(" target where target.map_id = ? and target.type = '").append(ENTRY_KEY_TYPE).append('\'')
+              .append(" and exists(select 1 from ").append(table).append(" source where source.map_id = ? and source.type = '").append(ENTRY_KEY_TYPE).append('\'')
+              .append(type == ObjectType.NULL ? "" : " and source.value = target.value").append(')');
+    }
+
+    return matches.toString();
+  }
+
+  // the single_entry column holding objects of type, null types have no column
+  static String column(final String prefix, final ObjectType type) {
+
+    return prefix + type.getTable().substring(type.getTable().indexOf('_') + 1);
+  }
+
+  // the numeric value of an entry's number key or value, of any type, or null
+  static String numeric(final String prefix, final boolean singleTable) {
+
+    StringBuilder numbers = new StringBuilder();
+
+    for (ObjectType type : new ObjectType[]{ObjectType.INTEGER, ObjectType.LONG, ObjectType.NUMERIC, ObjectType.REAL, ObjectType.DOUBLE}) {
+      numbers.append(numbers.length() == 0 ? "coalesce(" : ", ")
+              .append(singleTable ? column(prefix, type) : prefix + type.getTable() + ".value");
+
+      if (type != ObjectType.NUMERIC) {
+        numbers.append("::numeric");
+      }
+    }
+
+    return numbers.append(')').toString();
+  }
+
+  /*
+   * One single_entry column per object type, in ObjectType order, with the
+   * same layout as objectColumns().
+   */
+  private static String singleColumns(final String prefix) {
+
+    StringBuilder columns = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (columns.length() > 0) {
+        columns.append(", ");
+      }
+
+      columns.append(type == ObjectType.NULL ? "null" : column(prefix, type));
+    }
+
+    return columns.toString();
+  }
+
+  // the single_entry columns of every type but null
+  private static String singleColumnList(final String prefix) {
+
+    StringBuilder columns = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (type == ObjectType.NULL) {
+        continue;
+      }
+
+      if (columns.length() > 0) {
+        columns.append(", ");
+      }
+
+      columns.append(column(prefix, type));
+    }
+
+    return columns.toString();
+  }
+
+  private static String singleExcluded(final String prefix) {
+
+    StringBuilder columns = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (type == ObjectType.NULL) {
+        continue;
+      }
+
+      if (columns.length() > 0) {
+        columns.append(", ");
+      }
+
+      columns.append(column(prefix, type)).append(" = excluded.").append(column(prefix, type));
+    }
+
+    return columns.toString();
+  }
+
+  private static Map<ObjectType, String> perSingleKeyType(final String sql) {
+
+    Map<ObjectType, String> sqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    for (ObjectType keyType : ObjectType.values()) {
+      String keyPredicate = KeyHash.isExact(keyType) ? SINGLE_KEY_LOOKUP : SINGLE_KEY_LOOKUP + SINGLE_KEY_CHECK;
+      sqls.put(keyType, sql.replace(KEY_PREDICATE, keyPredicate).replace(KEY_COLUMN, column("key_", keyType)));
+    }
+
+    return sqls;
+  }
+
+  private static Map<ObjectType, String> perSingleValueType() {
+
+    Map<ObjectType, String> sqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    for (ObjectType valueType : ObjectType.values()) {
+      String sql = "select count(*) from single_entry where map_id = ? and value_type = '" + valueType.getCode() + "'";
+      sqls.put(valueType, valueType == ObjectType.NULL ? sql : sql + " and " + column("value_", valueType) + " = ?");
+    }
+
+    return sqls;
+  }
+
+  /*
+   * Fills in the columns and parameters of inserts into the single table.
+   * Each binds the map id, key hash, key type, key, value type and value,
+   * after the key predicate for upserts.
+   */
+  private static Map<ObjectType, Map<ObjectType, String>> perSingleKeyAndValueType(final String sql) {
+
+    Map<ObjectType, Map<ObjectType, String>> sqls = new EnumMap<ObjectType, Map<ObjectType, String>>(ObjectType.class);
+
+    for (ObjectType keyType : ObjectType.values()) {
+      Map<ObjectType, String> valueSqls = new EnumMap<ObjectType, String>(ObjectType.class);
+
+      for (ObjectType valueType : ObjectType.values()) {
+        String columns = "map_id, key_hash, key_type"
+                + (keyType == ObjectType.NULL ? "" : ", " + column("key_", keyType))
+                + ", value_type"
+                + (valueType == ObjectType.NULL ? "" : ", " + column("value_", valueType));
+        String parameters = "?, ?, ?"
+                + (keyType == ObjectType.NULL ? "" : ", ?")
+                + ", ?"
+                + (valueType == ObjectType.NULL ? "" : ", ?");
+
+        String typed = sql.replace(INSERT_COLUMNS, columns).replace(INSERT_PARAMETERS, parameters);
+        valueSqls.put(valueType, perSingleKeyType(typed).get(keyType));
+      }
+
+      sqls.put(keyType, valueSqls);
+    }
+
+    return sqls;
+  }
+
+  /*
+   * Selects the entries with keys in range, with the same columns as
+   * SELECT_ENTRIES, driven by the key table's (map_id, type, value) index,
+   * or the (map_id, key) index of single table maps.
+   */
+  private String selectRange(final KeyRange range, final boolean descending) {
+
+    return selectRange(range, descending, null);
+  }
+
+  // selects the entries with keys in range, and values of valueType if it is not null
+  private String selectRange(final KeyRange range, final boolean descending, final ObjectType valueType) {
+
+    String order = " order by " + rangeKey(range) + (descending ? " desc" : "");
+
+    if (singleTable()) {
+      return "select range_key.id, range_key.key_type, " + singleColumns("range_key.key_") + ", range_key.value_type, " + singleColumns("range_key.value_")
+              + " from single_entry range_key" + rangePredicate(range) + valuePredicate("range_key.value_type", valueType) + order;
+    }
+
+    StringBuilder keyColumns = new StringBuilder();
+
+    for (ObjectType type : ObjectType.values()) {
+      if (keyColumns.length() > 0) {
+        keyColumns.append(", ");
+      }
+
+      keyColumns.append(type == range.getType() ? "range_key.value" : "null");
+    }
+
+    return "select entry.id, entry.key_type, " + keyColumns + ", entry.value_type, " + objectColumns("value_")
+            + " from " + range.getType().getTable() + " range_key join entry on entry.id = range_key.entry_id"
+            + objectJoins("entry", ENTRY_VALUE_TYPE, "value_")
+            + rangePredicate(range) + valuePredicate("entry.value_type", valueType)
+            + order;
+  }
+
+  // matches values equal to a parameter of valueType, or every value if valueType is null
+  private String valuePredicate(final String typeColumn, final ObjectType valueType) {
+
+    if (null == valueType) {
+      return "";
+    }
+
+    String predicate = " and " + typeColumn + " = '" + valueType.getCode() + "'";
+
+    if (valueType == ObjectType.NULL) {
+      return predicate;
+    }
+
+    return predicate + " and " + (singleTable() ? column("range_key.value_", valueType) : "value_" + valueType.getTable() + ".value") + " = ?";
+  }
+
+  // the entries of the map matching filter, or every entry if filter is null
+  private String where(final Filter filter) {
+
+    String entries = singleTable() ? SINGLE_ENTRIES : ENTRIES;
+
+    return null == filter ? entries : entries + " and " + filter.toSql(singleTable());
+  }
+
+  // binds the parameters of where(), returning the next parameter index
+  private int bindWhere(final PreparedStatement statement, final Filter filter) throws SQLException {
+
+    int index = 1;
+    statement.setInt(index++, mapId);
+
+    if (null != filter) {
+      for (Object[] parameter : filter.getParameters()) {
+        index = bind(statement, index, (ObjectType) parameter[0], parameter[1]);
+      }
+    }
+
+    return index;
+  }
+
+  private String rangeTable(final KeyRange range) {
+
+    return singleTable() ? "single_entry" : range.getType().getTable();
+  }
+
+  private String rangePredicate(final KeyRange range) {
+
+    StringBuilder predicate = new StringBuilder(" where range_key.map_id = ?");
+
+    if (singleTable()) {
+      predicate.append(" and ").append(column("range_key.key_", range.getType())).append(" is not null");
+    } else {
+      predicate.append(" and range_key.type = '").append(ENTRY_KEY_TYPE).append('\'');
+    }
+
+    if (null != range.getLow()) {
+      predicate.append(" and ").append(rangeKey(range)).append(range.isLowInclusive() ? " >= ?" : " > ?");
+    }
+
+    if (null != range.getHigh()) {
+      predicate.append(" and ").append(rangeKey(range)).append(range.isHighInclusive() ? " <= ?" : " < ?");
+    }
+
+    return predicate.toString();
+  }
+
+  // text keys are ordered by code point, as near to String.compareTo() as the database can sort
+  private String rangeKey(final KeyRange range) {
+
+    String key = singleTable() ? column("range_key.key_", range.getType()) : "range_key.value";
+
+    return range.getType() == ObjectType.TEXT ? key + " collate \"C\"" : key;
+  }
+
+  // binds the parameters of rangePredicate(), returning the next parameter index
+  private int bindRange(final PreparedStatement statement, final int index, final KeyRange range) throws SQLException {
+
+    int next = index;
+    statement.setInt(next++, mapId);
+
+    if (null != range.getLow()) {
+      next = bind(statement, next, range.getType(), range.getLow());
+    }
+
+    if (null != range.getHigh()) {
+      next = bind(statement, next, range.getType(), range.getHigh());
+    }
+
+    return next;
+  }
+
+  private PreparedStatement prepareStatement(final String sql) throws SQLException {
+
+    Session session = sessions.current();
+    OperationStats stats = stats();
+
+    if (null != stats) {
+      stats.prepared(session.getStatements().contains(sql));
+    }
+
+    return session.prepare(sql);
+  }
+
+  private int inserMap() throws SQLException {
+
+    PreparedStatement insertMap = prepareStatement(INSERT_MAP);
+    insertMap.setString(1, storageMode.getCode());
+
+    try (ResultSet result = query(insertMap)) {
+      if (!next(result)) {
+        throw new RuntimeException();
+      }
+
+      return result.getInt(1);
+    }
+  }
+
+  private StorageMode selectStorageMode() throws SQLException {
+
+    PreparedStatement selectStorage = prepareStatement(SELECT_STORAGE);
+    selectStorage.setInt(1, mapId);
+
+    try (ResultSet result = query(selectStorage)) {
+      if (!next(result)) {
+        throw new IllegalStateException("map " + mapId + " does not exist");
+      }
+
+      return StorageMode.fromCode(result.getString(1));
+    }
+  }
+
+  // single table maps hash their keys too
+  private boolean hashedKeys() {
+    return getStorageMode() != StorageMode.STANDARD;
+  }
+
+  private boolean singleTable() {
+    return getStorageMode() == StorageMode.SINGLE_TABLE;
+  }
+
+  private <T> T byStorage(final T standard, final T keyHash, final T singleTable) {
+
+    switch (getStorageMode()) {
+      case KEY_HASH:
+        return keyHash;
+      case SINGLE_TABLE:
+        return singleTable;
+      default:
+        return standard;
+    }
+  }
+
+  private int countKeys(final Object key) throws SQLException {
+
+    ObjectType keyType = typeOf(key);
+
+    if (null == keyType) {
+      return 0;
+    }
+
+    PreparedStatement countKey = prepareStatement(byStorage(COUNT_KEY_SQL, COUNT_KEY_HASH_SQL, SINGLE_COUNT_KEY_SQL).get(keyType));
+    bindKey(countKey, 1, keyType, key);
+
+    try (ResultSet result = query(countKey)) {
+      if (!next(result)) {
+        return 0;
+      }
+
+      return result.getInt(1);
+    }
+  }
+
+  private int countEntries() throws SQLException {
+
+    PreparedStatement countEntries = prepareStatement(COUNT_ENTRIES);
+    countEntries.setInt(1, mapId);
+
+    try (ResultSet result = query(countEntries)) {
+      if (!next(result)) {
+        return 0;
+      }
+
+      return (int) Math.min(result.getLong(1), Integer.MAX_VALUE);
+    }
+  }
+
+  private boolean hasEntries() throws SQLException {
+
+    PreparedStatement hasEntries = prepareStatement(singleTable() ? SINGLE_HAS_ENTRIES : HAS_ENTRIES);
+    hasEntries.setInt(1, mapId);
+
+    try (ResultSet result = query(hasEntries)) {
+      return next(result) && result.getBoolean(1);
+    }
+  }
+
+  private int countObjects(final Object obj, final String entryType) throws SQLException {
+
+    ObjectType objectType = typeOf(obj);
+
+    if (null == objectType) {
+      return 0;
+    }
+
+    PreparedStatement countObject;
+
+    // single table maps only count values
+    if (singleTable()) {
+      countObject = prepareStatement(SINGLE_COUNT_VALUE_SQL.get(objectType));
+      countObject.setInt(1, mapId);
+      bind(countObject, 2, objectType, obj);
+    } else {
+      countObject = prepareStatement(COUNT_OBJECT_SQL.get(objectType));
+      countObject.setInt(1, mapId);
+      countObject.setString(2, entryType);
+      bind(countObject, 3, objectType, obj);
+    }
+
+    try (ResultSet result = query(countObject)) {
+      if (!next(result)) {
+        return 0;
+      }
+
+      return result.getInt(1);
+    }
+  }
+
+  private Object select(final Object key) throws SQLException {
+
+    ObjectType keyType = typeOf(key);
+
+    if (null == keyType) {
+      return NearCache.ABSENT;
+    }
+
+    PreparedStatement selectValue = prepareStatement(byStorage(SELECT_VALUE_BY_KEY_SQL, SELECT_VALUE_BY_KEY_HASH_SQL, SINGLE_SELECT_VALUE_BY_KEY_SQL).get(keyType));
+    bindKey(selectValue, 1, keyType, key);
+
+    try (ResultSet result = query(selectValue)) {
+      if (!next(result)) {
+        return NearCache.ABSENT;
+      }
+
+      return readObject(result, 1, 2);
+    }
+  }
+
+  private Map<K, V> selectAll(final Collection<K> keys) throws SQLException {
+
+    Map<K, V> values = new HashMap<K, V>();
+
+    for (Entry<ObjectType, List<Object>> group : groupByType(keys).entrySet()) {
+      ObjectType keyType = group.getKey();
+      List<Object> groupKeys = group.getValue();
+
+      if (keyType == ObjectType.NULL) {
+        Object value = select(null);
+
+        if (value != NearCache.ABSENT) {
+          values.put(null, (V) value);
+        }
+
+        continue;
+      }
+
+      PreparedStatement selectValues = prepareStatement((singleTable() ? SINGLE_SELECT_VALUES_BY_KEYS_SQL : SELECT_VALUES_BY_KEYS_SQL).get(keyType));
+      bindKeys(selectValues, keyType, groupKeys);
+
+      try (ResultSet result = query(selectValues)) {
+        while (next(result)) {
+          K key = (K) groupKeys.get((int) result.getLong(1) - 1);
+          values.put(key, (V) readObject(result, 2, 3));
+        }
+      }
+    }
+
+    return values;
+  }
+
+  private int deleteAll(final Collection<?> keys) throws SQLException {
+
+    int removed = 0;
+
+    for (Entry<ObjectType, List<Object>> group : groupByType(keys).entrySet()) {
+      ObjectType keyType = group.getKey();
+
+      PreparedStatement deleteEntries;
+
+      if (keyType == ObjectType.NULL) {
+        deleteEntries = prepareStatement(byStorage(DELETE_ENTRY_BY_KEY_SQL, DELETE_ENTRY_BY_KEY_HASH_SQL, SINGLE_DELETE_ENTRY_BY_KEY_SQL).get(keyType));
+        bindKey(deleteEntries, 1, keyType, null);
+      } else {
+        deleteEntries = prepareStatement((singleTable() ? SINGLE_DELETE_ENTRIES_BY_KEYS_SQL : DELETE_ENTRIES_BY_KEYS_SQL).get(keyType));
+        bindKeys(deleteEntries, keyType, group.getValue());
+      }
+
+      removed += update(deleteEntries);
+    }
+
+    return removed;
+  }
+
+  private boolean countAll(final Collection<?> keys) throws SQLException {
+
+    // keys of unsupported types are never in the map
+    for (Object key : keys) {
+      if (null == typeOf(key)) {
+        return false;
+      }
+    }
+
+    for (Entry<ObjectType, List<Object>> group : groupByType(keys).entrySet()) {
+      ObjectType keyType = group.getKey();
+      List<Object> groupKeys = group.getValue();
+
+      if (keyType == ObjectType.NULL) {
+        if (countKeys(null) == 0) {
+          return false;
+        }
+
+        continue;
+      }
+
+      PreparedStatement selectIndexes = prepareStatement((singleTable() ? SINGLE_SELECT_KEY_INDEXES_SQL : SELECT_KEY_INDEXES_SQL).get(keyType));
+      bindKeys(selectIndexes, keyType, groupKeys);
+
+      Set<Long> found = new HashSet<Long>();
+
+      try (ResultSet result = query(selectIndexes)) {
+        while (next(result)) {
+          found.add(result.getLong(1));
+        }
+      }
+
+      if (found.size() < groupKeys.size()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // distinct keys grouped by the type they are stored as, keys of unsupported types are left out
+  private Map<ObjectType, List<Object>> groupByType(final Collection<?> keys) {
+
+    Map<ObjectType, Set<Object>> groups = new EnumMap<ObjectType, Set<Object>>(ObjectType.class);
+
+    for (Object key : keys) {
+      ObjectType keyType = typeOf(key);
+
+      if (null == keyType) {
+        continue;
+      }
+
+      Set<Object> group = groups.get(keyType);
+
+      if (null == group) {
+        group = new LinkedHashSet<Object>();
+        groups.put(keyType, group);
+      }
+
+      group.add(key);
+    }
+
+    Map<ObjectType, List<Object>> lists = new EnumMap<ObjectType, List<Object>>(ObjectType.class);
+
+    for (Entry<ObjectType, Set<Object>> group : groups.entrySet()) {
+      lists.put(group.getKey(), new ArrayList<Object>(group.getValue()));
+    }
+
+    return lists;
+  }
+
+  // binds keys of one type as an array, followed by the map id
+  private void bindKeys(final PreparedStatement statement, final ObjectType keyType, final List<Object> keys) throws SQLException {
+
+    Object[] elements = new Object[keys.size()];
+
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = keyType.toArrayElement(encode(keyType, keys.get(i)));
+    }
+
+    statement.setArray(1, statement.getConnection().createArrayOf(keyType.getArrayType(), elements));
+    statement.setInt(2, mapId);
+  }
+
+  private Object toObject(final ObjectType objectType, final ResultSet result, final int index) throws SQLException {
+
+    return toObject(objectType, objectType.read(result, index));
+  }
+
+  private Object toObject(final ObjectType objectType, final Object value) throws SQLException {
+
+    if (objectType == ObjectType.MAP) {
+      // maps read as values are seldom closed, so take no statement cache reference of their own
+      RdbmsMap<K, V> map = new RdbmsMap<K, V>(sessions.share(), (Integer) value);
+      map.setCodec(codec);
+
+      return map;
+    }
+
+    if (objectType == ObjectType.ENCODED) {
+      if (null == codec) {
+        throw new IllegalStateException("map " + mapId + " has encoded objects but no codec");
+      }
+
+      return codec.decode((byte[]) value);
+    }
+
+    return value;
+  }
+
+  private RdbmsMap<K, V> copy() {
+
+    int copyId = execute("copyOf", new Operation<Integer>() {
+
+      @Override
+      public Integer execute() throws SQLException {
+
+        PreparedStatement copyTree = prepareStatement(COPY_TREE);
+        copyTree.setInt(1, mapId);
+        copyTree.setInt(2, mapId);
+        copyTree.setInt(3, Integer.MAX_VALUE);
+        copyTree.setInt(4, mapId);
+
+        try (ResultSet result = query(copyTree)) {
+          if (!next(result)) {
+            throw new IllegalStateException("map " + mapId + " does not exist");
+          }
+
+          return result.getInt(1);
+        }
+      }
+    });
+
+    try {
+      // the caller closes the copy, which releases its own reference
+      RdbmsMap<K, V> copy = new RdbmsMap<K, V>(isShared() ? sessions : new Sessions(sessions.getConnection()), copyId);
+      copy.setCodec(codec);
+
+      return copy;
+    } catch (final SQLException sqle) {
+      throw new RuntimeException(sqle);
+    }
+  }
+
+  private void merge(final int sourceMapId) throws SQLException {
+
+    if (singleTable()) {
+      PreparedStatement mergeEntries = prepareStatement(SINGLE_MERGE);
+      mergeEntries.setInt(1, sourceMapId);
+      mergeEntries.setInt(2, mapId);
+
+      // the merge replaces every entry it writes, so it is retried once when short,
+      // a shortfall that repeats is a different key with the same hash
+      for (int attempt = 0;; attempt++) {
+        try (ResultSet result = query(mergeEntries)) {
+          next(result);
+
+          if (result.getLong(2) == result.getLong(1)) {
+            return;
+          }
+        }
+
+        if (attempt > 0) {
+          throw collision();
+        }
+      }
+    }
+
+    PreparedStatement deleteMatching;
+
+    if (hashedKeys()) {
+      deleteMatching = prepareStatement(DELETE_MATCHING_KEY_HASHES);
+      deleteMatching.setInt(1, mapId);
+      deleteMatching.setInt(2, sourceMapId);
+    } else {
+      deleteMatching = prepareStatement(DELETE_MATCHING_KEYS);
+
+      for (int i = 0; i < ObjectType.values().length; i++) {
+        deleteMatching.setInt(i * 2 + 1, mapId);
+        deleteMatching.setInt(i * 2 + 2, sourceMapId);
+      }
+    }
+
+    update(deleteMatching);
+
+    PreparedStatement mergeEntries = prepareStatement(MERGE_ENTRIES);
+    mergeEntries.setInt(1, mapId);
+    mergeEntries.setInt(2, sourceMapId);
+    query(mergeEntries).close();
+  }
+
+  private Map<K, V> selectTree(final int depth) throws SQLException {
+
+    PreparedStatement selectTree = prepareStatement(SELECT_TREE);
+    selectTree.setInt(1, mapId);
+    selectTree.setInt(2, mapId);
+    selectTree.setInt(3, depth);
+
+    Map<Integer, Map<Object, Object>> maps = new HashMap<Integer, Map<Object, Object>>();
+    // map values are linked up once every map in the tree has been read
+    Map<Integer, List<Entry<Object, Integer>>> mapValues = new HashMap<Integer, List<Entry<Object, Integer>>>();
+
+    try (ResultSet result = query(selectTree)) {
+      while (next(result)) {
+        int id = result.getInt(MAP_ID_COLUMN);
+        Map<Object, Object> map = maps.get(id);
+
+        if (null == map) {
+          map = new HashMap<Object, Object>();
+          maps.put(id, map);
+        }
+
+        // an empty map
+        if (null == result.getString(KEY_TYPE_COLUMN)) {
+          continue;
+        }
+
+        Object key = readObject(result, KEY_TYPE_COLUMN, KEY_TYPE_COLUMN + 1);
+        ObjectType valueType = ObjectType.fromCode(result.getString(VALUE_TYPE_COLUMN));
+        int valueIndex = VALUE_TYPE_COLUMN + 1 + valueType.ordinal();
+
+        if (valueType == ObjectType.MAP) {
+          List<Entry<Object, Integer>> values = mapValues.get(id);
+
+          if (null == values) {
+            values = new ArrayList<Entry<Object, Integer>>();
+            mapValues.put(id, values);
+          }
+
+          values.add(new AbstractMap.SimpleEntry<Object, Integer>(key, (Integer) valueType.read(result, valueIndex)));
+        } else {
+          map.put(key, toObject(valueType, result, valueIndex));
+        }
+      }
+    }
+
+    for (Entry<Integer, List<Entry<Object, Integer>>> values : mapValues.entrySet()) {
+      Map<Object, Object> map = maps.get(values.getKey());
+
+      for (Entry<Object, Integer> value : values.getValue()) {
+        Map<Object, Object> nested = maps.get(value.getValue());
+
+        // maps deeper than the tree stay in the database
+        map.put(value.getKey(), null != nested ? nested : toObject(ObjectType.MAP, value.getValue()));
+      }
+    }
+
+    return (Map<K, V>) maps.get(mapId);
+  }
+
+  private V upsert(final K key, final V value) throws SQLException {
+
+    ObjectType keyType = storedType(key);
+    ObjectType valueType = storedType(value);
+
+    if (singleTable()) {
+      PreparedStatement upsert = prepareStatement(SINGLE_UPSERT_SQL.get(keyType).get(valueType));
+      bindSingleEntry(upsert, bindKey(upsert, 1, keyType, key), keyType, key, valueType, value);
+
+      while (true) {
+        try (ResultSet result = query(upsert)) {
+          next(result);
+
+          if (result.getLong(1) > 0) {
+            return null == result.getString(2) ? null : (V) readObject(result, 2, 3);
+          }
+        }
+
+        // nothing written, the key was put concurrently after the statement began and the
+        // next statement's snapshot sees it. A conflict with a different key is thrown.
+        if (countKeys(key) == 0) {
+          throw collision();
+        }
+      }
+    }
+
+    PreparedStatement upsert = prepareStatement((hashedKeys() ? UPSERT_KEY_HASH_SQL : UPSERT_SQL).get(keyType).get(valueType));
+
+    // delete previous entry
+    int index = bindKey(upsert, 1, keyType, key);
+    // insert new entry
+    upsert.setInt(index++, mapId);
+    upsert.setString(index++, keyType.getCode());
+    upsert.setString(index++, valueType.getCode());
+    bindKeyHash(upsert, index++, keyType, key);
+    // insert new key
+    upsert.setInt(index++, mapId);
+    upsert.setString(index++, ENTRY_KEY_TYPE);
+    index = bind(upsert, index, keyType, key);
+    // insert new value
+    upsert.setInt(index++, mapId);
+    upsert.setString(index++, ENTRY_VALUE_TYPE);
+    bind(upsert, index, valueType, value);
+
+    while (true) {
+      try {
+        return selectPrevious(upsert);
+      } catch (final SQLException sqle) {
+        // a concurrent put inserted the same key after the statement snapshot was taken,
+        // outside a transaction the statement is retried and replaces the committed entry,
+        // each conflict means another put of the key has committed. A conflict with a
+        // different key, with the same key hash, is thrown.
+        if (!UNIQUE_VIOLATION.equals(sqle.getSQLState()) || !upsert.getConnection().getAutoCommit() || countKeys(key) == 0) {
+          throw sqle;
+        }
+      }
+    }
+  }
+
+  // inserts an entry unless the key is in the map, returning true if it was inserted
+  private boolean insertIfAbsent(final K key, final V value) throws SQLException {
+
+    ObjectType keyType = storedType(key);
+    ObjectType valueType = storedType(value);
+
+    if (singleTable()) {
+      PreparedStatement insert = prepareStatement(SINGLE_INSERT_IF_ABSENT_SQL.get(keyType).get(valueType));
+      int index = bindSingleEntry(insert, 1, keyType, key, valueType, value);
+      insert.setInt(index++, mapId);
+      insert.setInt(index, lockId(keyType, key));
+
+      return update(insert) > 0;
+    }
+
+    PreparedStatement insert = prepareStatement(INSERT_IF_ABSENT_SQL.get(keyType).get(valueType));
+
+    // lock key
+    int index = 1;
+    insert.setInt(index++, mapId);
+    insert.setInt(index++, lockId(keyType, key));
+    // insert new key
+    insert.setInt(index++, mapId);
+    insert.setString(index++, ENTRY_KEY_TYPE);
+    index = bind(insert, index, keyType, key);
+    // insert new entry
+    insert.setInt(index++, mapId);
+    insert.setString(index++, keyType.getCode());
+    insert.setString(index++, valueType.getCode());
+    bindKeyHash(insert, index++, keyType, key);
+    // insert new value
+    insert.setInt(index++, mapId);
+    insert.setString(index++, ENTRY_VALUE_TYPE);
+    bind(insert, index, valueType, value);
+
+    try (ResultSet result = query(insert)) {
+      return next(result) && result.getInt(1) > 0;
+    }
+  }
+
+  private void insertAll(final Map<? extends K, ? extends V> m) throws SQLException {
+
+    // writers of the same keys wait for each other rather than deadlock or insert the same key,
+    // too many keys to lock without filling the lock table lock the map
+    boolean keysLocked = m.size() <= LOCKED_KEYS;
+
+    PreparedStatement lockMap = prepareStatement(keysLocked ? LOCK_MAP_SHARED : LOCK_MAP);
+    lockMap.setLong(1, mapId);
+    query(lockMap).close();
+
+    if (keysLocked) {
+      lock(m.keySet());
+    }
+
+    List<Entry<? extends K, ? extends V>> batch = new ArrayList<Entry<? extends K, ? extends V>>(batchSize);
+
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      batch.add(entry);
+
+      if (batch.size() == batchSize) {
+        insert(batch);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      insert(batch);
+    }
+  }
+
+  // the advisory lock id of a key, taken with the map id
+  private int lockId(final ObjectType keyType, final Object key) {
+
+    long hash = keyHash(keyType, key);
+
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  // advisory locks are keyed on the map id and a hash of the key, sorted so concurrent lockers cannot deadlock
+  private void lock(final Collection<?> keys) throws SQLException {
+
+    int[] locks = new int[keys.size()];
+    int count = 0;
+
+    for (Object key : keys) {
+      ObjectType keyType = typeOf(key);
+
+      if (null != keyType) {
+        locks[count++] = lockId(keyType, key);
+      }
+    }
+
+    if (count == 0) {
+      return;
+    }
+
+    Arrays.sort(locks, 0, count);
+
+    List<Integer> lockIds = new ArrayList<Integer>(count);
+
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || locks[i] != locks[i - 1]) {
+        lockIds.add(locks[i]);
+      }
+    }
+
+    PreparedStatement lockKeys = prepareStatement(LOCK_KEYS);
+    lockKeys.setInt(1, mapId);
+    lockKeys.setArray(2, lockKeys.getConnection().createArrayOf("int4", lockIds.toArray()));
+    query(lockKeys).close();
+  }
+
+  /*
+   * Replaces a batch of entries with one batched delete per key type, one
+   * query to allocate entry ids, and one batched insert for the entries and
+   * per object type.
+   */
+  private void insert(final List<Entry<? extends K, ? extends V>> batch) throws SQLException {
+
+    if (singleTable()) {
+      insertSingle(batch);
+      return;
+    }
+
+    Map<ObjectType, PreparedStatement> deletes = new EnumMap<ObjectType, PreparedStatement>(ObjectType.class);
+
+    for (Entry<? extends K, ? extends V> entry : batch) {
+      ObjectType keyType = storedType(entry.getKey());
+
+      PreparedStatement deleteEntry = deletes.get(keyType);
+      if (null == deleteEntry) {
+        deleteEntry = prepareStatement(byStorage(DELETE_ENTRY_BY_KEY_SQL, DELETE_ENTRY_BY_KEY_HASH_SQL, SINGLE_DELETE_ENTRY_BY_KEY_SQL).get(keyType));
+        deletes.put(keyType, deleteEntry);
+      }
+
+      bindKey(deleteEntry, 1, keyType, entry.getKey());
+      deleteEntry.addBatch();
+    }
+
+    executeBatches(deletes.values());
+
+    int[] entryIds = selectEntryIds(batch.size());
+
+    PreparedStatement insertEntry = prepareStatement(INSERT_ENTRY);
+    Map<ObjectType, PreparedStatement> insertObjects = new EnumMap<ObjectType, PreparedStatement>(ObjectType.class);
+
+    for (int i = 0; i < entryIds.length; i++) {
+      Entry<? extends K, ? extends V> entry = batch.get(i);
+      ObjectType keyType = storedType(entry.getKey());
+      ObjectType valueType = storedType(entry.getValue());
+
+      insertEntry.setInt(1, entryIds[i]);
+      insertEntry.setInt(2, mapId);
+      insertEntry.setString(3, keyType.getCode());
+      insertEntry.setString(4, valueType.getCode());
+      bindKeyHash(insertEntry, 5, keyType, entry.getKey());
+      insertEntry.addBatch();
+
+      addInsertObject(insertObjects, entryIds[i], keyType, entry.getKey(), ENTRY_KEY_TYPE);
+      addInsertObject(insertObjects, entryIds[i], valueType, entry.getValue(), ENTRY_VALUE_TYPE);
+    }
+
+    executeBatches(Collections.singleton(insertEntry));
+    executeBatches(insertObjects.values());
+  }
+
+  // replaces a batch of entries with one batched insert per key and value type
+  private void insertSingle(final List<Entry<? extends K, ? extends V>> batch) throws SQLException {
+
+    Map<String, PreparedStatement> inserts = new HashMap<String, PreparedStatement>();
+
+    for (Entry<? extends K, ? extends V> entry : batch) {
+      ObjectType keyType = storedType(entry.getKey());
+      ObjectType valueType = storedType(entry.getValue());
+      String sql = SINGLE_INSERT_SQL.get(keyType).get(valueType);
+
+      PreparedStatement insert = inserts.get(sql);
+      if (null == insert) {
+        insert = prepareStatement(sql);
+        inserts.put(sql, insert);
+      }
+
+      bindSingleEntry(insert, 1, keyType, entry.getKey(), valueType, entry.getValue());
+      insert.addBatch();
+    }
+
+    if (executeBatches(inserts.values()) < batch.size()) {
+      throw collision();
+    }
+  }
+
+  // a deadlock, or a concurrent insert of the same key, rolls back a transaction which can be rerun
+  private static boolean retryable(final SQLException sqle) {
+
+    for (SQLException e = sqle; null != e; e = e.getNextException()) {
+      if (UNIQUE_VIOLATION.equals(e.getSQLState()) || DEADLOCK_DETECTED.equals(e.getSQLState())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // raised as the unique key hash index does when an upsert hits another key with the same hash
+  private SQLException collision() {
+
+    return new SQLException("key hash collision in map " + mapId + ", a different key has the same hash");
+  }
+
+  // returns the next parameter index
+  private int bindSingleEntry(final PreparedStatement statement, final int index,
+          final ObjectType keyType, final Object key, final ObjectType valueType, final Object value) throws SQLException {
+
+    int next = index;
+    statement.setInt(next++, mapId);
+    statement.setLong(next++, keyHash(keyType, key));
+    statement.setString(next++, keyType.getCode());
+    next = bind(statement, next, keyType, key);
+    statement.setString(next++, valueType.getCode());
+
+    return bind(statement, next, valueType, value);
+  }
+
+  private void addInsertObject(final Map<ObjectType, PreparedStatement> insertObjects, final int entryId,
+          final ObjectType objectType, final Object obj, final String entryType) throws SQLException {
+
+    PreparedStatement insertObject = insertObjects.get(objectType);
+    if (null == insertObject) {
+      insertObject = prepareStatement(INSERT_OBJECT_SQL.get(objectType));
+      insertObjects.put(objectType, insertObject);
+    }
+
+    insertObject.setInt(1, entryId);
+    insertObject.setInt(2, mapId);
+    insertObject.setString(3, entryType);
+    bind(insertObject, 4, objectType, obj);
+    insertObject.addBatch();
+  }
+
+  private int[] selectEntryIds(final int count) throws SQLException {
+
+    PreparedStatement selectEntryIds = prepareStatement(SELECT_ENTRY_IDS);
+    selectEntryIds.setInt(1, count);
+
+    int[] entryIds = new int[count];
+
+    try (ResultSet result = query(selectEntryIds)) {
+      for (int i = 0; i < count && next(result); i++) {
+        entryIds[i] = result.getInt(1);
+      }
+    }
+
+    return entryIds;
+  }
+
+  // cached statements outlive a failed batch, so clear any rows left behind, returns the rows written
+  private int executeBatches(final Collection<PreparedStatement> batches) throws SQLException {
+
+    int rows = 0;
+
+    try {
+      for (PreparedStatement batch : batches) {
+        int[] counts = batch.executeBatch();
+        executed(stats(), counts.length);
+
+        for (int count : counts) {
+          rows += count;
+        }
+      }
+
+      return rows;
+    } finally {
+      for (PreparedStatement batch : batches) {
+        batch.clearBatch();
+      }
+    }
+  }
+
+  private V delete(final Object key) throws SQLException {
+
+    ObjectType keyType = typeOf(key);
+
+    if (null == keyType) {
+      return null;
+    }
+
+    PreparedStatement remove = prepareStatement(byStorage(REMOVE_SQL, REMOVE_KEY_HASH_SQL, SINGLE_REMOVE_SQL).get(keyType));
+    bindKey(remove, 1, keyType, key);
+
+    return selectPrevious(remove);
+  }
+
+  private V selectPrevious(final PreparedStatement statement) throws SQLException {
+
+    try (ResultSet result = query(statement)) {
+      if (!next(result)) {
+        return null;
+      }
+
+      return (V) readObject(result, 1, 2);
+    }
+  }
+
+  // binds obj at index unless it is a null, returning the next parameter index
+  private int bind(final PreparedStatement statement, final int index, final ObjectType type, final Object obj) throws SQLException {
+
+    if (type == ObjectType.NULL) {
+      return index;
+    }
+
+    type.bind(statement, index, encode(type, obj));
+
+    return index + 1;
+  }
+
+  // binds the parameters of a key predicate, returning the next parameter index
+  private int bindKey(final PreparedStatement statement, final int index, final ObjectType keyType, final Object key) throws SQLException {
+
+    int next = index;
+    statement.setInt(next++, mapId);
+
+    if (hashedKeys()) {
+      statement.setLong(next++, keyHash(keyType, key));
+
+      if (!KeyHash.isExact(keyType)) {
+        if (!singleTable()) {
+          statement.setString(next++, ENTRY_KEY_TYPE);
+        }
+
+        next = bind(statement, next, keyType, key);
+      }
+    } else {
+      statement.setString(next++, ENTRY_KEY_TYPE);
+      next = bind(statement, next, keyType, key);
+    }
+
+    return next;
+  }
+
+  private void bindKeyHash(final PreparedStatement statement, final int index, final ObjectType keyType, final Object key) throws SQLException {
+
+    if (hashedKeys()) {
+      statement.setLong(index, keyHash(keyType, key));
+    } else {
+      statement.setNull(index, Types.BIGINT);
+    }
+  }
+
+  private long keyHash(final ObjectType keyType, final Object key) {
+
+    return KeyHash.hash(keyType, encode(keyType, key));
+  }
+
+  private Object encode(final ObjectType type, final Object obj) {
+
+    return type == ObjectType.ENCODED ? codec.encode(obj) : obj;
+  }
+
+  // the type obj is stored as, or null if it can not be stored
+  private ObjectType typeOf(final Object obj) {
+
+    ObjectType type = ObjectType.of(obj);
+
+    if (null == type && null != codec) {
+      return ObjectType.ENCODED;
+    }
+
+    return type;
+  }
+
+  private ObjectType storedType(final Object obj) {
+
+    ObjectType type = typeOf(obj);
+
+    if (null == type) {
+      throw new IllegalArgumentException("unsupported type " + obj.getClass().getName() + ", set a codec to store it");
+    }
+
+    return type;
+  }
+
+  // reads an object from a type code column followed by objectColumns()
+  private Object readObject(final ResultSet result, final int typeIndex, final int firstObjectIndex) throws SQLException {
+
+    ObjectType type = ObjectType.fromCode(result.getString(typeIndex));
+
+    return toObject(type, result, firstObjectIndex + type.ordinal());
+  }
+
+  private void delete() throws SQLException {
+
+    PreparedStatement deleteEntries = prepareStatement(singleTable() ? SINGLE_DELETE_ENTRIES : DELETE_ENTRIES);
+    deleteEntries.setInt(1, mapId);
+    update(deleteEntries);
+  }
+
+  private void delete(final int entryId) throws SQLException {
+
+    PreparedStatement deleteEntry = prepareStatement(singleTable() ? SINGLE_DELETE_ENTRY : DELETE_ENTRY);
+    deleteEntry.setInt(1, entryId);
+    update(deleteEntry);
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+
+      return new PageIterator<Entry<K, V>>() {
+
+        @Override
+        protected Entry<K, V> element(final Entry<K, V> entry) {
+          return entry;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return RdbmsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+
+      Entry entry = (Entry) o;
+
+      return containsKey(entry.getKey()) && Objects.equals(get(entry.getKey()), entry.getValue());
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+
+      if (!contains(o)) {
+        return false;
+      }
+
+      RdbmsMap.this.remove(((Entry) o).getKey());
+
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      RdbmsMap.this.clear();
+    }
+  }
+
+  private final class KeySet extends AbstractSet<K> {
+
+    @Override
+    public Iterator<K> iterator() {
+
+      return new PageIterator<K>() {
+
+        @Override
+        protected K element(final Entry<K, V> entry) {
+          return entry.getKey();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return RdbmsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return containsKey(o);
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+
+      if (!containsKey(o)) {
+        return false;
+      }
+
+      RdbmsMap.this.remove(o);
+
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      RdbmsMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection<V> {
+
+    @Override
+    public Iterator<V> iterator() {
+
+      return new PageIterator<V>() {
+
+        @Override
+        protected V element(final Entry<K, V> entry) {
+          return entry.getValue();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return RdbmsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      RdbmsMap.this.clear();
+    }
+  }
+
+  /*
+   * Entries written back to the map when their value is set.
+   */
+  private final class MapEntry extends AbstractMap.SimpleEntry<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    public MapEntry(final K key, final V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(final V value) {
+
+      put(getKey(), value);
+
+      return super.setValue(value);
+    }
+  }
+
+  /*
+   * Iterates over the map's entries a page of fetchSize rows at a time. Each
+   * page is read by its own query, starting after the last entry id, or the
+   * last key for key ranges, of the page before. Nothing is held open between
+   * pages, so iterators which are not read to the end need not be closed.
+   * Iteration is weakly consistent: entries written while iterating may or
+   * may not be seen. A put replaces an entry with a new one, with a higher
+   * entry id, so a key put again while iterating by entry id may be seen
+   * twice, once with each value.
+   */
+  private abstract class PageIterator<E> implements Iterator<E>, AutoCloseable {
+
+    private final String selectPage;
+    private final Filter filter;
+    private final boolean descending;
+    private KeyRange range;
+    private final List<Entry<K, V>> page = new ArrayList<Entry<K, V>>();
+    private final List<Integer> pageIds = new ArrayList<Integer>();
+    private int position;
+    private boolean more = true;
+    private int lastPageId;
+    private int lastEntryId = -1;
+    private K lastKey;
+    // counts the iterator's work when a listener is set
+    private MapListener listener;
+    private OperationStats stats;
+    private long start;
+
+    public PageIterator() {
+
+      this(null, false, null);
+    }
+
+    // iterates over the keys in range, in key order
+    public PageIterator(final KeyRange range, final boolean descending) {
+
+      this(range, descending, null);
+    }
+
+    // iterates over the entries matching filter, in no order
+    public PageIterator(final Filter filter) {
+
+      this(null, false, filter);
+    }
+
+    private PageIterator(final KeyRange range, final boolean descending, final Filter filter) {
+
+      if (closed) {
+        throw new IllegalStateException("map " + mapId + " is closed");
+      }
+
+      this.range = range;
+      this.descending = descending;
+      this.filter = filter;
+
+      if (null == range) {
+        String orderById = singleTable() ? " and id > ? order by id limit ?" : " and entry.id > ? order by entry.id limit ?";
+        selectPage = (singleTable() ? SINGLE_SELECT_ENTRIES : SELECT_ENTRIES) + (null == filter ? "" : " and " + filter.toSql(singleTable())) + orderById;
+      } else {
+        selectPage = null;
+      }
+
+      listener = RdbmsMap.this.listener;
+
+      if (null != listener) {
+        stats = new OperationStats();
+        start = System.nanoTime();
+      }
+
+      fetch();
+    }
+
+    protected abstract E element(Entry<K, V> entry);
+
+    @Override
+    public boolean hasNext() {
+
+      if (position == page.size() && more) {
+        fetch();
+      }
+
+      return position < page.size();
+    }
+
+    @Override
+    public E next() {
+
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      Entry<K, V> entry = page.get(position);
+      lastEntryId = pageIds.get(position);
+      lastKey = entry.getKey();
+      position++;
+
+      return element(entry);
+    }
+
+    @Override
+    public void remove() {
+
+      if (lastEntryId < 0) {
+        throw new IllegalStateException();
+      }
+
+      final int entryId = lastEntryId;
+      final K removedKey = lastKey;
+
+      try {
+        execute("remove", new Operation<Void>() {
+
+          @Override
+          public Void execute() throws SQLException {
+            delete(entryId);
+            publish(ChangeType.REMOVE, Collections.singleton(removedKey));
+            return null;
+          }
+        });
+      } finally {
+        invalidate(lastKey);
+      }
+
+      lastEntryId = -1;
+    }
+
+    // stops reading pages, reporting the iterator's work to the listener
+    @Override
+    public void close() {
+
+      page.clear();
+      pageIds.clear();
+      position = 0;
+      finish();
+    }
+
+    private void fetch() {
+
+      OperationStats outer = operationStats.get();
+
+      // pages are counted as one iterator operation, reported when it finishes
+      if (null != stats) {
+        operationStats.set(stats);
+      }
+
+      try {
+        execute("iterator", new Operation<Void>() {
+
+          @Override
+          public Void execute() throws SQLException {
+            readPage();
+            return null;
+          }
+        });
+      } catch (final RuntimeException re) {
+        more = false;
+        throw re;
+      } finally {
+        if (null != stats) {
+          if (null == outer) {
+            operationStats.remove();
+          } else {
+            operationStats.set(outer);
+          }
+        }
+      }
+
+      if (!more) {
+        finish();
+      }
+    }
+
+    private void readPage() throws SQLException {
+
+      PreparedStatement selectEntries;
+
+      if (null == range) {
+        selectEntries = prepareStatement(selectPage);
+        int index = bindWhere(selectEntries, filter);
+        selectEntries.setInt(index++, lastPageId);
+        selectEntries.setInt(index, fetchSize);
+      } else {
+        selectEntries = prepareStatement(selectRange(range, descending) + " limit ?");
+        int index = bindRange(selectEntries, 1, range);
+        selectEntries.setInt(index, fetchSize);
+      }
+
+      page.clear();
+      pageIds.clear();
+      position = 0;
+
+      try (ResultSet result = query(selectEntries)) {
+        while (RdbmsMap.this.next(result)) {
+          pageIds.add(result.getInt(ENTRY_ID_COLUMN));
+          page.add(new MapEntry(
+                  (K) readObject(result, KEY_TYPE_COLUMN, KEY_TYPE_COLUMN + 1),
+                  (V) readObject(result, VALUE_TYPE_COLUMN, VALUE_TYPE_COLUMN + 1)));
+        }
+      }
+
+      more = page.size() == fetchSize;
+
+      if (page.isEmpty()) {
+        return;
+      }
+
+      if (null == range) {
+        lastPageId = pageIds.get(pageIds.size() - 1);
+      } else {
+        Comparable last = (Comparable) page.get(page.size() - 1).getKey();
+        range = descending ? range.head(last, false) : range.tail(last, false);
+      }
+    }
+
+    private void finish() {
+
+      more = false;
+
+      if (null != stats) {
+        listener.completed("iterator", System.nanoTime() - start, stats);
+        stats = null;
+      }
+    }
   }
 }
@@ -0,0 +1,609 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.math.BigDecimal;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/*
+ * A sorted view of the keys of one class in an RdbmsMap. Range views,
+ * navigation and ordered iteration are answered by the database, using the
+ * (map_id, type, value) index of the key table, so the map is never sorted
+ * in memory.
+ *
+ * Keys may be integers, longs, floats, doubles, big decimals, strings or
+ * booleans. Keys of other classes in the wrapped map are not part of the
+ * view. Strings are ordered by code point, which matches String.compareTo()
+ * for characters outside the surrogate range.
+ *
+ * Views write through to the wrapped map, and putting a key outside a
+ * view's range throws IllegalArgumentException. Closing the wrapped map
+ * closes every view of it.
+ */
+public final class RdbmsNavigableMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+  private final RdbmsMap<K, V> map;
+  private final Class<K> keyClass;
+  private final KeyRange range;
+  private final boolean descending;
+
+  public RdbmsNavigableMap(final RdbmsMap<K, V> map, final Class<K> keyClass) {
+
+    this(map, keyClass, KeyRange.all(keyType(keyClass)), false);
+  }
+
+  private RdbmsNavigableMap(final RdbmsMap<K, V> map, final Class<K> keyClass, final KeyRange range, final boolean descending) {
+
+    this.map = map;
+    this.keyClass = keyClass;
+    this.range = range;
+    this.descending = descending;
+  }
+
+  public RdbmsMap<K, V> getMap() {
+    return map;
+  }
+
+  @Override
+  public V get(final Object key) {
+
+    return inRange(key) ? map.get(key) : null;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+
+    return inRange(key) && map.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+
+    return null != map.firstKey(range, value);
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+
+    if (!inRange(key)) {
+      throw new IllegalArgumentException("key out of range");
+    }
+
+    return map.put(key, value);
+  }
+
+  @Override
+  public V remove(final Object key) {
+
+    return inRange(key) ? map.remove(key) : null;
+  }
+
+  @Override
+  public int size() {
+    return map.size(range);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return null == firstEntry();
+  }
+
+  @Override
+  public void clear() {
+    map.clear(range);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+
+    return new AbstractSet<Entry<K, V>>() {
+
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return map.entries(range, descending);
+      }
+
+      @Override
+      public int size() {
+        return RdbmsNavigableMap.this.size();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return RdbmsNavigableMap.this.isEmpty();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+
+        return o instanceof Entry && inRange(((Entry) o).getKey()) && map.entrySet().contains(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+
+        if (!contains(o)) {
+          return false;
+        }
+
+        map.remove(((Entry) o).getKey());
+
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        RdbmsNavigableMap.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Collection<V> values() {
+
+    return new AbstractCollection<V>() {
+
+      @Override
+      public Iterator<V> iterator() {
+
+        final Iterator<Entry<K, V>> entries = map.entries(range, descending);
+
+        return new Iterator<V>() {
+
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public V next() {
+            return entries.next().getValue();
+          }
+
+          @Override
+          public void remove() {
+            entries.remove();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return RdbmsNavigableMap.this.size();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return RdbmsNavigableMap.this.isEmpty();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return containsValue(o);
+      }
+
+      // removes the entry with the lowest key mapped to the value
+      @Override
+      public boolean remove(final Object o) {
+
+        K key = map.firstKey(range, o);
+
+        if (null == key) {
+          return false;
+        }
+
+        map.remove(key);
+
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        RdbmsNavigableMap.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return new KeySet();
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  @Override
+  public Comparator<? super K> comparator() {
+
+    return descending ? Collections.reverseOrder() : null;
+  }
+
+  @Override
+  public Entry<K, V> firstEntry() {
+    return first(range);
+  }
+
+  @Override
+  public Entry<K, V> lastEntry() {
+    return last(range);
+  }
+
+  @Override
+  public Entry<K, V> pollFirstEntry() {
+    return poll(firstEntry());
+  }
+
+  @Override
+  public Entry<K, V> pollLastEntry() {
+    return poll(lastEntry());
+  }
+
+  @Override
+  public Entry<K, V> lowerEntry(final K key) {
+    return last(before(key, false));
+  }
+
+  @Override
+  public Entry<K, V> floorEntry(final K key) {
+    return last(before(key, true));
+  }
+
+  @Override
+  public Entry<K, V> ceilingEntry(final K key) {
+    return first(after(key, true));
+  }
+
+  @Override
+  public Entry<K, V> higherEntry(final K key) {
+    return first(after(key, false));
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrThrow(firstEntry());
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrThrow(lastEntry());
+  }
+
+  @Override
+  public K lowerKey(final K key) {
+    return keyOf(lowerEntry(key));
+  }
+
+  @Override
+  public K floorKey(final K key) {
+    return keyOf(floorEntry(key));
+  }
+
+  @Override
+  public K ceilingKey(final K key) {
+    return keyOf(ceilingEntry(key));
+  }
+
+  @Override
+  public K higherKey(final K key) {
+    return keyOf(higherEntry(key));
+  }
+
+  @Override
+  public NavigableMap<K, V> descendingMap() {
+
+    return new RdbmsNavigableMap<K, V>(map, keyClass, range, !descending);
+  }
+
+  @Override
+  public NavigableMap<K, V> subMap(final K fromKey, final boolean fromInclusive, final K toKey, final boolean toInclusive) {
+
+    checkBound(fromKey);
+    checkBound(toKey);
+
+    if (compare(fromKey, toKey) > 0) {
+      throw new IllegalArgumentException("from key greater than to key");
+    }
+
+    return view(after(fromKey, fromInclusive), toKey, toInclusive);
+  }
+
+  @Override
+  public NavigableMap<K, V> headMap(final K toKey, final boolean inclusive) {
+
+    checkBound(toKey);
+
+    return new RdbmsNavigableMap<K, V>(map, keyClass, before(toKey, inclusive), descending);
+  }
+
+  @Override
+  public NavigableMap<K, V> tailMap(final K fromKey, final boolean inclusive) {
+
+    checkBound(fromKey);
+
+    return new RdbmsNavigableMap<K, V>(map, keyClass, after(fromKey, inclusive), descending);
+  }
+
+  @Override
+  public SortedMap<K, V> subMap(final K fromKey, final K toKey) {
+    return subMap(fromKey, true, toKey, false);
+  }
+
+  @Override
+  public SortedMap<K, V> headMap(final K toKey) {
+    return headMap(toKey, false);
+  }
+
+  @Override
+  public SortedMap<K, V> tailMap(final K fromKey) {
+    return tailMap(fromKey, true);
+  }
+
+  private static ObjectType keyType(final Class<?> keyClass) {
+
+    if (Integer.class == keyClass) {
+      return ObjectType.INTEGER;
+    } else if (Long.class == keyClass) {
+      return ObjectType.LONG;
+    } else if (Float.class == keyClass) {
+      return ObjectType.REAL;
+    } else if (Double.class == keyClass) {
+      return ObjectType.DOUBLE;
+    } else if (BigDecimal.class == keyClass) {
+      return ObjectType.NUMERIC;
+    } else if (String.class == keyClass) {
+      return ObjectType.TEXT;
+    } else if (Boolean.class == keyClass) {
+      return ObjectType.BOOLEAN;
+    } else {
+      throw new IllegalArgumentException("unsupported key class " + keyClass.getName());
+    }
+  }
+
+  private boolean inRange(final Object key) {
+
+    return keyClass.isInstance(key) && range.contains(key);
+  }
+
+  // keys must be of the key class and within the view, counting its bounds as inclusive
+  private void checkBound(final K key) {
+
+    checkKey(key);
+
+    if (!range.containsClosed(key)) {
+      throw new IllegalArgumentException("key out of range");
+    }
+  }
+
+  private void checkKey(final Object key) {
+
+    if (null == key) {
+      throw new NullPointerException("key");
+    }
+
+    if (!keyClass.isInstance(key)) {
+      throw new ClassCastException(key.getClass().getName() + " cannot be cast to " + keyClass.getName());
+    }
+  }
+
+  private int compare(final K key1, final K key2) {
+
+    int compare = ((Comparable) key1).compareTo(key2);
+
+    return descending ? -compare : compare;
+  }
+
+  // the keys which come before key in this view's order
+  private KeyRange before(final K key, final boolean inclusive) {
+
+    checkKey(key);
+
+    return descending ? range.tail((Comparable) key, inclusive) : range.head((Comparable) key, inclusive);
+  }
+
+  // the keys which come after key in this view's order
+  private KeyRange after(final K key, final boolean inclusive) {
+
+    checkKey(key);
+
+    return descending ? range.head((Comparable) key, inclusive) : range.tail((Comparable) key, inclusive);
+  }
+
+  private NavigableMap<K, V> view(final KeyRange from, final K toKey, final boolean toInclusive) {
+
+    KeyRange subRange = descending ? from.tail((Comparable) toKey, toInclusive) : from.head((Comparable) toKey, toInclusive);
+
+    return new RdbmsNavigableMap<K, V>(map, keyClass, subRange, descending);
+  }
+
+  private Entry<K, V> first(final KeyRange keys) {
+    return map.firstEntry(keys, descending);
+  }
+
+  private Entry<K, V> last(final KeyRange keys) {
+    return map.firstEntry(keys, !descending);
+  }
+
+  private Entry<K, V> poll(final Entry<K, V> entry) {
+
+    if (null != entry) {
+      map.remove(entry.getKey());
+    }
+
+    return entry;
+  }
+
+  private static <K> K keyOf(final Entry<K, ?> entry) {
+
+    return null == entry ? null : entry.getKey();
+  }
+
+  private static <K> K keyOrThrow(final Entry<K, ?> entry) {
+
+    if (null == entry) {
+      throw new NoSuchElementException();
+    }
+
+    return entry.getKey();
+  }
+
+  private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+    @Override
+    public Iterator<K> iterator() {
+
+      final Iterator<Entry<K, V>> entries = map.entries(range, descending);
+
+      return new Iterator<K>() {
+
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public K next() {
+          return entries.next().getKey();
+        }
+
+        @Override
+        public void remove() {
+          entries.remove();
+        }
+      };
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+      return descendingSet().iterator();
+    }
+
+    @Override
+    public int size() {
+      return RdbmsNavigableMap.this.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return RdbmsNavigableMap.this.isEmpty();
+    }
+
+    @Override
+    public boolean contains(final Object key) {
+      return containsKey(key);
+    }
+
+    @Override
+    public boolean remove(final Object key) {
+
+      if (!containsKey(key)) {
+        return false;
+      }
+
+      RdbmsNavigableMap.this.remove(key);
+
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      RdbmsNavigableMap.this.clear();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return RdbmsNavigableMap.this.comparator();
+    }
+
+    @Override
+    public K first() {
+      return firstKey();
+    }
+
+    @Override
+    public K last() {
+      return lastKey();
+    }
+
+    @Override
+    public K lower(final K key) {
+      return lowerKey(key);
+    }
+
+    @Override
+    public K floor(final K key) {
+      return floorKey(key);
+    }
+
+    @Override
+    public K ceiling(final K key) {
+      return ceilingKey(key);
+    }
+
+    @Override
+    public K higher(final K key) {
+      return higherKey(key);
+    }
+
+    @Override
+    public K pollFirst() {
+      return keyOf(pollFirstEntry());
+    }
+
+    @Override
+    public K pollLast() {
+      return keyOf(pollLastEntry());
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+      return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> subSet(final K fromElement, final boolean fromInclusive, final K toElement, final boolean toInclusive) {
+      return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> headSet(final K toElement, final boolean inclusive) {
+      return headMap(toElement, inclusive).navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(final K fromElement, final boolean inclusive) {
+      return tailMap(fromElement, inclusive).navigableKeySet();
+    }
+
+    @Override
+    public SortedSet<K> subSet(final K fromElement, final K toElement) {
+      return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> headSet(final K toElement) {
+      return headSet(toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> tailSet(final K fromElement) {
+      return tailSet(fromElement, true);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/*
+ * Encodes objects with Java serialization. Only decode bytes written by
+ * trusted code, deserialization can run code from any class on the
+ * classpath.
+ */
+public final class SerializableCodec implements Codec {
+
+  @Override
+  public byte[] encode(final Object obj) {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(obj);
+    } catch (final IOException ioe) {
+      throw new IllegalArgumentException(ioe);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public Object decode(final byte[] bytes) {
+
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return in.readObject();
+    } catch (final IOException | ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/*
+ * A connection in use by a thread, with its cached statements. Sessions
+ * borrowed from a data source are shared by nested operations on the same
+ * thread and returned when the outermost one closes. Their statements stay
+ * cached while a pool keeps the connection open.
+ */
+final class Session implements AutoCloseable {
+
+  private final Connection connection;
+  private final StatementCache statements;
+  // the thread's open sessions this session is registered in, null if not borrowed
+  private final Map<DataSource, Session> owner;
+  private final DataSource dataSource;
+  private int references;
+
+  public Session(final Connection connection, final StatementCache statements) {
+
+    this(connection, statements, null, null);
+  }
+
+  public Session(final Connection connection, final StatementCache statements,
+          final Map<DataSource, Session> owner, final DataSource dataSource) {
+
+    this.connection = connection;
+    this.statements = statements;
+    this.owner = owner;
+    this.dataSource = dataSource;
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  public StatementCache getStatements() {
+    return statements;
+  }
+
+  public PreparedStatement prepare(final String sql) throws SQLException {
+    return statements.prepare(sql);
+  }
+
+  public Session open() {
+
+    references++;
+
+    return this;
+  }
+
+  @Override
+  public void close() throws SQLException {
+
+    if (null == owner || --references > 0) {
+      return;
+    }
+
+    owner.remove(dataSource);
+
+    try {
+      StatementCache.returned(connection);
+    } finally {
+      connection.close();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/*
+ * Provides a map's connections. A map built on a connection always uses
+ * that connection. A map built on a data source borrows a connection for
+ * each operation and returns it afterwards, so maps can be used from many
+ * threads at once, with each thread using its own connection.
+ */
+final class Sessions {
+
+  private static final ThreadLocal<Map<DataSource, Session>> OPEN = new ThreadLocal<Map<DataSource, Session>>() {
+
+    @Override
+    protected Map<DataSource, Session> initialValue() {
+      return new IdentityHashMap<DataSource, Session>();
+    }
+  };
+
+  private final DataSource dataSource;
+  private final Session shared;
+  // false if shared's statements are released by the sessions they were taken from
+  private final boolean owner;
+
+  public Sessions(final Connection connection) throws SQLException {
+
+    this.dataSource = null;
+    this.shared = new Session(connection, StatementCache.acquire(connection));
+    this.owner = true;
+  }
+
+  public Sessions(final DataSource dataSource) {
+
+    this.dataSource = dataSource;
+    this.shared = null;
+    this.owner = false;
+  }
+
+  private Sessions(final Session shared) {
+
+    this.dataSource = null;
+    this.shared = shared;
+    this.owner = false;
+  }
+
+  public Connection getConnection() {
+    return null == shared ? null : shared.getConnection();
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  /*
+   * Returns the current thread's session, borrowing a connection if it has
+   * none. Every call must be matched by closing the session.
+   */
+  public Session open() throws SQLException {
+
+    if (null != shared) {
+      return shared;
+    }
+
+    Map<DataSource, Session> open = OPEN.get();
+    Session session = open.get(dataSource);
+
+    if (null == session) {
+      Connection connection = dataSource.getConnection();
+
+      try {
+        session = new Session(connection, StatementCache.borrow(connection), open, dataSource);
+      } catch (final SQLException | RuntimeException e) {
+        connection.close();
+        throw e;
+      }
+
+      open.put(dataSource, session);
+    }
+
+    return session.open();
+  }
+
+  /*
+   * Returns the session opened by the current thread.
+   */
+  public Session current() {
+
+    if (null != shared) {
+      return shared;
+    }
+
+    Session session = OPEN.get().get(dataSource);
+
+    if (null == session) {
+      throw new IllegalStateException("no connection open on this thread");
+    }
+
+    return session;
+  }
+
+  /*
+   * Returns sessions using the same connection and statements as these,
+   * which release nothing when closed.
+   */
+  public Sessions share() {
+
+    return null == shared ? this : new Sessions(shared);
+  }
+
+  public void close() throws SQLException {
+
+    if (owner) {
+      shared.getStatements().release();
+    }
+  }
+}
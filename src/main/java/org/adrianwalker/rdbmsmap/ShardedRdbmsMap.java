@@ -0,0 +1,661 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A map spread over several RdbmsMaps, usually each in a different
+ * database, with each key stored in one shard chosen by consistent hashing
+ * of its key hash. Lookups and writes of a key go to its shard only. Bulk
+ * operations run on every shard at once, and iterators stream every shard
+ * in parallel, returning entries in no order.
+ *
+ * Shards must be maps on data sources. Adding a shard moves the entries
+ * which now hash to it, around 1/n of them, from the existing shards. The
+ * map must not be written while a shard is being added.
+ *
+ * Each batch of entries is written to the new shard before it is removed
+ * from the old one, so if adding a shard fails part way, some keys are in
+ * both. To recover, create the map again with the old shards and add the
+ * same shard again: keys already moved are only in the new shard, and keys
+ * in both are written to it again then removed from the old shard.
+ *
+ * Keys are hashed with the codec of the first shard, so every shard must
+ * use the same codec. Map values can not be stored, as a nested map only
+ * exists in its own shard's database. Closing this map closes every shard.
+ */
+public final class ShardedRdbmsMap<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+
+  // points each shard has on the hash ring, more points spread keys more evenly
+  private static final int VIRTUAL_NODES = 128;
+  // entries buffered between shard streams and an iterator
+  private static final int ITERATOR_BUFFER_SIZE = 1000;
+  // a shard stream waiting this long for an iterator to take an entry assumes it was dropped
+  private static final long ITERATOR_TIMEOUT = 60000;
+  // marks the end of a shard's entries in an iterator's buffer
+  private static final Object END = new Object();
+
+  private volatile List<RdbmsMap<K, V>> shards;
+  private volatile NavigableMap<Long, RdbmsMap<K, V>> ring;
+  private final ExecutorService executor;
+
+  public ShardedRdbmsMap(final List<RdbmsMap<K, V>> shards) {
+
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("no shards");
+    }
+
+    for (RdbmsMap<K, V> shard : shards) {
+      checkShard(shard);
+    }
+
+    this.shards = Collections.unmodifiableList(new ArrayList<RdbmsMap<K, V>>(shards));
+    this.ring = ring(this.shards);
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+
+        Thread thread = new Thread(runnable, "rdbms-map-shard");
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    });
+  }
+
+  public List<RdbmsMap<K, V>> getShards() {
+    return shards;
+  }
+
+  /*
+   * Adds a shard, moving the entries which hash to it from every existing
+   * shard at once. Entries are moved in batches of each shard's batch size,
+   * each written to the new shard before it is removed from the old one.
+   */
+  public synchronized void addShard(final RdbmsMap<K, V> shard) {
+
+    checkShard(shard);
+
+    List<RdbmsMap<K, V>> grown = new ArrayList<RdbmsMap<K, V>>(shards);
+    grown.add(shard);
+
+    final NavigableMap<Long, RdbmsMap<K, V>> grownRing = ring(grown);
+
+    fanOut(shards, new ShardWork<Void>() {
+
+      @Override
+      public Void execute(final RdbmsMap<K, V> source) {
+        move(source, shard, grownRing);
+        return null;
+      }
+    });
+
+    shards = Collections.unmodifiableList(grown);
+    ring = grownRing;
+  }
+
+  @Override
+  public void close() {
+
+    executor.shutdown();
+
+    for (RdbmsMap<K, V> shard : shards) {
+      shard.close();
+    }
+  }
+
+  @Override
+  public V get(final Object key) {
+    return shardFor(key).get(key);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return shardFor(key).containsKey(key);
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+
+    if (value instanceof RdbmsMap) {
+      throw new IllegalArgumentException("map values can not be sharded");
+    }
+
+    return shardFor(key).put(key, value);
+  }
+
+  @Override
+  public V remove(final Object key) {
+    return shardFor(key).remove(key);
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+
+    final Map<RdbmsMap<K, V>, Map<K, V>> groups = new HashMap<RdbmsMap<K, V>, Map<K, V>>();
+
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      if (entry.getValue() instanceof RdbmsMap) {
+        throw new IllegalArgumentException("map values can not be sharded");
+      }
+
+      RdbmsMap<K, V> shard = shardFor(entry.getKey());
+      Map<K, V> group = groups.get(shard);
+
+      if (null == group) {
+        group = new HashMap<K, V>();
+        groups.put(shard, group);
+      }
+
+      group.put(entry.getKey(), entry.getValue());
+    }
+
+    fanOut(groups.keySet(), new ShardWork<Void>() {
+
+      @Override
+      public Void execute(final RdbmsMap<K, V> shard) {
+        shard.putAll(groups.get(shard));
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public int size() {
+
+    int size = 0;
+
+    for (int shardSize : fanOut(shards, new ShardWork<Integer>() {
+
+      @Override
+      public Integer execute(final RdbmsMap<K, V> shard) {
+        return shard.size();
+      }
+    })) {
+      size += shardSize;
+    }
+
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+
+    return !fanOut(shards, new ShardWork<Boolean>() {
+
+      @Override
+      public Boolean execute(final RdbmsMap<K, V> shard) {
+        return shard.isEmpty();
+      }
+    }).contains(false);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+
+    return fanOut(shards, new ShardWork<Boolean>() {
+
+      @Override
+      public Boolean execute(final RdbmsMap<K, V> shard) {
+        return shard.containsValue(value);
+      }
+    }).contains(true);
+  }
+
+  @Override
+  public void clear() {
+
+    fanOut(shards, new ShardWork<Void>() {
+
+      @Override
+      public Void execute(final RdbmsMap<K, V> shard) {
+        shard.clear();
+        return null;
+      }
+    });
+  }
+
+  /*
+   * Returns a view of the map's entries. Iterators stream every shard at
+   * once, each from its own thread, until the iterator is exhausted or
+   * closed. A stream whose iterator takes no entry for ITERATOR_TIMEOUT
+   * stops, and the iterator then throws an IllegalStateException.
+   */
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+
+    return new AbstractSet<Entry<K, V>>() {
+
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+
+        return new ShardIterator<Entry<K, V>>() {
+
+          @Override
+          protected Entry<K, V> element(final Entry<K, V> entry) {
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return ShardedRdbmsMap.this.size();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return ShardedRdbmsMap.this.isEmpty();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return o instanceof Entry && shardFor(((Entry) o).getKey()).entrySet().contains(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+        return o instanceof Entry && shardFor(((Entry) o).getKey()).entrySet().remove(o);
+      }
+
+      @Override
+      public void clear() {
+        ShardedRdbmsMap.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Set<K> keySet() {
+
+    return new AbstractSet<K>() {
+
+      @Override
+      public Iterator<K> iterator() {
+
+        return new ShardIterator<K>() {
+
+          @Override
+          protected K element(final Entry<K, V> entry) {
+            return entry.getKey();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return ShardedRdbmsMap.this.size();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return ShardedRdbmsMap.this.isEmpty();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return containsKey(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+        return shardFor(o).keySet().remove(o);
+      }
+
+      @Override
+      public void clear() {
+        ShardedRdbmsMap.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Collection<V> values() {
+
+    return new AbstractCollection<V>() {
+
+      @Override
+      public Iterator<V> iterator() {
+
+        return new ShardIterator<V>() {
+
+          @Override
+          protected V element(final Entry<K, V> entry) {
+            return entry.getValue();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return ShardedRdbmsMap.this.size();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return ShardedRdbmsMap.this.isEmpty();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return containsValue(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+
+        for (RdbmsMap<K, V> shard : shards) {
+          if (shard.values().remove(o)) {
+            return true;
+          }
+        }
+
+        return false;
+      }
+
+      @Override
+      public void clear() {
+        ShardedRdbmsMap.this.clear();
+      }
+    };
+  }
+
+  private static void checkShard(final RdbmsMap<?, ?> shard) {
+
+    if (!shard.isShared()) {
+      throw new IllegalArgumentException("shard " + shard.getMapId() + " is on a single connection, shards must be on data sources");
+    }
+  }
+
+  private static <K, V> NavigableMap<Long, RdbmsMap<K, V>> ring(final List<RdbmsMap<K, V>> shards) {
+
+    NavigableMap<Long, RdbmsMap<K, V>> ring = new TreeMap<Long, RdbmsMap<K, V>>();
+
+    for (int i = 0; i < shards.size(); i++) {
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(KeyHash.mix(((long) i << 32) | node), shards.get(i));
+      }
+    }
+
+    return ring;
+  }
+
+  private RdbmsMap<K, V> shardFor(final Object key) {
+    return shardFor(ring, key);
+  }
+
+  private RdbmsMap<K, V> shardFor(final NavigableMap<Long, RdbmsMap<K, V>> ring, final Object key) {
+
+    Entry<Long, RdbmsMap<K, V>> node = ring.ceilingEntry(position(key));
+
+    return null == node ? ring.firstEntry().getValue() : node.getValue();
+  }
+
+  // keys of unsupported types can not be stored, they are looked up on any shard
+  private long position(final Object key) {
+
+    Codec codec = shards.get(0).getCodec();
+    ObjectType type = ObjectType.of(key);
+
+    if (null == type && null != codec) {
+      return KeyHash.mix(KeyHash.hash(ObjectType.ENCODED, codec.encode(key)));
+    }
+
+    return null == type ? 0 : KeyHash.mix(KeyHash.hash(type, key));
+  }
+
+  private void move(final RdbmsMap<K, V> source, final RdbmsMap<K, V> target, final NavigableMap<Long, RdbmsMap<K, V>> ring) {
+
+    Map<K, V> batch = new HashMap<K, V>();
+    Iterator<Entry<K, V>> entries = source.entrySet().iterator();
+
+    try {
+      while (entries.hasNext()) {
+        Entry<K, V> entry = entries.next();
+
+        if (shardFor(ring, entry.getKey()) == target) {
+          batch.put(entry.getKey(), entry.getValue());
+        }
+
+        if (batch.size() >= source.getBatchSize()) {
+          moveBatch(source, target, batch);
+        }
+      }
+
+      moveBatch(source, target, batch);
+
+    } finally {
+      closeQuietly(entries);
+    }
+  }
+
+  private static <K, V> void moveBatch(final RdbmsMap<K, V> source, final RdbmsMap<K, V> target, final Map<K, V> batch) {
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    target.putAll(batch);
+    source.removeAll(batch.keySet());
+    batch.clear();
+  }
+
+  // runs work on each shard at once, returning the results in shard order
+  private <T> List<T> fanOut(final Collection<RdbmsMap<K, V>> shards, final ShardWork<T> work) {
+
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+
+    for (final RdbmsMap<K, V> shard : shards) {
+      futures.add(executor.submit(new Callable<T>() {
+
+        @Override
+        public T call() {
+          return work.execute(shard);
+        }
+      }));
+    }
+
+    List<T> results = new ArrayList<T>();
+
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    } catch (final ExecutionException ee) {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+
+      throw new RuntimeException(ee.getCause());
+    }
+
+    return results;
+  }
+
+  private static void closeQuietly(final Iterator<?> iterator) {
+
+    if (iterator instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) iterator).close();
+      } catch (final Exception e) {
+        // already failed or exhausted
+      }
+    }
+  }
+
+  private abstract class ShardWork<T> {
+
+    public abstract T execute(RdbmsMap<K, V> shard);
+  }
+
+  /*
+   * Merges the entries of every shard, each streamed by its own task into
+   * a bounded buffer. Closing the iterator cancels the tasks, and a task
+   * stops by itself once its iterator has taken nothing for
+   * ITERATOR_TIMEOUT, so a dropped iterator holds no thread for long.
+   */
+  private abstract class ShardIterator<E> implements Iterator<E>, AutoCloseable {
+
+    private final BlockingQueue<Object> buffer;
+    private final List<Future<?>> tasks;
+    private int remaining;
+    private volatile boolean closed;
+    private volatile boolean expired;
+    private Entry<K, V> next;
+    private Entry<K, V> last;
+
+    public ShardIterator() {
+
+      this.buffer = new ArrayBlockingQueue<Object>(ITERATOR_BUFFER_SIZE);
+      this.tasks = new ArrayList<Future<?>>();
+      this.remaining = shards.size();
+
+      for (final RdbmsMap<K, V> shard : shards) {
+        tasks.add(executor.submit(new Runnable() {
+
+          @Override
+          public void run() {
+            stream(shard);
+          }
+        }));
+      }
+    }
+
+    protected abstract E element(Entry<K, V> entry);
+
+    @Override
+    public boolean hasNext() {
+
+      while (null == next && remaining > 0) {
+        Object element;
+
+        try {
+          element = buffer.poll(100, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          close();
+          throw new RuntimeException(ie);
+        }
+
+        if (null == element) {
+          // a stream which timed out leaves no END in the buffer
+          if (expired && buffer.isEmpty()) {
+            close();
+            throw new IllegalStateException("iterator not read for " + ITERATOR_TIMEOUT + "ms, shard streams stopped");
+          }
+        } else if (element == END) {
+          remaining--;
+        } else if (element instanceof RuntimeException) {
+          close();
+          throw (RuntimeException) element;
+        } else {
+          next = (Entry<K, V>) element;
+        }
+      }
+
+      return null != next;
+    }
+
+    @Override
+    public E next() {
+
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      last = next;
+      next = null;
+
+      return element(last);
+    }
+
+    @Override
+    public void remove() {
+
+      if (null == last) {
+        throw new IllegalStateException();
+      }
+
+      ShardedRdbmsMap.this.remove(last.getKey());
+      last = null;
+    }
+
+    @Override
+    public void close() {
+
+      closed = true;
+      remaining = 0;
+      next = null;
+
+      // not interrupted, a running stream stops within an offer's wait of closed being set
+      for (Future<?> task : tasks) {
+        task.cancel(false);
+      }
+
+      buffer.clear();
+    }
+
+    private void stream(final RdbmsMap<K, V> shard) {
+
+      Iterator<Entry<K, V>> entries = null;
+
+      try {
+        entries = shard.entrySet().iterator();
+
+        while (!closed && entries.hasNext()) {
+          offer(entries.next());
+        }
+      } catch (final RuntimeException re) {
+        offer(re);
+      } finally {
+        if (null != entries) {
+          closeQuietly(entries);
+        }
+
+        offer(END);
+      }
+    }
+
+    private void offer(final Object element) {
+
+      long deadline = System.currentTimeMillis() + ITERATOR_TIMEOUT;
+
+      try {
+        while (!closed && !buffer.offer(element, 100, TimeUnit.MILLISECONDS)) {
+          // waiting for the iterator to take an element, or be closed
+          if (System.currentTimeMillis() > deadline) {
+            expired = true;
+            closed = true;
+          }
+        }
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
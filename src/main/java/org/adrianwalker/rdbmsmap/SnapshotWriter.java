@@ -0,0 +1,223 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/*
+ * Writes entries to a snapshot file read by MappedSnapshotMap. The file is
+ * a header, an open addressing hash table of key hashes and record offsets,
+ * then a record per entry:
+ *
+ *   header:  int magic, int entry count, int slot count
+ *   slot:    long key hash, int record offset, 0 if the slot is empty
+ *   record:  byte key type, int key length, key, byte value type, int value length, value
+ *
+ * Types are ObjectType ordinals. Numbers are written in binary, text and
+ * numerics as UTF-16 chars, so keys can be compared in place. Numeric keys
+ * are written without trailing zeros, as numerics equal regardless of scale.
+ *
+ * Records are streamed to a temporary file while the hashes are collected,
+ * then the table and records are written to a second temporary file which
+ * is moved over the target, so readers never see a partial snapshot.
+ */
+final class SnapshotWriter {
+
+  static final int MAGIC = 0x524d5331;
+  static final int HEADER_SIZE = 12;
+  static final int SLOT_SIZE = 12;
+
+  private SnapshotWriter() {
+  }
+
+  public static void write(final Path path, final Iterator<? extends Entry<?, ?>> entries, final Codec codec) throws IOException {
+
+    Path directory = path.toAbsolutePath().getParent();
+    Path records = Files.createTempFile(directory, path.getFileName().toString(), ".records");
+    Path snapshot = Files.createTempFile(directory, path.getFileName().toString(), ".snapshot");
+
+    try {
+      long[] hashes = new long[1024];
+      long[] offsets = new long[1024];
+      int count = 0;
+      long length = 0;
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(records)))) {
+        while (entries.hasNext()) {
+          Entry<?, ?> entry = entries.next();
+
+          if (count == hashes.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+          }
+
+          ObjectType keyType = typeOf(entry.getKey(), codec);
+          Object key = encode(keyType, entry.getKey(), codec, true);
+
+          hashes[count] = MappedSnapshotMap.hash(keyType, entry.getKey(), key);
+          offsets[count] = length;
+          count++;
+
+          length += write(out, keyType, key);
+          ObjectType valueType = typeOf(entry.getValue(), codec);
+          length += write(out, valueType, encode(valueType, entry.getValue(), codec, false));
+        }
+      }
+
+      int slots = slots(count);
+      long recordsOffset = HEADER_SIZE + (long) slots * SLOT_SIZE;
+
+      if (recordsOffset + length > Integer.MAX_VALUE) {
+        throw new IllegalStateException("snapshot of " + count + " entries is larger than 2GB");
+      }
+
+      ByteBuffer table = ByteBuffer.allocate((int) recordsOffset);
+      table.putInt(MAGIC).putInt(count).putInt(slots);
+
+      for (int i = 0; i < count; i++) {
+        int slot = MappedSnapshotMap.slot(hashes[i], slots);
+
+        while (table.getInt(HEADER_SIZE + slot * SLOT_SIZE + 8) != 0) {
+          slot = (slot + 1) & (slots - 1);
+        }
+
+        table.putLong(HEADER_SIZE + slot * SLOT_SIZE, hashes[i]);
+        table.putInt(HEADER_SIZE + slot * SLOT_SIZE + 8, (int) (recordsOffset + offsets[i]));
+      }
+
+      table.rewind();
+
+      try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+              FileChannel in = FileChannel.open(records, StandardOpenOption.READ)) {
+
+        while (table.hasRemaining()) {
+          out.write(table);
+        }
+
+        long copied = 0;
+        while (copied < length) {
+          copied += in.transferTo(copied, length - copied, out);
+        }
+
+        out.force(true);
+      }
+
+      Files.move(snapshot, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    } finally {
+      Files.deleteIfExists(records);
+      Files.deleteIfExists(snapshot);
+    }
+  }
+
+  // the number of slots for count entries, a power of two at most half full
+  private static int slots(final int count) {
+
+    int slots = 2;
+
+    while (slots < count * 2L) {
+      slots <<= 1;
+    }
+
+    return slots;
+  }
+
+  private static ObjectType typeOf(final Object obj, final Codec codec) {
+
+    ObjectType type = ObjectType.of(obj);
+
+    if (type == ObjectType.MAP) {
+      throw new IllegalStateException("maps nested in a map can not be written to a snapshot");
+    }
+
+    if (null == type) {
+      if (null == codec) {
+        throw new IllegalStateException("unsupported type " + obj.getClass().getName() + ", set a codec to write it");
+      }
+
+      return ObjectType.ENCODED;
+    }
+
+    return type;
+  }
+
+  static Object encode(final ObjectType type, final Object obj, final Codec codec, final boolean key) {
+
+    switch (type) {
+      case ENCODED:
+        return codec.encode(obj);
+      case NUMERIC:
+        BigDecimal numeric = ObjectType.toBigDecimal((Number) obj);
+        return key ? numeric.stripTrailingZeros().toPlainString() : numeric.toString();
+      default:
+        return obj;
+    }
+  }
+
+  // writes a type, length and encoded object, returning the bytes written
+  private static long write(final DataOutputStream out, final ObjectType type, final Object obj) throws IOException {
+
+    int length;
+    out.writeByte(type.ordinal());
+
+    switch (type) {
+      case NULL:
+        length = 0;
+        out.writeInt(length);
+        break;
+      case INTEGER:
+        length = 4;
+        out.writeInt(length);
+        out.writeInt((Integer) obj);
+        break;
+      case BOOLEAN:
+        length = 1;
+        out.writeInt(length);
+        out.writeBoolean((Boolean) obj);
+        break;
+      case LONG:
+        length = 8;
+        out.writeInt(length);
+        out.writeLong((Long) obj);
+        break;
+      case REAL:
+        length = 4;
+        out.writeInt(length);
+        out.writeInt(MappedSnapshotMap.bits((Float) obj));
+        break;
+      case DOUBLE:
+        length = 8;
+        out.writeInt(length);
+        out.writeLong(MappedSnapshotMap.bits((Double) obj));
+        break;
+      case TEXT:
+      case NUMERIC:
+        String s = (String) obj;
+        length = s.length() * 2;
+        out.writeInt(length);
+        out.writeChars(s);
+        break;
+      case BYTES:
+      case ENCODED:
+        byte[] bytes = (byte[]) obj;
+        length = bytes.length;
+        out.writeInt(length);
+        out.write(bytes);
+        break;
+      default:
+        throw new IllegalStateException(type.name());
+    }
+
+    return 1 + 4 + (long) length;
+  }
+}
@@ -0,0 +1,182 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Prepared statements keyed by SQL, shared by every map using the same
+ * connection. Statements stay open, and keep their server side plans, until
+ * the last map using the connection is closed.
+ *
+ * Connections borrowed from a data source are cached by the physical
+ * connection a pool hands out, so statements are reused by later borrows of
+ * it, from any thread. They are prepared on the physical connection, which
+ * a pool lends to one borrower at a time, so the pool does not close them
+ * when the connection is returned. Caches of connections which have been
+ * closed are dropped as new connections are borrowed.
+ */
+final class StatementCache {
+
+  // borrowed caches held before closed connections are looked for
+  private static final int PURGE_SIZE = 16;
+  private static final Map<Connection, StatementCache> CACHES = new IdentityHashMap<Connection, StatementCache>();
+  // by physical connection, which does not override equals()
+  private static final ConcurrentMap<Connection, StatementCache> BORROWED = new ConcurrentHashMap<Connection, StatementCache>();
+  private static volatile int purgeAt = PURGE_SIZE;
+
+  private final Connection connection;
+  private final Map<String, PreparedStatement> statements;
+  private int references;
+
+  private StatementCache(final Connection connection) {
+
+    this.connection = connection;
+    this.statements = new HashMap<String, PreparedStatement>();
+  }
+
+  public static StatementCache acquire(final Connection connection) throws SQLException {
+
+    synchronized (CACHES) {
+      purge();
+
+      StatementCache cache = CACHES.get(connection);
+      if (null == cache) {
+        cache = new StatementCache(connection);
+        CACHES.put(connection, cache);
+      }
+
+      cache.references++;
+
+      return cache;
+    }
+  }
+
+  /*
+   * Returns the cache for a connection borrowed from a data source, without
+   * taking a reference. The cache is kept until the connection is closed.
+   */
+  public static StatementCache borrow(final Connection borrowed) throws SQLException {
+
+    Connection connection = physical(borrowed);
+    StatementCache cache = BORROWED.get(connection);
+
+    if (null == cache) {
+      if (BORROWED.size() >= purgeAt) {
+        purgeBorrowed();
+      }
+
+      cache = new StatementCache(connection);
+      BORROWED.put(connection, cache);
+    }
+
+    return cache;
+  }
+
+  /*
+   * Drops the cache of a borrowed connection being returned, unless a pool
+   * keeps the physical connection open for the next borrow.
+   */
+  public static void returned(final Connection borrowed) throws SQLException {
+
+    Connection connection = physical(borrowed);
+
+    if (connection == borrowed) {
+      // not pooled, closing the connection closes its statements
+      BORROWED.remove(connection);
+    }
+  }
+
+  public void release() throws SQLException {
+
+    synchronized (CACHES) {
+      if (--references > 0) {
+        return;
+      }
+
+      CACHES.remove(connection);
+    }
+
+    close();
+  }
+
+  public synchronized PreparedStatement prepare(final String sql) throws SQLException {
+
+    PreparedStatement statement = statements.get(sql);
+
+    if (null == statement || statement.isClosed()) {
+      statement = connection.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+
+    return statement;
+  }
+
+  public synchronized boolean contains(final String sql) throws SQLException {
+
+    PreparedStatement statement = statements.get(sql);
+
+    return null != statement && !statement.isClosed();
+  }
+
+  public synchronized int size() {
+    return statements.size();
+  }
+
+  private synchronized void close() throws SQLException {
+
+    SQLException exception = null;
+
+    for (PreparedStatement statement : statements.values()) {
+      try {
+        statement.close();
+      } catch (final SQLException sqle) {
+        exception = sqle;
+      }
+    }
+
+    statements.clear();
+
+    if (null != exception) {
+      throw exception;
+    }
+  }
+
+  // the connection a pool's connection wraps, or the connection itself
+  private static Connection physical(final Connection connection) throws SQLException {
+
+    return connection.isWrapperFor(Connection.class) ? connection.unwrap(Connection.class) : connection;
+  }
+
+  // drop borrowed caches for connections a pool has closed, checking again once the caches have doubled
+  private static void purgeBorrowed() throws SQLException {
+
+    Iterator<Connection> connections = BORROWED.keySet().iterator();
+
+    while (connections.hasNext()) {
+      if (connections.next().isClosed()) {
+        connections.remove();
+      }
+    }
+
+    purgeAt = Math.max(PURGE_SIZE, BORROWED.size() * 2);
+  }
+
+  // drop caches for connections closed without their maps being closed
+  private static void purge() throws SQLException {
+
+    Iterator<Connection> connections = CACHES.keySet().iterator();
+
+    while (connections.hasNext()) {
+      if (connections.next().isClosed()) {
+        connections.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * How a map's entries are stored, chosen when the map is created.
+ */
+public enum StorageMode {
+
+  /*
+   * Entries are found by looking their keys up in the typed object tables.
+   */
+  STANDARD("S"),
+  /*
+   * Entries also record a 64 bit hash of their key, unique per map, so a key
+   * is found with one index probe of the entry table whatever its type.
+   */
+  KEY_HASH("H"),
+  /*
+   * Each entry is one row of the single_entry table, with a column per key
+   * and value type, found by its key hash. Writes touch one table instead
+   * of three, and reads need no joins.
+   */
+  SINGLE_TABLE("T");
+
+  private final String code;
+
+  private StorageMode(final String code) {
+    this.code = code;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public static StorageMode fromCode(final String code) {
+
+    for (StorageMode mode : values()) {
+      if (mode.code.equals(code)) {
+        return mode;
+      }
+    }
+
+    return null;
+  }
+}
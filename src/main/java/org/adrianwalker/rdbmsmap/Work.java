@@ -0,0 +1,9 @@
+package org.adrianwalker.rdbmsmap;
+
+/*
+ * Map operations to run in one transaction, see RdbmsMap.inTransaction().
+ */
+public interface Work<T> {
+
+  T execute();
+}
@@ -0,0 +1,632 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Buffers writes to an RdbmsMap in memory and writes them to the database
+ * from a background thread, either when maximumPending keys have been
+ * written or every flushInterval. Repeated writes of the same key are
+ * coalesced, so only the last one reaches the database.
+ *
+ * Reads see buffered writes. Bulk reads (size(), containsValue() and the
+ * collection views' iterators) flush first and then read the database, so
+ * an iteration may or may not see writes buffered after it starts. flush() and
+ * close() return once every buffered write has been stored.
+ *
+ * Keys and values are checked when they are buffered, so a write of a type
+ * the wrapped map cannot store throws instead of failing a later flush. If
+ * the flusher falls behind, or its flushes fail, writers wait once
+ * 4 * maximumPending keys are buffered, flushing the buffer themselves and
+ * throwing if that fails.
+ *
+ * put() and remove() return the previous value, reading it from the
+ * database when the key has no buffered write. Use set() and delete() to
+ * write without waiting on the database, up to that limit.
+ *
+ * The wrapped map must not be used directly while it is wrapped. Closing
+ * this map does not close the wrapped map.
+ */
+public final class WriteBehindMap<K, V> implements Map<K, V>, AutoCloseable {
+
+  // writes buffered, as a multiple of maximumPending, before writers wait for a flush
+  private static final int BUFFERED_PER_PENDING = 4;
+  // buffered in place of a value for removed keys
+  private static final Object REMOVED = new Object();
+  // buffered nulls are wrapped so null can mean no buffered write
+  private static final Object NULL = new Object();
+
+  private final RdbmsMap<K, V> map;
+  private final int maximumPending;
+  private final int maximumBuffered;
+  private final ScheduledExecutorService flusher;
+  // guards pending, flushing and failure
+  private final Object bufferLock = new Object();
+  // guards use of the wrapped map and its connection
+  private final Object databaseLock = new Object();
+  private Map<K, Object> pending;
+  private Map<K, Object> flushing;
+  private RuntimeException failure;
+  private boolean flushScheduled;
+  private boolean closed;
+
+  public WriteBehindMap(final RdbmsMap<K, V> map, final int maximumPending, final long flushInterval, final TimeUnit unit) {
+
+    if (maximumPending < 1) {
+      throw new IllegalArgumentException("maximum pending must be positive");
+    }
+
+    this.map = map;
+    this.maximumPending = maximumPending;
+    this.maximumBuffered = (int) Math.min(Integer.MAX_VALUE, (long) maximumPending * BUFFERED_PER_PENDING);
+    this.pending = new LinkedHashMap<K, Object>();
+    this.flushing = new HashMap<K, Object>();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+
+        Thread thread = new Thread(runnable, "rdbms-map-" + map.getMapId() + "-flusher");
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    });
+
+    this.flusher.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        flushQuietly();
+      }
+    }, flushInterval, flushInterval, unit);
+  }
+
+  public RdbmsMap<K, V> getMap() {
+    return map;
+  }
+
+  public int getPendingCount() {
+
+    synchronized (bufferLock) {
+      return pending.size() + flushing.size();
+    }
+  }
+
+  /*
+   * Buffers a write without returning, or reading, the previous value.
+   */
+  public void set(final K key, final V value) {
+    buffer(key, value);
+  }
+
+  /*
+   * Buffers a remove without returning, or reading, the previous value.
+   */
+  public void delete(final K key) {
+    buffer(key, REMOVED);
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+
+    Object previousValue = lookup(key);
+    buffer(key, value);
+
+    return previousValue == REMOVED ? null : (V) previousValue;
+  }
+
+  @Override
+  public V remove(final Object key) {
+
+    Object previousValue = lookup(key);
+    buffer((K) key, REMOVED);
+
+    return previousValue == REMOVED ? null : (V) previousValue;
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+
+    for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      buffer(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public V get(final Object key) {
+
+    Object value = lookup(key);
+
+    return value == REMOVED ? null : (V) value;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+
+    synchronized (bufferLock) {
+      Object value = buffered(key);
+
+      if (null != value) {
+        return value != REMOVED;
+      }
+    }
+
+    synchronized (databaseLock) {
+      return map.containsKey(key);
+    }
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+
+    flush();
+
+    synchronized (databaseLock) {
+      return map.containsValue(value);
+    }
+  }
+
+  @Override
+  public int size() {
+
+    flush();
+
+    synchronized (databaseLock) {
+      return map.size();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+
+    flush();
+
+    synchronized (databaseLock) {
+      return map.isEmpty();
+    }
+  }
+
+  @Override
+  public void clear() {
+
+    synchronized (databaseLock) {
+      synchronized (bufferLock) {
+        pending.clear();
+      }
+
+      map.clear();
+    }
+  }
+
+  @Override
+  public Set<K> keySet() {
+
+    return new AbstractSet<K>() {
+
+      @Override
+      public Iterator<K> iterator() {
+
+        return new ViewIterator<K>() {
+
+          @Override
+          protected K element(final Entry<K, V> entry) {
+            return entry.getKey();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return WriteBehindMap.this.size();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return containsKey(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+
+        if (!containsKey(o)) {
+          return false;
+        }
+
+        buffer((K) o, REMOVED);
+
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        WriteBehindMap.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Collection<V> values() {
+
+    return new AbstractCollection<V>() {
+
+      @Override
+      public Iterator<V> iterator() {
+
+        return new ViewIterator<V>() {
+
+          @Override
+          protected V element(final Entry<K, V> entry) {
+            return entry.getValue();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return WriteBehindMap.this.size();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return containsValue(o);
+      }
+
+      @Override
+      public void clear() {
+        WriteBehindMap.this.clear();
+      }
+    };
+  }
+
+  /*
+   * Returns a view of the map's entries. Iterators flush first, then read
+   * the database a page at a time holding the lock the flusher takes.
+   * Removes and entry values set through the view are buffered.
+   */
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+
+    return new AbstractSet<Entry<K, V>>() {
+
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+
+        return new ViewIterator<Entry<K, V>>() {
+
+          @Override
+          protected Entry<K, V> element(final Entry<K, V> entry) {
+            return new BufferedEntry(entry.getKey(), entry.getValue());
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return WriteBehindMap.this.size();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+
+        if (!(o instanceof Entry)) {
+          return false;
+        }
+
+        Entry entry = (Entry) o;
+
+        return containsKey(entry.getKey()) && Objects.equals(get(entry.getKey()), entry.getValue());
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+
+        if (!contains(o)) {
+          return false;
+        }
+
+        buffer((K) ((Entry) o).getKey(), REMOVED);
+
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        WriteBehindMap.this.clear();
+      }
+    };
+  }
+
+  /*
+   * Writes every buffered write to the database, rethrowing any failure of
+   * an earlier background flush.
+   */
+  public void flush() {
+
+    synchronized (databaseLock) {
+      RuntimeException previousFailure;
+
+      synchronized (bufferLock) {
+        previousFailure = failure;
+        failure = null;
+      }
+
+      write();
+
+      if (null != previousFailure) {
+        throw previousFailure;
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+
+    synchronized (bufferLock) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+    }
+
+    flusher.shutdown();
+
+    try {
+      flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+
+    flush();
+  }
+
+  private void buffer(final K key, final Object value) {
+
+    // rejected now, a write which can never be stored would fail every flush
+    map.checkStorable(key);
+
+    if (value != REMOVED) {
+      map.checkStorable(value);
+    }
+
+    while (true) {
+      synchronized (bufferLock) {
+        if (closed) {
+          throw new IllegalStateException("map " + map.getMapId() + " is closed");
+        }
+
+        if (pending.containsKey(key) || pending.size() + flushing.size() < maximumBuffered) {
+          pending.put(key, value);
+          scheduleFlush();
+
+          return;
+        }
+      }
+
+      // over the limit, the writer stores the buffered writes itself, or fails with them
+      flush();
+    }
+  }
+
+  private void scheduleFlush() {
+
+    if (pending.size() >= maximumPending && !flushScheduled) {
+      flushScheduled = true;
+
+      flusher.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          flushQuietly();
+        }
+      });
+    }
+  }
+
+  // returns the buffered value for key, REMOVED, or null if key has no buffered write
+  private Object buffered(final Object key) {
+
+    if (pending.containsKey(key)) {
+      return wrap(pending.get(key));
+    }
+
+    if (flushing.containsKey(key)) {
+      return wrap(flushing.get(key));
+    }
+
+    return null;
+  }
+
+  private Object lookup(final Object key) {
+
+    synchronized (bufferLock) {
+      Object value = buffered(key);
+
+      if (null != value) {
+        return unwrap(value);
+      }
+    }
+
+    synchronized (databaseLock) {
+      return map.get(key);
+    }
+  }
+
+  /*
+   * Swaps out the pending writes and stores them, the removes and then the
+   * puts each as one batch. Writes that fail are put back unless the key has been
+   * written again since.
+   */
+  private void write() {
+
+    Map<K, Object> writes;
+
+    synchronized (bufferLock) {
+      flushScheduled = false;
+
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      writes = pending;
+      flushing = writes;
+      pending = new LinkedHashMap<K, Object>();
+    }
+
+    try {
+      List<K> removes = new ArrayList<K>();
+      Map<K, V> puts = new HashMap<K, V>();
+
+      for (Entry<K, Object> write : writes.entrySet()) {
+        if (write.getValue() == REMOVED) {
+          removes.add(write.getKey());
+        } else {
+          puts.put(write.getKey(), (V) write.getValue());
+        }
+      }
+
+      map.removeAll(removes);
+      map.putAll(puts);
+
+    } catch (final RuntimeException re) {
+      synchronized (bufferLock) {
+        for (Entry<K, Object> write : writes.entrySet()) {
+          if (!pending.containsKey(write.getKey())) {
+            pending.put(write.getKey(), write.getValue());
+          }
+        }
+      }
+
+      throw re;
+
+    } finally {
+      synchronized (bufferLock) {
+        flushing = new HashMap<K, Object>();
+      }
+    }
+  }
+
+  private void flushQuietly() {
+
+    try {
+      synchronized (databaseLock) {
+        write();
+      }
+    } catch (final RuntimeException re) {
+      synchronized (bufferLock) {
+        failure = re;
+      }
+    }
+  }
+
+  /*
+   * Iterates the wrapped map's entries, reading each page under the
+   * database lock so the flusher never shares the connection mid read.
+   */
+  private abstract class ViewIterator<E> implements Iterator<E>, AutoCloseable {
+
+    private final Iterator<Entry<K, V>> entries;
+    private K last;
+    private boolean removable;
+
+    public ViewIterator() {
+
+      flush();
+
+      synchronized (databaseLock) {
+        this.entries = map.entrySet().iterator();
+      }
+    }
+
+    protected abstract E element(Entry<K, V> entry);
+
+    @Override
+    public boolean hasNext() {
+
+      synchronized (databaseLock) {
+        return entries.hasNext();
+      }
+    }
+
+    @Override
+    public E next() {
+
+      Entry<K, V> entry;
+
+      synchronized (databaseLock) {
+        entry = entries.next();
+      }
+
+      last = entry.getKey();
+      removable = true;
+
+      return element(entry);
+    }
+
+    @Override
+    public void remove() {
+
+      if (!removable) {
+        throw new IllegalStateException();
+      }
+
+      buffer(last, REMOVED);
+      removable = false;
+    }
+
+    @Override
+    public void close() {
+
+      synchronized (databaseLock) {
+        if (entries instanceof AutoCloseable) {
+          try {
+            ((AutoCloseable) entries).close();
+          } catch (final Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    }
+  }
+
+  // entries read through a view, setting a value buffers a write
+  private final class BufferedEntry extends AbstractMap.SimpleEntry<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    public BufferedEntry(final K key, final V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(final V value) {
+
+      buffer(getKey(), value);
+
+      return super.setValue(value);
+    }
+  }
+
+  private static Object wrap(final Object value) {
+    return null == value ? NULL : value;
+  }
+
+  private static Object unwrap(final Object value) {
+    return value == NULL ? null : value;
+  }
+}
@@ -0,0 +1,91 @@
+-- Adds the entry counts size() reads to databases created before maps kept
+-- them, and counts the entries already in each map. Without it size() of an
+-- existing map is wrong. Also replaces the count kept on the map row by an
+-- earlier version, whose updates made concurrent writers to a map wait for
+-- each other.
+--
+-- Run once, after creating the tables added to rdbms-map.sql since. Writes
+-- to the maps wait while the entries are counted.
+
+BEGIN;
+
+DROP TRIGGER IF EXISTS entry_count_insert ON entry;
+DROP TRIGGER IF EXISTS entry_count_delete ON entry;
+DROP TRIGGER IF EXISTS single_entry_count_insert ON single_entry;
+DROP TRIGGER IF EXISTS single_entry_count_delete ON single_entry;
+DROP FUNCTION IF EXISTS entry_count_insert();
+DROP FUNCTION IF EXISTS entry_count_delete();
+ALTER TABLE map DROP COLUMN IF EXISTS entry_count;
+
+-- the number of entries in each map, as the sum of the changes made by each
+-- statement, so writers insert rows rather than all updating the map's row
+CREATE TABLE map_entry_count
+(
+  id serial NOT NULL,
+  map_id integer NOT NULL,
+  delta bigint NOT NULL,
+  CONSTRAINT map_entry_count_pkey PRIMARY KEY (id),
+  CONSTRAINT map_entry_count_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX map_entry_count_map_id_idx ON map_entry_count (map_id);
+
+-- adds a change to a map's count, folding its changes into one row once they pile up,
+-- skipping rows other transactions are folding so no writer waits for another
+CREATE FUNCTION entry_count_add(counted_map_id integer, counted bigint) RETURNS void AS $$
+BEGIN
+  -- a map being deleted has no count to keep
+  INSERT INTO map_entry_count (map_id, delta) SELECT id, counted FROM map WHERE id = counted_map_id;
+
+  IF (SELECT count(*) FROM map_entry_count WHERE map_id = counted_map_id) > 32 THEN
+    WITH folded AS (
+      DELETE FROM map_entry_count
+      WHERE id IN (SELECT id FROM map_entry_count WHERE map_id = counted_map_id FOR UPDATE SKIP LOCKED)
+      RETURNING delta)
+    INSERT INTO map_entry_count (map_id, delta)
+    SELECT counted_map_id, sum(delta) FROM folded HAVING count(*) > 0;
+  END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- keep map_entry_count in step with the map's entries, once per statement
+CREATE FUNCTION entry_count_insert() RETURNS trigger AS $$
+BEGIN
+  PERFORM entry_count_add(map_id, count(*)) FROM inserted_entry GROUP BY map_id;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION entry_count_delete() RETURNS trigger AS $$
+BEGIN
+  PERFORM entry_count_add(map_id, -count(*)) FROM deleted_entry GROUP BY map_id;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER entry_count_insert AFTER INSERT ON entry
+  REFERENCING NEW TABLE AS inserted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_insert();
+
+CREATE TRIGGER entry_count_delete AFTER DELETE ON entry
+  REFERENCING OLD TABLE AS deleted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_delete();
+
+CREATE TRIGGER single_entry_count_insert AFTER INSERT ON single_entry
+  REFERENCING NEW TABLE AS inserted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_insert();
+
+CREATE TRIGGER single_entry_count_delete AFTER DELETE ON single_entry
+  REFERENCING OLD TABLE AS deleted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_delete();
+
+-- no entries are written until the counts are committed
+LOCK TABLE entry, single_entry IN SHARE MODE;
+
+INSERT INTO map_entry_count (map_id, delta)
+SELECT map.id,
+  (SELECT count(*) FROM entry WHERE entry.map_id = map.id)
+  + (SELECT count(*) FROM single_entry WHERE single_entry.map_id = map.id)
+FROM map;
+
+COMMIT;
@@ -0,0 +1,66 @@
+-- Migrates maps written before Long, Float and Double had object tables of
+-- their own. Those numbers were all stored in object_numeric as type 'N'
+-- and read back as Double, so they are moved to object_double as type 'D',
+-- where Double keys and values are now looked up, and the hashes of moved
+-- keys in key hash maps are recomputed as KeyHash computes them for Double.
+--
+-- Run once, after creating the tables added to rdbms-map.sql since, and
+-- before the maps are used, as numerics written since are also type 'N'.
+
+BEGIN;
+
+-- arithmetic on the unsigned 64 bit values KeyHash uses, through numeric
+CREATE FUNCTION pg_temp.unsigned(value bigint) RETURNS numeric AS $$
+  SELECT CASE WHEN value < 0 THEN value::numeric + 18446744073709551616 ELSE value::numeric END;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE FUNCTION pg_temp.multiply(a bigint, b bigint) RETURNS bigint AS $$
+  SELECT CASE WHEN product >= 9223372036854775808 THEN (product - 18446744073709551616)::bigint ELSE product::bigint END
+  FROM (SELECT mod(pg_temp.unsigned(a) * pg_temp.unsigned(b), 18446744073709551616) AS product) p;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE FUNCTION pg_temp.shift_right(value bigint, bits integer) RETURNS bigint AS $$
+  SELECT (value >> bits) & ((1::bigint << (64 - bits)) - 1);
+$$ LANGUAGE sql IMMUTABLE;
+
+-- KeyHash.mix(), the splitmix64 finaliser
+CREATE FUNCTION pg_temp.mix(value bigint) RETURNS bigint AS $$
+DECLARE
+  z bigint := value;
+BEGIN
+  z := pg_temp.multiply(z # pg_temp.shift_right(z, 30), -4658895280553007687);
+  z := pg_temp.multiply(z # pg_temp.shift_right(z, 27), -7723592293110705685);
+  RETURN z # pg_temp.shift_right(z, 31);
+END;
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+-- KeyHash.hash(ObjectType.DOUBLE, key), DOUBLE has ordinal 8
+CREATE FUNCTION pg_temp.double_hash(value double precision) RETURNS bigint AS $$
+  SELECT pg_temp.mix(pg_temp.mix(('x' || encode(float8send(CASE WHEN value = 0 THEN 0 ELSE value END), 'hex'))::bit(64)::bigint) # 8)
+    | (-9223372036854775807 - 1);
+$$ LANGUAGE sql IMMUTABLE;
+
+INSERT INTO object_double (entry_id, map_id, type, value)
+SELECT object_numeric.entry_id, object_numeric.map_id, object_numeric.type, object_numeric.value
+FROM object_numeric
+JOIN entry ON entry.id = object_numeric.entry_id
+WHERE (object_numeric.type = 'K' AND entry.key_type = 'N')
+   OR (object_numeric.type = 'V' AND entry.value_type = 'N');
+
+DELETE FROM object_numeric
+USING entry
+WHERE entry.id = object_numeric.entry_id
+  AND ((object_numeric.type = 'K' AND entry.key_type = 'N')
+    OR (object_numeric.type = 'V' AND entry.value_type = 'N'));
+
+UPDATE entry SET key_hash = pg_temp.double_hash(object_double.value)
+FROM object_double
+WHERE object_double.entry_id = entry.id
+  AND object_double.type = 'K'
+  AND entry.key_type = 'N'
+  AND entry.key_hash IS NOT NULL;
+
+UPDATE entry SET key_type = 'D' WHERE key_type = 'N';
+UPDATE entry SET value_type = 'D' WHERE value_type = 'N';
+
+COMMIT;
@@ -1,6 +1,7 @@
 CREATE TABLE map
 (
   id serial NOT NULL,
+  storage character(1) NOT NULL DEFAULT 'S',
   CONSTRAINT map_pkey PRIMARY KEY (id)
 );
 
@@ -10,13 +11,71 @@ CREATE TABLE entry
   map_id integer NOT NULL,
   key_type character(1) NOT NULL,
   value_type character(1) NOT NULL,
+  key_hash bigint,
   CONSTRAINT entry_pkey PRIMARY KEY (id),
   CONSTRAINT entry_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+-- (map_id, id) also orders the pages read by iterators
+CREATE INDEX entry_map_id_idx ON entry (map_id, id);
+CREATE UNIQUE INDEX entry_map_id_key_hash_idx ON entry (map_id, key_hash) WHERE key_hash IS NOT NULL;
 CREATE INDEX entry_key_type_idx ON entry (key_type);
 CREATE INDEX entry_value_type_idx ON entry (value_type);
 
+-- the number of entries in each map, as the sum of the changes made by each
+-- statement, so writers insert rows rather than all updating the map's row
+CREATE TABLE map_entry_count
+(
+  id serial NOT NULL,
+  map_id integer NOT NULL,
+  delta bigint NOT NULL,
+  CONSTRAINT map_entry_count_pkey PRIMARY KEY (id),
+  CONSTRAINT map_entry_count_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX map_entry_count_map_id_idx ON map_entry_count (map_id);
+
+-- adds a change to a map's count, folding its changes into one row once they pile up,
+-- skipping rows other transactions are folding so no writer waits for another
+CREATE FUNCTION entry_count_add(counted_map_id integer, counted bigint) RETURNS void AS $$
+BEGIN
+  -- a map being deleted has no count to keep
+  INSERT INTO map_entry_count (map_id, delta) SELECT id, counted FROM map WHERE id = counted_map_id;
+
+  IF (SELECT count(*) FROM map_entry_count WHERE map_id = counted_map_id) > 32 THEN
+    WITH folded AS (
+      DELETE FROM map_entry_count
+      WHERE id IN (SELECT id FROM map_entry_count WHERE map_id = counted_map_id FOR UPDATE SKIP LOCKED)
+      RETURNING delta)
+    INSERT INTO map_entry_count (map_id, delta)
+    SELECT counted_map_id, sum(delta) FROM folded HAVING count(*) > 0;
+  END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- keep map_entry_count in step with the map's entries, once per statement
+CREATE FUNCTION entry_count_insert() RETURNS trigger AS $$
+BEGIN
+  PERFORM entry_count_add(map_id, count(*)) FROM inserted_entry GROUP BY map_id;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION entry_count_delete() RETURNS trigger AS $$
+BEGIN
+  PERFORM entry_count_add(map_id, -count(*)) FROM deleted_entry GROUP BY map_id;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER entry_count_insert AFTER INSERT ON entry
+  REFERENCING NEW TABLE AS inserted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_insert();
+
+CREATE TRIGGER entry_count_delete AFTER DELETE ON entry
+  REFERENCING OLD TABLE AS deleted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_delete();
+
 CREATE TABLE object_integer
 (
   id serial NOT NULL,
@@ -29,8 +88,11 @@ CREATE TABLE object_integer
   CONSTRAINT object_integer_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_integer_entry_id_idx ON object_integer (entry_id);
 CREATE INDEX object_integer_type_idx ON object_integer (type);
 CREATE INDEX object_integer_value_idx ON object_integer (value);
+CREATE INDEX object_integer_map_id_value_idx ON object_integer (map_id, type, value);
+CREATE UNIQUE INDEX object_integer_map_id_key_idx ON object_integer (map_id, value) WHERE type = 'K';
 
 
 CREATE TABLE object_boolean
@@ -45,8 +107,11 @@ CREATE TABLE object_boolean
   CONSTRAINT object_boolean_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_boolean_entry_id_idx ON object_boolean (entry_id);
 CREATE INDEX object_boolean_type_idx ON object_boolean (type);
 CREATE INDEX object_boolean_value_idx ON object_boolean (value);
+CREATE INDEX object_boolean_map_id_value_idx ON object_boolean (map_id, type, value);
+CREATE UNIQUE INDEX object_boolean_map_id_key_idx ON object_boolean (map_id, value) WHERE type = 'K';
 
 CREATE TABLE object_numeric
 (
@@ -60,8 +125,11 @@ CREATE TABLE object_numeric
   CONSTRAINT object_numeric_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_numeric_entry_id_idx ON object_numeric (entry_id);
 CREATE INDEX object_numeric_type_idx ON object_numeric (type);
 CREATE INDEX object_numeric_value_idx ON object_numeric (value);
+CREATE INDEX object_numeric_map_id_value_idx ON object_numeric (map_id, type, value);
+CREATE UNIQUE INDEX object_numeric_map_id_key_idx ON object_numeric (map_id, value) WHERE type = 'K';
 
 CREATE TABLE object_text
 (
@@ -75,8 +143,11 @@ CREATE TABLE object_text
   CONSTRAINT object_text_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_text_entry_id_idx ON object_text (entry_id);
 CREATE INDEX object_text_type_idx ON object_text (type);
 CREATE INDEX object_text_value_idx ON object_text (value);
+CREATE INDEX object_text_map_id_value_idx ON object_text (map_id, type, value COLLATE "C");
+CREATE UNIQUE INDEX object_text_map_id_key_idx ON object_text (map_id, value) WHERE type = 'K';
 
 CREATE TABLE object_null
 (
@@ -89,7 +160,10 @@ CREATE TABLE object_null
   CONSTRAINT object_null_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_null_entry_id_idx ON object_null (entry_id);
 CREATE INDEX object_null_type_idx ON object_null (type);
+-- a map has at most one null key
+CREATE UNIQUE INDEX object_null_map_id_key_idx ON object_null (map_id) WHERE type = 'K';
 
 CREATE TABLE object_map
 (
@@ -104,4 +178,153 @@ CREATE TABLE object_map
   CONSTRAINT object_map_value_fkey FOREIGN KEY (value) REFERENCES map (id) ON DELETE CASCADE
 );
 
+CREATE INDEX object_map_entry_id_idx ON object_map (entry_id);
 CREATE INDEX object_map_type_idx ON object_map (type);
+CREATE INDEX object_map_value_idx ON object_map (value);
+CREATE UNIQUE INDEX object_map_map_id_key_idx ON object_map (map_id, value) WHERE type = 'K';
+
+CREATE TABLE object_bigint
+(
+  id serial NOT NULL,
+  entry_id integer NOT NULL,
+  map_id integer NOT NULL,
+  type character(1) NOT NULL,
+  value bigint NOT NULL,
+  CONSTRAINT object_bigint_pkey PRIMARY KEY (id),
+  CONSTRAINT object_bigint_entry_id_fkey FOREIGN KEY (entry_id) REFERENCES entry (id) ON DELETE CASCADE,
+  CONSTRAINT object_bigint_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX object_bigint_entry_id_idx ON object_bigint (entry_id);
+CREATE INDEX object_bigint_type_idx ON object_bigint (type);
+CREATE INDEX object_bigint_value_idx ON object_bigint (value);
+CREATE INDEX object_bigint_map_id_value_idx ON object_bigint (map_id, type, value);
+CREATE UNIQUE INDEX object_bigint_map_id_key_idx ON object_bigint (map_id, value) WHERE type = 'K';
+
+CREATE TABLE object_real
+(
+  id serial NOT NULL,
+  entry_id integer NOT NULL,
+  map_id integer NOT NULL,
+  type character(1) NOT NULL,
+  value real NOT NULL,
+  CONSTRAINT object_real_pkey PRIMARY KEY (id),
+  CONSTRAINT object_real_entry_id_fkey FOREIGN KEY (entry_id) REFERENCES entry (id) ON DELETE CASCADE,
+  CONSTRAINT object_real_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX object_real_entry_id_idx ON object_real (entry_id);
+CREATE INDEX object_real_type_idx ON object_real (type);
+CREATE INDEX object_real_value_idx ON object_real (value);
+CREATE INDEX object_real_map_id_value_idx ON object_real (map_id, type, value);
+CREATE UNIQUE INDEX object_real_map_id_key_idx ON object_real (map_id, value) WHERE type = 'K';
+
+CREATE TABLE object_double
+(
+  id serial NOT NULL,
+  entry_id integer NOT NULL,
+  map_id integer NOT NULL,
+  type character(1) NOT NULL,
+  value double precision NOT NULL,
+  CONSTRAINT object_double_pkey PRIMARY KEY (id),
+  CONSTRAINT object_double_entry_id_fkey FOREIGN KEY (entry_id) REFERENCES entry (id) ON DELETE CASCADE,
+  CONSTRAINT object_double_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX object_double_entry_id_idx ON object_double (entry_id);
+CREATE INDEX object_double_type_idx ON object_double (type);
+CREATE INDEX object_double_value_idx ON object_double (value);
+CREATE INDEX object_double_map_id_value_idx ON object_double (map_id, type, value);
+CREATE UNIQUE INDEX object_double_map_id_key_idx ON object_double (map_id, value) WHERE type = 'K';
+
+CREATE TABLE object_bytea
+(
+  id serial NOT NULL,
+  entry_id integer NOT NULL,
+  map_id integer NOT NULL,
+  type character(1) NOT NULL,
+  value bytea NOT NULL,
+  CONSTRAINT object_bytea_pkey PRIMARY KEY (id),
+  CONSTRAINT object_bytea_entry_id_fkey FOREIGN KEY (entry_id) REFERENCES entry (id) ON DELETE CASCADE,
+  CONSTRAINT object_bytea_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX object_bytea_entry_id_idx ON object_bytea (entry_id);
+CREATE INDEX object_bytea_type_idx ON object_bytea (type);
+-- hash indexes have no limit on the size of the values indexed
+CREATE INDEX object_bytea_value_idx ON object_bytea USING hash (value);
+-- btree entries are size limited, so unique keys are enforced on a digest
+CREATE UNIQUE INDEX object_bytea_map_id_key_idx ON object_bytea (map_id, md5(value)) WHERE type = 'K';
+
+CREATE TABLE object_encoded
+(
+  id serial NOT NULL,
+  entry_id integer NOT NULL,
+  map_id integer NOT NULL,
+  type character(1) NOT NULL,
+  value bytea NOT NULL,
+  CONSTRAINT object_encoded_pkey PRIMARY KEY (id),
+  CONSTRAINT object_encoded_entry_id_fkey FOREIGN KEY (entry_id) REFERENCES entry (id) ON DELETE CASCADE,
+  CONSTRAINT object_encoded_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE
+);
+
+CREATE INDEX object_encoded_entry_id_idx ON object_encoded (entry_id);
+CREATE INDEX object_encoded_type_idx ON object_encoded (type);
+CREATE INDEX object_encoded_value_idx ON object_encoded USING hash (value);
+CREATE UNIQUE INDEX object_encoded_map_id_key_idx ON object_encoded (map_id, md5(value)) WHERE type = 'K';
+
+-- single table storage, one row per entry with a column per key and value type
+CREATE TABLE single_entry
+(
+  id serial NOT NULL,
+  map_id integer NOT NULL,
+  key_hash bigint NOT NULL,
+  key_type character(1) NOT NULL,
+  key_integer integer,
+  key_boolean boolean,
+  key_numeric numeric,
+  key_text text,
+  key_map integer,
+  key_bigint bigint,
+  key_real real,
+  key_double double precision,
+  key_bytea bytea,
+  key_encoded bytea,
+  value_type character(1) NOT NULL,
+  value_integer integer,
+  value_boolean boolean,
+  value_numeric numeric,
+  value_text text,
+  value_map integer,
+  value_bigint bigint,
+  value_real real,
+  value_double double precision,
+  value_bytea bytea,
+  value_encoded bytea,
+  CONSTRAINT single_entry_pkey PRIMARY KEY (id),
+  CONSTRAINT single_entry_map_id_fkey FOREIGN KEY (map_id) REFERENCES map (id) ON DELETE CASCADE,
+  CONSTRAINT single_entry_key_map_fkey FOREIGN KEY (key_map) REFERENCES map (id) ON DELETE CASCADE,
+  CONSTRAINT single_entry_value_map_fkey FOREIGN KEY (value_map) REFERENCES map (id) ON DELETE CASCADE
+);
+
+-- keys of any type are found with one probe, and counted from the index alone
+CREATE UNIQUE INDEX single_entry_map_id_key_hash_idx ON single_entry (map_id, key_hash);
+CREATE INDEX single_entry_map_id_id_idx ON single_entry (map_id, id);
+-- ordered keys, for ranges and lookups of many keys
+CREATE INDEX single_entry_map_id_key_integer_idx ON single_entry (map_id, key_integer) WHERE key_integer IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_boolean_idx ON single_entry (map_id, key_boolean) WHERE key_boolean IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_numeric_idx ON single_entry (map_id, key_numeric) WHERE key_numeric IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_text_idx ON single_entry (map_id, key_text COLLATE "C") WHERE key_text IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_bigint_idx ON single_entry (map_id, key_bigint) WHERE key_bigint IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_real_idx ON single_entry (map_id, key_real) WHERE key_real IS NOT NULL;
+CREATE INDEX single_entry_map_id_key_double_idx ON single_entry (map_id, key_double) WHERE key_double IS NOT NULL;
+CREATE INDEX single_entry_key_map_idx ON single_entry (key_map);
+CREATE INDEX single_entry_value_map_idx ON single_entry (value_map);
+
+CREATE TRIGGER single_entry_count_insert AFTER INSERT ON single_entry
+  REFERENCING NEW TABLE AS inserted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_insert();
+
+CREATE TRIGGER single_entry_count_delete AFTER DELETE ON single_entry
+  REFERENCING OLD TABLE AS deleted_entry
+  FOR EACH STATEMENT EXECUTE FUNCTION entry_count_delete();
@@ -0,0 +1,193 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class AsyncRdbmsMapTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  public AsyncRdbmsMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testAsync() throws InterruptedException, ExecutionException {
+
+    RdbmsMap<Integer, String> map = new RdbmsMap<>(dataSource);
+    AsyncRdbmsMap<Integer, String> asyncMap = new AsyncRdbmsMap<>(map, 4);
+
+    List<CompletableFuture<String>> puts = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      puts.add(asyncMap.putAsync(i, "v" + i));
+    }
+
+    for (CompletableFuture<String> put : puts) {
+      assertNull(put.get());
+    }
+
+    assertEquals(100, map.size());
+    assertEquals("v50", asyncMap.getAsync(50).get());
+    assertNull(asyncMap.getAsync(100).get());
+
+    Map<Integer, String> values = asyncMap.getAllAsync(Arrays.asList(1, 2, 200)).get();
+    assertEquals(2, values.size());
+    assertEquals("v2", values.get(2));
+
+    assertEquals("v1", asyncMap.removeAsync(1).get());
+    assertFalse(map.containsKey(1));
+    assertEquals(0, asyncMap.getInFlight());
+
+    asyncMap.close();
+
+    try {
+      asyncMap.getAsync(1);
+      fail();
+    } catch (final IllegalStateException ise) {
+    }
+
+    map.close();
+  }
+
+  @Test
+  public void testCloseWaitsForQueued() throws InterruptedException {
+
+    RdbmsMap<Integer, String> map = new RdbmsMap<>(dataSource);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch blocked = new CountDownLatch(1);
+
+    // holds the executor's only thread, so the operations below stay queued
+    executor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          blocked.await();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    AsyncRdbmsMap<Integer, String> async = new AsyncRdbmsMap<>(map, 2, executor);
+
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(async.putAsync(i, "v" + i));
+    }
+
+    Thread closer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        async.close();
+      }
+    });
+    closer.start();
+    closer.join(200);
+    assertTrue(closer.isAlive());
+
+    blocked.countDown();
+    closer.join();
+
+    for (CompletableFuture<String> future : futures) {
+      assertTrue(future.isDone());
+    }
+    assertEquals(5, map.size());
+
+    executor.shutdown();
+    map.close();
+  }
+
+  @Test
+  public void testDependentStages() throws InterruptedException, ExecutionException, TimeoutException {
+
+    RdbmsMap<Integer, String> map = new RdbmsMap<>(dataSource);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final AsyncRdbmsMap<Integer, String> async = new AsyncRdbmsMap<>(map, 1, executor);
+
+    // the dependent stage waits for another operation, which needs the only worker and permit
+    CompletableFuture<String> value = async.putAsync(1, "one").thenApply(new Function<String, String>() {
+
+      @Override
+      public String apply(final String previous) {
+        return async.getAsync(1).join();
+      }
+    });
+
+    assertEquals("one", value.get(10, TimeUnit.SECONDS));
+
+    async.close();
+    executor.shutdown();
+    map.close();
+  }
+
+  @Test
+  public void testFailure() throws InterruptedException {
+
+    RdbmsMap<Object, Object> map = new RdbmsMap<>(dataSource);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    AsyncRdbmsMap<Object, Object> asyncMap = new AsyncRdbmsMap<>(map, 2, executor);
+
+    try {
+      asyncMap.putAsync(1, new Object()).get();
+      fail();
+    } catch (final ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof IllegalArgumentException);
+    }
+
+    asyncMap.close();
+    assertFalse(executor.isShutdown());
+    executor.shutdown();
+    map.close();
+  }
+
+  @Test
+  public void testConnection() throws SQLException, InterruptedException, ExecutionException {
+
+    try (Connection connection = dataSource.getConnection()) {
+      RdbmsMap<Integer, Integer> map = new RdbmsMap<>(connection);
+
+      try {
+        new AsyncRdbmsMap<>(map, 2);
+        fail();
+      } catch (final IllegalArgumentException iae) {
+      }
+
+      AsyncRdbmsMap<Integer, Integer> asyncMap = new AsyncRdbmsMap<>(map, 1);
+      asyncMap.putAsync(1, 2).get();
+      assertEquals(Integer.valueOf(2), asyncMap.getAsync(1).get());
+      asyncMap.close();
+      map.close();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class ChangeFeedTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  public ChangeFeedTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testChanges() throws InterruptedException {
+
+    for (StorageMode mode : StorageMode.values()) {
+      RdbmsMap<Object, String> publisher = new RdbmsMap<>(dataSource, mode);
+      RdbmsMap<Object, String> subscriber = RdbmsMap.open(dataSource, publisher.getMapId());
+
+      final BlockingQueue<MapChange<Object>> changes = new LinkedBlockingQueue<>();
+      subscriber.addChangeListener(new ChangeListener<Object>() {
+
+        @Override
+        public void changed(final List<MapChange<Object>> batch) {
+          changes.addAll(batch);
+        }
+      });
+
+      publisher.put(1, "unpublished");
+      publisher.setPublishing(true);
+
+      publisher.put(1, "a");
+      publisher.put("key", "b");
+      publisher.put(null, "c");
+      publisher.remove(1);
+
+      Map<Object, String> m = new HashMap<>();
+      m.put(2L, "d");
+      publisher.putAll(m);
+      publisher.removeAll(Arrays.asList(2L));
+
+      try {
+        publisher.inTransaction(new Work<Void>() {
+
+          @Override
+          public Void execute() {
+            publisher.put("rolled back", "e");
+            throw new IllegalStateException();
+          }
+        });
+        fail();
+      } catch (final IllegalStateException ise) {
+      }
+
+      publisher.clear();
+
+      assertChange(changes, ChangeType.PUT, 1);
+      assertChange(changes, ChangeType.PUT, "key");
+      assertChange(changes, ChangeType.PUT, null);
+      assertChange(changes, ChangeType.REMOVE, 1);
+      assertChange(changes, ChangeType.PUT, 2L);
+      assertChange(changes, ChangeType.REMOVE, 2L);
+      assertChange(changes, ChangeType.CLEAR, null);
+      assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+
+      subscriber.close();
+      publisher.close();
+    }
+  }
+
+  @Test
+  public void testUnreadableKey() throws InterruptedException {
+
+    RdbmsMap<Object, String> publisher = new RdbmsMap<>(dataSource);
+    publisher.setCodec(new SerializableCodec());
+    publisher.setPublishing(true);
+    // no codec to decode the publisher's encoded keys
+    RdbmsMap<Object, String> subscriber = RdbmsMap.open(dataSource, publisher.getMapId());
+
+    final BlockingQueue<MapChange<Object>> changes = new LinkedBlockingQueue<>();
+    subscriber.addChangeListener(new ChangeListener<Object>() {
+
+      @Override
+      public void changed(final List<MapChange<Object>> batch) {
+        changes.addAll(batch);
+      }
+    });
+
+    publisher.put(new AbstractMap.SimpleEntry<>("a", 1), "a");
+    assertChange(changes, ChangeType.RELOAD, null);
+
+    // the feed is still listening
+    publisher.put(1, "b");
+    assertChange(changes, ChangeType.PUT, 1);
+
+    subscriber.close();
+    publisher.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testOpenMissing() {
+
+    RdbmsMap.open(dataSource, -1);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testConnectionListener() throws SQLException {
+
+    try (Connection connection = dataSource.getConnection()) {
+      RdbmsMap<Integer, Integer> map = new RdbmsMap<>(connection);
+
+      map.addChangeListener(new ChangeListener<Integer>() {
+
+        @Override
+        public void changed(final List<MapChange<Integer>> changes) {
+        }
+      });
+    }
+  }
+
+  private static void assertChange(final BlockingQueue<MapChange<Object>> changes, final ChangeType type, final Object key) throws InterruptedException {
+
+    MapChange<Object> change = changes.poll(5, TimeUnit.SECONDS);
+
+    assertNotNull(change);
+    assertEquals(type, change.getType());
+    assertEquals(key, change.getKey());
+  }
+}
@@ -0,0 +1,120 @@
+package org.adrianwalker.rdbmsmap;
+
+import static org.adrianwalker.rdbmsmap.Filter.*;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class FilterTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  public FilterTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testFilter() {
+
+    for (StorageMode mode : StorageMode.values()) {
+      RdbmsMap<Object, Object> map = new RdbmsMap<>(dataSource, mode);
+      map.put(1, 50);
+      map.put(2, 150);
+      map.put(3, 200L);
+      map.put(4, 100.5);
+      map.put(5, new BigDecimal("99.5"));
+      map.put("a", "apple");
+      map.put("b", "banana");
+      map.put("c", null);
+      map.put(true, false);
+
+      assertEquals(mode.name(), map(2, 3, 4), filter(map, valueGreaterThan(100)));
+      assertEquals(mode.name(), map(1, 5), filter(map, valueLessThan(100)));
+      assertEquals(mode.name(), map(1), filter(map, valueEquals(50)));
+      assertEquals(mode.name(), map(), filter(map, valueEquals(50L)));
+      assertEquals(mode.name(), map("c"), filter(map, valueIsNull()));
+      assertEquals(mode.name(), map("b"), filter(map, valueStartsWith("ban")));
+      assertEquals(mode.name(), map("b"), filter(map, valueGreaterThan("b")));
+      assertEquals(mode.name(), map(true), filter(map, valueEquals(false)));
+      assertEquals(mode.name(), map(2, 3), filter(map, and(keyGreaterThanOrEqual(2), keyLessThanOrEqual(3))));
+      assertEquals(mode.name(), map(1, "a"), filter(map, or(keyEquals(1), keyEquals("a"))));
+      assertEquals(mode.name(), map(1, 4, 5), filter(map, not(valueGreaterThanOrEqual(150))));
+
+      assertEquals(mode.name(), 3, map.countWhere(valueGreaterThan(100)));
+      assertEquals(mode.name(), 0, map.countWhere(keyStartsWith("z")));
+      assertEquals(mode.name(), 0, new BigDecimal("600").compareTo(map.sumValues()));
+      assertEquals(mode.name(), 0, new BigDecimal("500.5").compareTo(map.sumValues(keyLessThan(5))));
+      assertEquals(mode.name(), 0, BigDecimal.ZERO.compareTo(map.sumValues(keyEquals("a"))));
+
+      Iterator<Entry<Object, Object>> entries = map.entries(valueLessThan(100));
+      while (entries.hasNext()) {
+        entries.next();
+        entries.remove();
+      }
+
+      assertEquals(mode.name(), 7, map.size());
+      assertFalse(mode.name(), map.containsKey(1));
+
+      map.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedType() {
+
+    valueGreaterThan(new java.util.Date());
+  }
+
+  private static Map<Object, Object> filter(final RdbmsMap<Object, Object> map, final Filter filter) {
+
+    Map<Object, Object> entries = new HashMap<>();
+    Iterator<Entry<Object, Object>> iterator = map.entries(filter);
+
+    while (iterator.hasNext()) {
+      Entry<Object, Object> entry = iterator.next();
+      entries.put(entry.getKey(), entry.getValue());
+    }
+
+    return entries;
+  }
+
+  private static Map<Object, Object> map(final Object... keys) {
+
+    Map<Object, Object> entries = new HashMap<>();
+    Map<Object, Object> all = new HashMap<>();
+    all.put(1, 50);
+    all.put(2, 150);
+    all.put(3, 200L);
+    all.put(4, 100.5);
+    all.put(5, new BigDecimal("99.5"));
+    all.put("a", "apple");
+    all.put("b", "banana");
+    all.put("c", null);
+    all.put(true, false);
+
+    for (Object key : keys) {
+      entries.put(key, all.get(key));
+    }
+
+    return entries;
+  }
+}
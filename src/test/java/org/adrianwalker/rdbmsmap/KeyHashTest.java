@@ -0,0 +1,38 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.math.BigDecimal;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class KeyHashTest {
+
+  public KeyHashTest() {
+  }
+
+  @Test
+  public void testExact() {
+
+    assertTrue(KeyHash.isExact(ObjectType.INTEGER));
+    assertFalse(KeyHash.isExact(ObjectType.TEXT));
+
+    assertEquals(0x100000001L, KeyHash.hash(ObjectType.INTEGER, 1));
+    assertEquals(0x1ffffffffL, KeyHash.hash(ObjectType.INTEGER, -1));
+    assertEquals(0x200000001L, KeyHash.hash(ObjectType.BOOLEAN, true));
+    assertEquals(0L, KeyHash.hash(ObjectType.NULL, null));
+  }
+
+  @Test
+  public void testHashed() {
+
+    assertTrue(KeyHash.hash(ObjectType.TEXT, "1") < 0);
+    assertTrue(KeyHash.hash(ObjectType.NUMERIC, 1.0) < 0);
+
+    assertEquals(KeyHash.hash(ObjectType.TEXT, "key"), KeyHash.hash(ObjectType.TEXT, new String("key")));
+    assertFalse(KeyHash.hash(ObjectType.TEXT, "key1") == KeyHash.hash(ObjectType.TEXT, "key2"));
+    assertEquals(KeyHash.hash(ObjectType.DOUBLE, 0.0), KeyHash.hash(ObjectType.DOUBLE, -0.0));
+    assertFalse(KeyHash.hash(ObjectType.DOUBLE, 1.0) == KeyHash.hash(ObjectType.DOUBLE, 1.1));
+    assertEquals(KeyHash.hash(ObjectType.NUMERIC, new BigDecimal("1.0")), KeyHash.hash(ObjectType.NUMERIC, new BigDecimal("1.00")));
+    assertFalse(KeyHash.hash(ObjectType.LONG, 1L) == KeyHash.hash(ObjectType.LONG, 2L));
+    assertEquals(KeyHash.hash(ObjectType.BYTES, new byte[]{1, 2}), KeyHash.hash(ObjectType.BYTES, new byte[]{1, 2}));
+  }
+}
@@ -0,0 +1,53 @@
+package org.adrianwalker.rdbmsmap;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class MapStatisticsTest {
+
+  public MapStatisticsTest() {
+  }
+
+  @Test
+  public void testTotals() {
+
+    OperationStats stats = new OperationStats();
+    stats.prepared(false);
+    stats.executed(3);
+    stats.read();
+    stats.read();
+
+    MapStatistics statistics = new MapStatistics();
+    statistics.completed("put", 2000, stats);
+    statistics.completed("put", 4000, stats);
+
+    assertArrayEquals(new String[]{"put"}, statistics.getOperations());
+    assertEquals(2, statistics.getCount("put"));
+    assertEquals(3.0, statistics.getMeanLatency("put"), 0.001);
+    assertEquals(6, statistics.getStatements("put"));
+    assertEquals(2, statistics.getRoundTrips("put"));
+    assertEquals(4, statistics.getRowsRead("put"));
+    assertEquals(0, statistics.getCount("get"));
+    assertEquals(0.0, statistics.getStatementCacheHitRate(), 0.001);
+
+    statistics.reset();
+    assertEquals(0, statistics.getOperations().length);
+  }
+
+  @Test
+  public void testLatencyPercentile() {
+
+    MapStatistics statistics = new MapStatistics();
+
+    for (int i = 0; i < 99; i++) {
+      statistics.completed("get", 1500, new OperationStats());
+    }
+
+    statistics.completed("get", 1000000, new OperationStats());
+
+    // buckets are powers of two nanoseconds, rounded up to whole microseconds
+    assertEquals(3, statistics.getLatencyPercentile("get", 50));
+    assertEquals(3, statistics.getLatencyPercentile("get", 99));
+    assertEquals(1049, statistics.getLatencyPercentile("get", 100));
+  }
+}
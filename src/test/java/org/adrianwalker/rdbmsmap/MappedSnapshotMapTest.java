@@ -0,0 +1,195 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class MappedSnapshotMapTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  public MappedSnapshotMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testSnapshot() {
+
+    Date date = new Date(0);
+    Map<Object, Object> entries = new HashMap<>();
+    entries.put(1, "one");
+    entries.put(2L, 2.5);
+    entries.put(1.5f, true);
+    entries.put(-0.0, null);
+    entries.put("text", new BigDecimal("1.50"));
+    entries.put(true, 7L);
+    entries.put(null, 3.5f);
+    entries.put(new BigDecimal("10.0"), "ten");
+    entries.put(date, "date");
+    entries.put("bytes", new byte[]{1, 2, 3});
+
+    for (int i = 0; i < 1000; i++) {
+      entries.put("key" + i, i);
+    }
+
+    RdbmsMap<Object, Object> map = new RdbmsMap<>(dataSource);
+    map.setCodec(new SerializableCodec());
+    map.putAll(entries);
+
+    Path path = new File(folder.getRoot(), "map.snapshot").toPath();
+    map.snapshotTo(path);
+
+    MappedSnapshotMap<Object, Object> snapshot = new MappedSnapshotMap<>(path, new SerializableCodec());
+
+    assertEquals(1010, snapshot.size());
+    assertEquals("one", snapshot.get(1));
+    assertEquals(2.5, snapshot.get(2L));
+    assertEquals(true, snapshot.get(1.5f));
+    assertTrue(snapshot.containsKey(0.0));
+    assertNull(snapshot.get(0.0));
+    assertEquals(new BigDecimal("1.50"), snapshot.get("text"));
+    assertEquals(7L, snapshot.get(true));
+    assertEquals(3.5f, snapshot.get(null));
+    assertEquals("ten", snapshot.get(new BigDecimal("10")));
+    assertEquals("date", snapshot.get(date));
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, (byte[]) snapshot.get("bytes")));
+    assertEquals(999, snapshot.get("key999"));
+
+    assertNull(snapshot.get(2));
+    assertNull(snapshot.get(1L));
+    assertFalse(snapshot.containsKey("missing"));
+    assertFalse(snapshot.containsKey(false));
+
+    Map<Object, Object> copy = new HashMap<>(snapshot);
+    assertEquals(1010, copy.size());
+    assertEquals(500, copy.get("key500"));
+
+    try {
+      snapshot.put(3, "three");
+      fail();
+    } catch (final UnsupportedOperationException uoe) {
+    }
+
+    map.clear();
+    map.put(3, "three");
+    map.snapshotTo(path);
+
+    assertEquals("one", snapshot.get(1));
+    snapshot.refresh();
+    assertEquals(1, snapshot.size());
+    assertNull(snapshot.get(1));
+    assertEquals("three", snapshot.get(3));
+
+    map.close();
+  }
+
+  @Test
+  public void testSnapshotWhileWriting() throws Exception {
+
+    final Codec codec = new SerializableCodec();
+    final AtomicBoolean reading = new AtomicBoolean();
+    final RdbmsMap<Object, Object> map = new RdbmsMap<>(dataSource);
+
+    // puts the first key again, from another connection, while the snapshot reads its value
+    map.setCodec(new Codec() {
+
+      @Override
+      public byte[] encode(final Object obj) {
+        return codec.encode(obj);
+      }
+
+      @Override
+      public Object decode(final byte[] bytes) {
+
+        if (reading.compareAndSet(true, false)) {
+          ExecutorService executor = Executors.newSingleThreadExecutor();
+
+          try {
+            executor.submit(new Callable<Object>() {
+
+              @Override
+              public Object call() {
+                return map.put("first", new Date(1));
+              }
+            }).get();
+          } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+          } finally {
+            executor.shutdown();
+          }
+        }
+
+        return codec.decode(bytes);
+      }
+    });
+
+    map.put("first", new Date(0));
+
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+
+    map.setFetchSize(2);
+    reading.set(true);
+
+    Path path = new File(folder.getRoot(), "map.snapshot").toPath();
+    map.snapshotTo(path);
+
+    MappedSnapshotMap<Object, Object> snapshot = new MappedSnapshotMap<>(path, codec);
+
+    assertFalse(reading.get());
+    assertEquals(11, snapshot.size());
+    assertEquals(11, new HashMap<>(snapshot).size());
+    assertEquals(new Date(0), snapshot.get("first"));
+    assertEquals(new Date(1), map.get("first"));
+
+    map.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNestedMap() {
+
+    RdbmsMap<String, Object> map = new RdbmsMap<>(dataSource);
+    map.put("nested", new RdbmsMap<>(dataSource));
+
+    map.snapshotTo(new File(folder.getRoot(), "nested.snapshot").toPath());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotSnapshot() throws IOException {
+
+    new MappedSnapshotMap<>(folder.newFile("empty").toPath());
+  }
+}
@@ -0,0 +1,92 @@
+package org.adrianwalker.rdbmsmap;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class NearCacheTest {
+
+  public NearCacheTest() {
+  }
+
+  @Test
+  public void testLookup() {
+
+    NearCache<Integer, String> cache = new NearCache<Integer, String>(10);
+    assertSame(NearCache.MISS, cache.lookup(1));
+
+    cache.put(1, "1");
+    cache.put(2, null);
+    cache.putAbsent(3);
+
+    assertEquals("1", cache.lookup(1));
+    assertNull(cache.lookup(2));
+    assertSame(NearCache.ABSENT, cache.lookup(3));
+
+    cache.invalidate(1);
+    assertSame(NearCache.MISS, cache.lookup(1));
+
+    assertEquals(3, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(0.6, cache.getHitRate(), 0.001);
+  }
+
+  @Test
+  public void testEviction() {
+
+    NearCache<Integer, Integer> cache = new NearCache<Integer, Integer>(2);
+    cache.put(1, 1);
+    cache.put(2, 2);
+    cache.lookup(1);
+    cache.put(3, 3);
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, cache.lookup(1));
+    assertSame(NearCache.MISS, cache.lookup(2));
+    assertEquals(3, cache.lookup(3));
+  }
+
+  @Test
+  public void testStamp() {
+
+    NearCache<Integer, String> cache = new NearCache<Integer, String>(10);
+
+    // a read which started before a write does not cache its older value
+    long stamp = cache.stamp();
+    cache.put(1, "new");
+    cache.put(1, "old", stamp);
+    assertSame(NearCache.MISS, cache.lookup(1));
+
+    stamp = cache.stamp();
+    cache.invalidate(2);
+    cache.putAbsent(2, stamp);
+    assertSame(NearCache.MISS, cache.lookup(2));
+
+    stamp = cache.stamp();
+    cache.put(1, "1", stamp);
+    assertEquals("1", cache.lookup(1));
+  }
+
+  @Test
+  public void testByteArrayKeys() {
+
+    NearCache<byte[], String> cache = new NearCache<byte[], String>(10);
+    byte[] key = {1, 2, 3};
+
+    cache.put(key, "123");
+    assertEquals("123", cache.lookup(new byte[]{1, 2, 3}));
+
+    key[0] = 4;
+    assertEquals("123", cache.lookup(new byte[]{1, 2, 3}));
+    assertSame(NearCache.MISS, cache.lookup(key));
+
+    cache.invalidate(new byte[]{1, 2, 3});
+    assertSame(NearCache.MISS, cache.lookup(new byte[]{1, 2, 3}));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaximumSize() {
+
+    new NearCache<Integer, Integer>(0);
+  }
+}
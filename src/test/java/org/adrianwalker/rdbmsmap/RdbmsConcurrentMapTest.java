@@ -0,0 +1,187 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class RdbmsConcurrentMapTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  public RdbmsConcurrentMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testCompoundOperations() {
+
+    RdbmsConcurrentMap map = new RdbmsConcurrentMap(new RdbmsMap(dataSource));
+
+    assertNull(map.putIfAbsent(1, "a"));
+    assertEquals("a", map.putIfAbsent(1, "b"));
+    assertEquals("a", map.get(1));
+
+    assertFalse(map.replace(1, "b", "c"));
+    assertTrue(map.replace(1, "a", "c"));
+    assertEquals("c", map.replace(1, "d"));
+    assertNull(map.replace(2, "d"));
+    assertFalse(map.containsKey(2));
+
+    assertFalse(map.remove(1, "c"));
+    assertTrue(map.remove(1, "d"));
+    assertTrue(map.isEmpty());
+
+    assertEquals("x", map.computeIfAbsent("k", new Function() {
+
+      @Override
+      public Object apply(final Object key) {
+        return "x";
+      }
+    }));
+    assertEquals("x", map.computeIfAbsent("k", new Function() {
+
+      @Override
+      public Object apply(final Object key) {
+        return "y";
+      }
+    }));
+
+    assertNull(map.computeIfPresent("k", new BiFunction() {
+
+      @Override
+      public Object apply(final Object key, final Object value) {
+        return null;
+      }
+    }));
+    assertFalse(map.containsKey("k"));
+
+    map.close();
+  }
+
+  @Test
+  public void testConcurrentMerge() throws Exception {
+
+    final RdbmsConcurrentMap<String, Integer> map = new RdbmsConcurrentMap<String, Integer>(new RdbmsMap<String, Integer>(dataSource));
+    final int threads = 8;
+    final int increments = 25;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+
+          for (int i = 0; i < increments; i++) {
+            map.merge("counter", 1, new BiFunction<Integer, Integer, Integer>() {
+
+              @Override
+              public Integer apply(final Integer current, final Integer value) {
+                return current + value;
+              }
+            });
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(Integer.valueOf(threads * increments), map.get("counter"));
+    assertEquals(1, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testConcurrentPutIfAbsent() throws Exception {
+
+    for (StorageMode mode : StorageMode.values()) {
+      final RdbmsConcurrentMap<Object, Integer> map = new RdbmsConcurrentMap<Object, Integer>(new RdbmsMap<Object, Integer>(dataSource, mode));
+      final int threads = 8;
+      final int keys = 25;
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+
+        futures.add(executor.submit(new Callable<Integer>() {
+
+          @Override
+          public Integer call() {
+
+            int put = 0;
+
+            for (int i = 0; i < keys; i++) {
+              if (null == map.putIfAbsent(i, thread)) {
+                put++;
+              }
+
+              if (null == map.putIfAbsent("key " + i, thread)) {
+                put++;
+              }
+            }
+
+            return put;
+          }
+        }));
+      }
+
+      int put = 0;
+      for (Future<Integer> future : futures) {
+        put += future.get();
+      }
+
+      executor.shutdown();
+
+      // each key was put by exactly one thread
+      assertEquals(keys * 2, put);
+      assertEquals(keys * 2, map.size());
+      map.close();
+    }
+  }
+
+  @Test
+  public void testPutIfAbsentNullValue() {
+
+    RdbmsConcurrentMap<String, Integer> map = new RdbmsConcurrentMap<String, Integer>(new RdbmsMap<String, Integer>(dataSource));
+    map.put("a", null);
+
+    assertNull(map.putIfAbsent("a", 1));
+    assertEquals(Integer.valueOf(1), map.putIfAbsent("a", 2));
+    assertEquals(Integer.valueOf(1), map.get("a"));
+    assertEquals(1, map.size());
+    map.close();
+  }
+}
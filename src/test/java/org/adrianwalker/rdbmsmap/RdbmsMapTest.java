@@ -1,18 +1,33 @@
 package org.adrianwalker.rdbmsmap;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.postgresql.ds.PGPoolingDataSource;
+import org.postgresql.ds.PGSimpleDataSource;
 
 public final class RdbmsMapTest {
 
@@ -22,6 +37,7 @@ public final class RdbmsMapTest {
   private static final String PASSWORD = "postgres";
 
   private static Connection connection;
+  private static PGSimpleDataSource dataSource;
 
   public RdbmsMapTest() {
   }
@@ -32,6 +48,13 @@ public final class RdbmsMapTest {
     Class.forName(DRIVER);
 
     connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
   }
 
   @AfterClass
@@ -126,6 +149,27 @@ public final class RdbmsMapTest {
     assertTrue(set.contains(new AbstractMap.SimpleEntry(null, null)));
   }
 
+  @Test
+  public void testEntrySetOfMaps() {
+
+    RdbmsMap map1 = new RdbmsMap(connection);
+    RdbmsMap map2 = new RdbmsMap(connection);
+    map1.put("map2", map2);
+    map1.put(map2, "map2");
+
+    Set<Entry> set = map1.entrySet();
+    assertEquals(2, set.size());
+
+    for (Entry entry : set) {
+      if ("map2".equals(entry.getKey())) {
+        assertEquals(map2.getMapId(), ((RdbmsMap) entry.getValue()).getMapId());
+      } else {
+        assertEquals(map2.getMapId(), ((RdbmsMap) entry.getKey()).getMapId());
+        assertEquals("map2", entry.getValue());
+      }
+    }
+  }
+
   @Test
   public void testGet() {
 
@@ -188,6 +232,23 @@ public final class RdbmsMapTest {
     assertEquals(null, map.put(null, null));
   }
 
+  @Test
+  public void testPutReplacesValueType() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    assertNull(map.put(1, "2"));
+    assertEquals("2", map.put(1, 2.2));
+    assertEquals(2.2, map.put(1, null));
+    assertEquals(null, map.put(1, true));
+    assertEquals(true, map.get(1));
+
+    assertNull(map.put(null, 1));
+    assertEquals(1, map.put(null, "1"));
+    assertEquals("1", map.get(null));
+
+    assertEquals(2, map.size());
+  }
+
   @Test
   public void testPutAll() {
 
@@ -204,6 +265,30 @@ public final class RdbmsMapTest {
     assertEquals(5, map2.size());
   }
 
+  @Test
+  public void testPutAllBatches() {
+
+    Map map1 = new HashMap();
+    for (int i = 0; i < 250; i++) {
+      map1.put(i, String.valueOf(i));
+      map1.put(String.valueOf(i), i);
+    }
+    map1.put(null, null);
+
+    RdbmsMap map2 = new RdbmsMap(connection);
+    map2.setBatchSize(100);
+    map2.put(1, 1);
+    map2.put(null, 1);
+    map2.put(true, false);
+    map2.putAll(map1);
+
+    assertEquals(502, map2.size());
+    assertEquals("1", map2.get(1));
+    assertEquals(249, map2.get("249"));
+    assertEquals(null, map2.get(null));
+    assertEquals(false, map2.get(true));
+  }
+
   @Test
   public void testRemove() {
 
@@ -275,6 +360,302 @@ public final class RdbmsMapTest {
     assertFalse(values.contains(true));
   }
 
+  @Test
+  public void testIterators() throws SQLException {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.setFetchSize(10);
+
+    Map map1 = new HashMap();
+    for (int i = 0; i < 100; i++) {
+      map1.put(i, i * 2);
+    }
+    map.putAll(map1);
+
+    int count = 0;
+    Iterator<Entry> entries = map.entrySet().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next();
+      assertEquals(map1.get(entry.getKey()), entry.getValue());
+
+      if ((Integer) entry.getKey() % 2 == 0) {
+        entries.remove();
+      }
+
+      count++;
+    }
+
+    assertEquals(100, count);
+    assertEquals(50, map.size());
+    assertEquals(50, map.keySet().size());
+    assertTrue(connection.getAutoCommit());
+
+    int sum = 0;
+    for (Object value : map.values()) {
+      sum += (Integer) value;
+    }
+    assertEquals(5000, sum);
+
+    Iterator keys = map.keySet().iterator();
+    Iterator values = map.values().iterator();
+    while (keys.hasNext() && values.hasNext()) {
+      keys.next();
+      values.next();
+    }
+    assertTrue(connection.getAutoCommit());
+  }
+
+  @Test
+  public void testAbandonedIterator() throws SQLException {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(1, 1);
+    map.put(2, 2);
+
+    map.keySet().iterator().next();
+    assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry(1, 1)));
+    map.put(3, 3);
+    assertTrue(connection.getAutoCommit());
+
+    RdbmsMap shared = new RdbmsMap(dataSource);
+    shared.put(1, 1);
+    shared.put(2, 2);
+
+    for (Object key : shared.keySet()) {
+      break;
+    }
+    shared.put(3, 3);
+
+    try (Connection other = DriverManager.getConnection(URL, USERNAME, PASSWORD)) {
+      assertEquals(3, RdbmsMap.open(other, map.getMapId()).size());
+      assertEquals(3, RdbmsMap.open(other, shared.getMapId()).size());
+    }
+  }
+
+  @Test
+  public void testPagedRange() {
+
+    RdbmsMap<Integer, Integer> map = new RdbmsMap<>(connection);
+    map.setFetchSize(3);
+
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+
+    RdbmsNavigableMap<Integer, Integer> navigable = new RdbmsNavigableMap<>(map, Integer.class);
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), new ArrayList<>(navigable.subMap(1, true, 8, true).keySet()));
+    assertEquals(Arrays.asList(8, 7, 6, 5, 4, 3, 2, 1), new ArrayList<>(navigable.descendingMap().subMap(8, true, 1, true).keySet()));
+  }
+
+  @Test
+  public void testEntrySetValue() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(1, 2);
+
+    for (Object o : map.entrySet()) {
+      ((Entry) o).setValue(3);
+    }
+
+    assertEquals(3, map.get(1));
+  }
+
+  @Test
+  public void testNearCache() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    NearCache cache = new NearCache(100);
+    map.setNearCache(cache);
+
+    map.put(1, 2);
+    map.put(null, null);
+    assertEquals(2, map.get(1));
+    assertEquals(null, map.get(null));
+    assertTrue(map.containsKey(null));
+    assertEquals(3, cache.getHits());
+    assertEquals(0, cache.getMisses());
+
+    assertFalse(map.containsKey(2));
+    assertFalse(map.containsKey(2));
+    assertEquals(4, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    assertEquals(2, map.remove(1));
+    assertFalse(map.containsKey(1));
+
+    Map map1 = new HashMap();
+    map1.put(1, 3);
+    map1.put(2, 4);
+    map.putAll(map1);
+    assertEquals(3, map.get(1));
+    assertEquals(4, map.get(2));
+
+    Iterator keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if (Integer.valueOf(2).equals(keys.next())) {
+        keys.remove();
+      }
+    }
+    assertFalse(map.containsKey(2));
+
+    map.clear();
+    assertEquals(0, cache.size());
+    assertNull(map.get(1));
+  }
+
+  @Test
+  public void testKeyHash() {
+
+    RdbmsMap map = new RdbmsMap(connection, StorageMode.KEY_HASH);
+    RdbmsMap map2 = new RdbmsMap(connection, StorageMode.KEY_HASH);
+    assertEquals(StorageMode.KEY_HASH, map.getStorageMode());
+
+    assertNull(map.put(1, 2));
+    assertNull(map.put("1", "2"));
+    assertNull(map.put(1.1, 2.2));
+    assertNull(map.put(true, false));
+    assertNull(map.put(null, null));
+    assertNull(map.put(map2, "map2"));
+
+    assertEquals(2, map.put(1, 3));
+    assertEquals("2", map.put("1", "3"));
+    assertEquals(2.2, map.put(1.1, 3.3));
+    assertEquals(false, map.put(true, true));
+    assertEquals(null, map.put(null, null));
+    assertEquals(6, map.size());
+
+    assertTrue(map.containsKey("1"));
+    assertTrue(map.containsKey(map2));
+    assertFalse(map.containsKey("2"));
+    assertFalse(map.containsKey(2.2));
+    assertEquals("map2", map.get(map2));
+    assertEquals(3.3, map.get(1.1));
+
+    Map map1 = new HashMap();
+    map1.put("1", "4");
+    map1.put(2, 5);
+    map.putAll(map1);
+    assertEquals("4", map.get("1"));
+    assertEquals(5, map.get(2));
+    assertEquals(7, map.size());
+
+    assertEquals("4", map.remove("1"));
+    assertFalse(map.containsKey("1"));
+    assertEquals(6, map.size());
+  }
+
+  @Test
+  public void testSingleTable() {
+
+    RdbmsMap map = new RdbmsMap(connection, StorageMode.SINGLE_TABLE);
+    RdbmsMap map2 = new RdbmsMap(connection, StorageMode.SINGLE_TABLE);
+    assertEquals(StorageMode.SINGLE_TABLE, map.getStorageMode());
+
+    assertNull(map.put(1, 2));
+    assertNull(map.put("1", "2"));
+    assertNull(map.put(1.1, 2.2));
+    assertNull(map.put(true, false));
+    assertNull(map.put(null, null));
+    assertNull(map.put("map2", map2));
+
+    assertEquals(2, map.put(1, "3"));
+    assertEquals("2", map.put("1", 3));
+    assertEquals(null, map.put(null, "null"));
+    assertEquals(6, map.size());
+
+    assertTrue(map.containsKey("1"));
+    assertFalse(map.containsKey("2"));
+    assertTrue(map.containsValue("3"));
+    assertTrue(map.containsValue(false));
+    assertTrue(map.containsValue(map2));
+    assertFalse(map.containsValue(2));
+    assertEquals("null", map.get(null));
+
+    map2.put("3", "4");
+    assertEquals("4", ((RdbmsMap) map.get("map2")).get("3"));
+
+    Map map1 = new HashMap();
+    map1.put("1", "4");
+    map1.put(2, 5);
+    map.putAll(map1);
+    assertEquals("4", map.get("1"));
+    assertEquals(5, map.get(2));
+    assertEquals(7, map.size());
+
+    assertEquals("4", map.remove("1"));
+    assertFalse(map.containsKey("1"));
+    assertEquals(6, map.size());
+
+    Map local = map.toLocalMap();
+    assertEquals(6, local.size());
+    assertEquals("4", ((Map) local.get("map2")).get("3"));
+
+    RdbmsMap copy = RdbmsMap.copyOf(map);
+    assertEquals(StorageMode.SINGLE_TABLE, copy.getStorageMode());
+    assertEquals(6, copy.size());
+    RdbmsMap copy2 = (RdbmsMap) copy.get("map2");
+    assertFalse(map2.getMapId() == copy2.getMapId());
+    assertEquals("4", copy2.get("3"));
+
+    Iterator<Entry> entries = map.entrySet().iterator();
+    while (entries.hasNext()) {
+      if (entries.next().getValue() instanceof RdbmsMap) {
+        entries.remove();
+      }
+    }
+    assertEquals(5, map.size());
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(6, copy.size());
+  }
+
+  @Test
+  public void testSingleTableHashCollision() throws SQLException {
+
+    RdbmsMap map = new RdbmsMap(connection, StorageMode.SINGLE_TABLE);
+    RdbmsMap source = new RdbmsMap(connection, StorageMode.SINGLE_TABLE);
+    map.put("a", 1);
+    source.put("b", 2);
+
+    // give "a" the hash of "b"
+    try (PreparedStatement statement = connection.prepareStatement("update single_entry set key_hash = ? where map_id = ?")) {
+      statement.setLong(1, KeyHash.hash(ObjectType.TEXT, "b"));
+      statement.setInt(2, map.getMapId());
+      statement.executeUpdate();
+    }
+
+    try {
+      map.putAll(Collections.singletonMap("b", 2));
+      fail();
+    } catch (final RuntimeException re) {
+    }
+
+    try {
+      map.mergeFrom(source);
+      fail();
+    } catch (final RuntimeException re) {
+    }
+
+    assertEquals(Collections.singletonMap("a", 1), map.toLocalMap());
+
+    map.close();
+    source.close();
+  }
+
+  @Test
+  public void testKeyHashNestedMap() {
+
+    RdbmsMap map1 = new RdbmsMap(connection);
+    RdbmsMap map2 = new RdbmsMap(connection, StorageMode.KEY_HASH);
+    map2.put("3", "4");
+    map1.put("map2", map2);
+
+    RdbmsMap nested = (RdbmsMap) map1.get("map2");
+    assertEquals(StorageMode.KEY_HASH, nested.getStorageMode());
+    assertEquals("4", nested.get("3"));
+  }
+
   @Test
   public void testMapOfMaps() {
 
@@ -304,4 +685,670 @@ public final class RdbmsMapTest {
     assertEquals(((RdbmsMap) map1.get("map2")).get(false), true);
     assertEquals(((RdbmsMap) map1.get("map2")).get(null), null);
   }
+
+  @Test
+  public void testStatementsReused() throws SQLException {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(1, 2);
+    map.get(1);
+
+    StatementCache statements = StatementCache.acquire(connection);
+    int size = statements.size();
+
+    for (int i = 0; i < 10; i++) {
+      map.put(1, i);
+      assertEquals(i, map.get(1));
+    }
+
+    assertEquals(size, statements.size());
+    statements.release();
+  }
+
+  @Test
+  public void testNestedMapStatementsReleased() throws SQLException {
+
+    try (Connection other = DriverManager.getConnection(URL, USERNAME, PASSWORD)) {
+      RdbmsMap map1 = new RdbmsMap(other);
+      RdbmsMap map2 = new RdbmsMap(other);
+      map2.put(1, 2);
+      map1.put("map2", map2);
+      map2.close();
+
+      for (int i = 0; i < 10; i++) {
+        assertEquals(2, ((RdbmsMap) map1.get("map2")).get(1));
+      }
+
+      map1.close();
+
+      StatementCache statements = StatementCache.acquire(other);
+      assertEquals(0, statements.size());
+      statements.release();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClose() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(1, 2);
+    map.close();
+    map.close();
+
+    map.get(1);
+  }
+
+  @Test
+  public void testDataSource() {
+
+    RdbmsMap map1 = new RdbmsMap(dataSource);
+    RdbmsMap map2 = new RdbmsMap(dataSource);
+    map2.put(1, 2);
+    map1.put("map2", map2);
+    map1.put(3, 4);
+
+    assertEquals(2, map1.size());
+    assertEquals(2, ((RdbmsMap) map1.get("map2")).get(1));
+
+    Map copy = new HashMap();
+    for (Object e : map1.entrySet()) {
+      Entry entry = (Entry) e;
+      copy.put(entry.getKey(), entry.getValue());
+    }
+
+    assertEquals(2, copy.size());
+    assertEquals(2, ((RdbmsMap) copy.get("map2")).get(1));
+
+    Iterator keys = map1.keySet().iterator();
+    keys.next();
+    keys.remove();
+    while (keys.hasNext()) {
+      keys.next();
+    }
+
+    assertEquals(1, map1.size());
+
+    map1.close();
+    map2.close();
+  }
+
+  @Test
+  public void testPooledStatementsReused() {
+
+    PGPoolingDataSource pool = new PGPoolingDataSource();
+    pool.setServerName("localhost");
+    pool.setPortNumber(5432);
+    pool.setDatabaseName("postgres");
+    pool.setUser(USERNAME);
+    pool.setPassword(PASSWORD);
+    pool.setMaxConnections(1);
+
+    RdbmsMap map = new RdbmsMap(pool);
+    MapStatistics statistics = new MapStatistics();
+    map.setListener(statistics);
+
+    // each put borrows the pool's only connection again
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+
+    assertEquals(10, map.size());
+    assertTrue(statistics.getStatementCacheHitRate() > 0.8);
+
+    map.close();
+    pool.close();
+  }
+
+  @Test
+  public void testDataSourceConcurrent() throws Exception {
+
+    final RdbmsMap map = new RdbmsMap(dataSource);
+    final int threads = 8;
+    final int puts = 50;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      futures.add(executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+
+          for (int i = 0; i < puts; i++) {
+            int key = thread * puts + i;
+            map.put(key, "value " + key);
+            assertEquals("value " + key, map.get(key));
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(threads * puts, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testDataSourceConcurrentSameKeys() throws Exception {
+
+    final RdbmsMap map = new RdbmsMap(dataSource);
+    final int threads = 8;
+    final int puts = 50;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      futures.add(executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+
+          for (int i = 0; i < puts; i++) {
+            map.put(i, thread);
+            map.put("key " + i, thread);
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(puts * 2, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testDataSourceConcurrentSingleTable() throws Exception {
+
+    final RdbmsMap map = new RdbmsMap(dataSource, StorageMode.SINGLE_TABLE);
+    final int threads = 8;
+    final int puts = 50;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      futures.add(executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+
+          for (int i = 0; i < puts; i++) {
+            map.put(i, thread);
+            map.put("key " + i, thread);
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(puts * 2, map.size());
+
+    RdbmsMap copy = new RdbmsMap(dataSource, StorageMode.SINGLE_TABLE);
+    copy.putAll(map);
+    assertEquals(new HashMap(map), new HashMap(copy));
+
+    copy.close();
+    map.close();
+  }
+
+  @Test
+  public void testDataSourceConcurrentPutAll() throws Exception {
+
+    // keys locked
+    for (StorageMode storageMode : StorageMode.values()) {
+      putAllConcurrently(storageMode, 50, 5);
+    }
+
+    // map locked
+    putAllConcurrently(StorageMode.STANDARD, 520, 1);
+  }
+
+  private void putAllConcurrently(final StorageMode storageMode, final int keys, final int puts) throws Exception {
+
+    final RdbmsMap map = new RdbmsMap(dataSource, storageMode);
+    final int threads = 8;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+
+      futures.add(executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+
+          for (int i = 0; i < puts; i++) {
+            // overlapping keys, written in a different order by each thread
+            List<Integer> order = new ArrayList<Integer>();
+            for (int key = 0; key < keys; key++) {
+              order.add(key);
+            }
+            Collections.shuffle(order);
+
+            Map<Object, Object> m = new LinkedHashMap<Object, Object>();
+            for (Integer key : order) {
+              m.put(key, thread);
+              m.put("key " + key, thread);
+            }
+
+            map.putAll(m);
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(keys * 2, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testInTransaction() {
+
+    final RdbmsMap map = new RdbmsMap(dataSource);
+    map.setNearCache(new NearCache(10));
+
+    Integer size = (Integer) map.inTransaction(new Work<Integer>() {
+
+      @Override
+      public Integer execute() {
+
+        for (int i = 0; i < 10; i++) {
+          map.put(i, i);
+        }
+
+        return map.size();
+      }
+    });
+
+    assertEquals(Integer.valueOf(10), size);
+
+    try {
+      map.inTransaction(new Work<Void>() {
+
+        @Override
+        public Void execute() {
+
+          map.put(1, "changed");
+          map.remove(2);
+          throw new IllegalStateException();
+        }
+      });
+      fail();
+    } catch (final IllegalStateException ise) {
+      // rolled back
+    }
+
+    assertEquals(10, map.size());
+    assertEquals(1, map.get(1));
+    assertEquals(2, map.get(2));
+    map.close();
+  }
+
+  @Test
+  public void testSizeCounted() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    assertTrue(map.isEmpty());
+
+    map.put(1, 2);
+    map.put(1, 3);
+    map.put("1", "2");
+    assertEquals(2, map.size());
+
+    Map m = new HashMap();
+    m.put(1, 4);
+    m.put(2, 4);
+    map.putAll(m);
+    assertEquals(3, map.size());
+
+    map.remove(2);
+    map.remove(5);
+    assertEquals(2, map.size());
+
+    Iterator keys = map.keySet().iterator();
+    keys.next();
+    keys.remove();
+    while (keys.hasNext()) {
+      keys.next();
+    }
+
+    assertEquals(1, map.size());
+    assertFalse(map.isEmpty());
+
+    map.clear();
+    assertEquals(0, map.size());
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testSizeCountedConcurrently() throws Exception {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(0, 0);
+
+    try (Connection first = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+            Connection second = DriverManager.getConnection(URL, USERNAME, PASSWORD)) {
+      first.setAutoCommit(false);
+      second.setAutoCommit(false);
+
+      final RdbmsMap firstMap = RdbmsMap.open(first, map.getMapId());
+      final RdbmsMap secondMap = RdbmsMap.open(second, map.getMapId());
+      firstMap.put(1, 1);
+
+      // the second writer does not wait for the first to commit
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      Future<Void> write = executor.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() throws SQLException {
+
+          secondMap.put(2, 2);
+          secondMap.remove(0);
+          second.commit();
+
+          return null;
+        }
+      });
+
+      write.get(10, TimeUnit.SECONDS);
+      executor.shutdown();
+
+      assertEquals(1, map.size());
+      first.commit();
+      assertEquals(2, map.size());
+
+      firstMap.close();
+      secondMap.close();
+    }
+
+    for (int i = 0; i < 100; i++) {
+      map.put(i, i);
+    }
+
+    assertEquals(100, map.size());
+  }
+
+  @Test
+  public void testListener() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    MapStatistics statistics = new MapStatistics();
+    map.setListener(statistics);
+
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, map.get(i));
+    }
+
+    int count = 0;
+    for (Object key : map.keySet()) {
+      count++;
+    }
+
+    assertEquals(10, count);
+    assertEquals(10, statistics.getCount("put"));
+    assertEquals(10, statistics.getStatements("put"));
+    assertEquals(10, statistics.getRowsRead("get"));
+    assertEquals(1, statistics.getCount("iterator"));
+    assertEquals(10, statistics.getRowsRead("iterator"));
+    assertTrue(statistics.getStatementCacheHitRate() > 0.8);
+
+    map.setListener(null);
+    map.size();
+    assertEquals(0, statistics.getCount("size"));
+  }
+
+  @Test
+  public void testTypes() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    BigDecimal decimal = new BigDecimal("12345678901234567890.123456789");
+
+    map.put(Long.MAX_VALUE, Long.MIN_VALUE);
+    map.put(1.5f, 2.5f);
+    map.put(1.5, 2.5);
+    map.put(decimal, decimal);
+    map.put(new byte[]{1, 2, 3}, new byte[]{4, 5});
+
+    assertEquals(5, map.size());
+    assertEquals(Long.MIN_VALUE, map.get(Long.MAX_VALUE));
+    assertEquals(2.5f, map.get(1.5f));
+    assertEquals(2.5, map.get(1.5));
+    assertEquals(decimal, map.get(new BigDecimal("12345678901234567890.1234567890")));
+    assertArrayEquals(new byte[]{4, 5}, (byte[]) map.get(new byte[]{1, 2, 3}));
+    assertTrue(map.containsValue(Long.MIN_VALUE));
+  }
+
+  @Test
+  public void testUnsupportedType() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    assertNull(map.get(new Object()));
+    assertFalse(map.containsKey(new Object()));
+
+    try {
+      map.put(1, new Object());
+      fail();
+    } catch (final IllegalArgumentException iae) {
+      // no codec
+    }
+
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testCodec() {
+
+    RdbmsMap map = new RdbmsMap(connection, StorageMode.KEY_HASH);
+    map.setCodec(new SerializableCodec());
+
+    AbstractMap.SimpleEntry key = new AbstractMap.SimpleEntry("a", 1);
+    map.put(key, new AbstractMap.SimpleEntry("b", 2));
+    map.put(new AbstractMap.SimpleEntry("a", 1), new AbstractMap.SimpleEntry("c", 3));
+
+    assertEquals(1, map.size());
+    assertEquals(new AbstractMap.SimpleEntry("c", 3), map.get(key));
+    assertTrue(map.containsValue(new AbstractMap.SimpleEntry("c", 3)));
+
+    for (Object e : map.entrySet()) {
+      assertEquals(key, ((Entry) e).getKey());
+    }
+  }
+
+  @Test
+  public void testToLocalMap() {
+
+    RdbmsMap map1 = new RdbmsMap(connection);
+    RdbmsMap map2 = new RdbmsMap(connection);
+    RdbmsMap map3 = new RdbmsMap(connection);
+    RdbmsMap empty = new RdbmsMap(connection);
+
+    map3.put("c", 3);
+    map2.put("b", 2);
+    map2.put("map3", map3);
+    map1.put("a", 1);
+    map1.put("map2", map2);
+    map1.put("empty", empty);
+    map1.put("self", map1);
+
+    MapStatistics statistics = new MapStatistics();
+    map1.setListener(statistics);
+
+    Map local = map1.toLocalMap();
+    assertEquals(1, statistics.getStatements("toLocalMap"));
+
+    assertEquals(4, local.size());
+    assertEquals(1, local.get("a"));
+    assertSame(local, local.get("self"));
+    assertEquals(new HashMap(), local.get("empty"));
+
+    Map local2 = (Map) local.get("map2");
+    assertEquals(2, local2.get("b"));
+    assertEquals(3, ((Map) local2.get("map3")).get("c"));
+    assertTrue(local2.get("map3") instanceof HashMap);
+
+    Map shallow = map1.toLocalMap(1);
+    assertTrue(((Map) shallow.get("map2")).get("map3") instanceof RdbmsMap);
+    assertEquals(3, ((RdbmsMap) ((Map) shallow.get("map2")).get("map3")).get("c"));
+  }
+
+  @Test
+  public void testCopyOf() {
+
+    RdbmsMap map1 = new RdbmsMap(connection);
+    RdbmsMap map2 = new RdbmsMap(connection);
+    map2.put(null, "b");
+    map1.put("a", 1.5);
+    map1.put("map2", map2);
+    map1.put("self", map1);
+
+    RdbmsMap copy = RdbmsMap.copyOf(map1);
+    assertFalse(copy.getMapId() == map1.getMapId());
+    assertEquals(3, copy.size());
+    assertEquals(1.5, copy.get("a"));
+    assertEquals(copy.getMapId(), ((RdbmsMap) copy.get("self")).getMapId());
+
+    RdbmsMap copy2 = (RdbmsMap) copy.get("map2");
+    assertFalse(copy2.getMapId() == map2.getMapId());
+    assertEquals("b", copy2.get(null));
+
+    copy2.put(null, "c");
+    assertEquals("b", map2.get(null));
+  }
+
+  @Test
+  public void testMergeFrom() {
+
+    for (StorageMode storageMode : StorageMode.values()) {
+      RdbmsMap target = new RdbmsMap(connection, storageMode);
+      target.put(1, "a");
+      target.put("2", "b");
+      target.put(null, "c");
+
+      RdbmsMap source = new RdbmsMap(connection, storageMode);
+      source.put("2", "x");
+      source.put(null, "y");
+      source.put(3, "z");
+
+      target.mergeFrom(source);
+
+      assertEquals(4, target.size());
+      assertEquals("a", target.get(1));
+      assertEquals("x", target.get("2"));
+      assertEquals("y", target.get(null));
+      assertEquals("z", target.get(3));
+      assertEquals(3, source.size());
+    }
+
+    RdbmsMap target = new RdbmsMap(connection, StorageMode.KEY_HASH);
+    RdbmsMap source = new RdbmsMap(connection);
+    source.put("1", 1);
+    target.mergeFrom(source);
+    assertEquals(1, target.get("1"));
+  }
+
+  @Test
+  public void testGetAll() {
+
+    for (StorageMode storageMode : StorageMode.values()) {
+      RdbmsMap map = new RdbmsMap(connection, storageMode);
+      map.setCodec(new SerializableCodec());
+
+      AbstractMap.SimpleEntry encoded = new AbstractMap.SimpleEntry("a", 1);
+      map.put(1, "a");
+      map.put(2, "b");
+      map.put("3", "c");
+      map.put(null, "d");
+      map.put(new BigDecimal("1.50"), "e");
+      map.put(new byte[]{1, 2}, "f");
+      map.put(encoded, "g");
+
+      List keys = Arrays.asList(1, 2, 2, 4, "3", "4", null, new BigDecimal("1.5"), new byte[]{1, 2}, encoded);
+
+      Map values = map.getAll(keys);
+      assertEquals(7, values.size());
+      assertEquals("a", values.get(1));
+      assertEquals("b", values.get(2));
+      assertEquals("c", values.get("3"));
+      assertEquals("d", values.get(null));
+      assertEquals("e", values.get(new BigDecimal("1.5")));
+      assertEquals("g", values.get(encoded));
+      assertFalse(values.containsKey(4));
+      assertFalse(values.containsKey("4"));
+
+      assertTrue(map.containsAllKeys(Arrays.asList(1, 2, "3", null, new BigDecimal("1.500"), encoded)));
+      assertFalse(map.containsAllKeys(Arrays.asList(1, 2, 4)));
+      assertFalse(map.containsAllKeys(Arrays.asList(1, new Object[0])));
+      assertTrue(map.containsAllKeys(new ArrayList()));
+
+      assertEquals(4, map.removeAll(Arrays.asList(1, 4, "3", null, new byte[]{1, 2})));
+      assertEquals(3, map.size());
+      assertEquals("b", map.get(2));
+      assertNull(map.get(1));
+      assertEquals(0, map.removeAll(Arrays.asList(1)));
+    }
+  }
+
+  @Test
+  public void testGetAllNearCache() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    NearCache nearCache = new NearCache(10);
+    map.setNearCache(nearCache);
+
+    map.put(1, "a");
+    map.put(2, "b");
+    assertNull(map.get(3));
+
+    Map values = map.getAll(Arrays.asList(1, 2, 3, 4));
+    assertEquals(2, values.size());
+    assertEquals(4, nearCache.size());
+    assertEquals(3, nearCache.getHits());
+
+    map.removeAll(Arrays.asList(1, 2));
+    assertTrue(map.getAll(Arrays.asList(1, 2)).isEmpty());
+    assertTrue(map.isEmpty());
+  }
 }
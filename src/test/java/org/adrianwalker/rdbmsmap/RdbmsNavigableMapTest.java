@@ -0,0 +1,261 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class RdbmsNavigableMapTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static PGSimpleDataSource dataSource;
+
+  public RdbmsNavigableMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testNavigation() {
+
+    RdbmsMap<Integer, String> rdbmsMap = new RdbmsMap<>(dataSource);
+    NavigableMap<Integer, String> map = new RdbmsNavigableMap<>(rdbmsMap, Integer.class);
+
+    assertTrue(map.isEmpty());
+    assertNull(map.firstEntry());
+
+    try {
+      map.firstKey();
+      fail();
+    } catch (final NoSuchElementException nsee) {
+    }
+
+    for (int i = 10; i >= 0; i -= 2) {
+      map.put(i, "v" + i);
+    }
+    rdbmsMap.put(null, "null");
+
+    assertEquals(6, map.size());
+    assertEquals(7, rdbmsMap.size());
+    assertEquals(Arrays.asList(0, 2, 4, 6, 8, 10), new ArrayList<>(map.keySet()));
+    assertEquals(Arrays.asList(10, 8, 6, 4, 2, 0), new ArrayList<>(map.descendingKeySet()));
+
+    assertEquals(Integer.valueOf(0), map.firstKey());
+    assertEquals(Integer.valueOf(10), map.lastKey());
+    assertEquals("v10", map.lastEntry().getValue());
+    assertEquals(Integer.valueOf(4), map.ceilingKey(3));
+    assertEquals(Integer.valueOf(4), map.ceilingKey(4));
+    assertEquals(Integer.valueOf(6), map.higherKey(4));
+    assertEquals(Integer.valueOf(2), map.floorKey(3));
+    assertEquals(Integer.valueOf(4), map.floorKey(4));
+    assertEquals(Integer.valueOf(2), map.lowerKey(4));
+    assertNull(map.higherKey(10));
+    assertNull(map.lowerKey(0));
+
+    NavigableMap<Integer, String> descending = map.descendingMap();
+    assertEquals(Integer.valueOf(10), descending.firstKey());
+    assertEquals(Integer.valueOf(2), descending.ceilingKey(3));
+    assertEquals(Integer.valueOf(4), descending.floorKey(3));
+    assertEquals(Integer.valueOf(2), descending.higherKey(4));
+
+    assertEquals(0, map.pollFirstEntry().getKey().intValue());
+    assertEquals(10, map.pollLastEntry().getKey().intValue());
+    assertFalse(map.containsKey(0));
+    assertEquals(4, map.size());
+
+    assertNull(map.get("2"));
+    assertEquals("null", rdbmsMap.get(null));
+
+    rdbmsMap.close();
+  }
+
+  @Test
+  public void testRangeViews() {
+
+    RdbmsMap<Integer, String> rdbmsMap = new RdbmsMap<>(dataSource);
+    NavigableMap<Integer, String> map = new RdbmsNavigableMap<>(rdbmsMap, Integer.class);
+
+    for (int i = 0; i < 20; i++) {
+      map.put(i, "v" + i);
+    }
+
+    NavigableMap<Integer, String> subMap = map.subMap(5, true, 10, false);
+    assertEquals(5, subMap.size());
+    assertEquals(Arrays.asList(5, 6, 7, 8, 9), new ArrayList<>(subMap.keySet()));
+    assertEquals(Integer.valueOf(9), subMap.lastKey());
+    assertNull(subMap.get(10));
+    assertFalse(subMap.containsKey(4));
+
+    NavigableMap<Integer, String> narrower = subMap.tailMap(8, false);
+    assertEquals(Arrays.asList(9), new ArrayList<>(narrower.keySet()));
+
+    assertEquals(Arrays.asList(9, 8, 7), new ArrayList<>(subMap.descendingMap().headMap(6, false).keySet()));
+    assertEquals(Arrays.asList(2, 1, 0), new ArrayList<>(map.descendingMap().tailMap(2).keySet()));
+    assertEquals(Arrays.asList(18, 19), new ArrayList<>(map.tailMap(18).keySet()));
+    assertEquals(Arrays.asList(0, 1), new ArrayList<>(map.headMap(2).keySet()));
+
+    try {
+      subMap.put(10, "v10");
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+
+    try {
+      subMap.headMap(11);
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+
+    try {
+      map.subMap(10, 5);
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+
+    Iterator<Entry<Integer, String>> entries = subMap.entrySet().iterator();
+    while (entries.hasNext()) {
+      if (entries.next().getKey() % 2 == 0) {
+        entries.remove();
+      }
+    }
+    assertEquals(Arrays.asList(5, 7, 9), new ArrayList<>(subMap.keySet()));
+
+    map.headMap(5).clear();
+    assertEquals(Integer.valueOf(5), map.firstKey());
+    assertEquals(13, map.size());
+
+    rdbmsMap.close();
+  }
+
+  @Test
+  public void testSingleTable() {
+
+    RdbmsMap<String, Integer> rdbmsMap = new RdbmsMap<>(dataSource, StorageMode.SINGLE_TABLE);
+    NavigableMap<String, Integer> map = new RdbmsNavigableMap<>(rdbmsMap, String.class);
+
+    for (String key : Arrays.asList("d", "b", "a", "c", "e")) {
+      map.put(key, (int) key.charAt(0));
+    }
+    rdbmsMap.put(null, 0);
+
+    assertEquals(5, map.size());
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e"), new ArrayList<>(map.keySet()));
+    assertEquals(Arrays.asList("d", "c"), new ArrayList<>(map.descendingMap().subMap("d", true, "b", false).keySet()));
+    assertEquals("c", map.ceilingKey("bb"));
+    assertEquals("e", map.lastKey());
+
+    map.headMap("c").clear();
+    assertEquals(Arrays.asList("c", "d", "e"), new ArrayList<>(map.keySet()));
+    assertEquals(4, rdbmsMap.size());
+
+    rdbmsMap.close();
+  }
+
+  @Test
+  public void testValueLookups() {
+
+    for (StorageMode mode : StorageMode.values()) {
+      RdbmsMap<Integer, String> rdbmsMap = new RdbmsMap<>(dataSource, mode);
+      NavigableMap<Integer, String> map = new RdbmsNavigableMap<>(rdbmsMap, Integer.class);
+
+      for (int i = 1; i <= 6; i++) {
+        map.put(i, i % 2 == 0 ? "even" : "odd");
+      }
+      map.put(7, null);
+
+      NavigableMap<Integer, String> sub = map.subMap(2, true, 5, true);
+
+      assertTrue(mode.name(), sub.containsValue("even"));
+      assertFalse(mode.name(), sub.containsValue("none"));
+      assertFalse(mode.name(), sub.containsValue(null));
+      assertTrue(mode.name(), map.containsValue(null));
+      assertFalse(mode.name(), sub.containsValue(2));
+      assertTrue(mode.name(), sub.values().contains("odd"));
+      assertTrue(mode.name(), sub.entrySet().contains(new SimpleEntry<>(3, "odd")));
+      assertFalse(mode.name(), sub.entrySet().contains(new SimpleEntry<>(1, "odd")));
+      assertFalse(mode.name(), sub.entrySet().contains(new SimpleEntry<>(3, "even")));
+
+      assertFalse(mode.name(), sub.entrySet().remove(new SimpleEntry<>(1, "odd")));
+      assertTrue(mode.name(), sub.entrySet().remove(new SimpleEntry<>(3, "odd")));
+      assertTrue(mode.name(), sub.values().remove("even"));
+      assertFalse(mode.name(), sub.values().remove("none"));
+
+      assertEquals(mode.name(), Arrays.asList(4, 5), new ArrayList<>(sub.keySet()));
+      assertEquals(mode.name(), Arrays.asList("odd", "even", "odd", "even"), new ArrayList<>(map.headMap(7).values()));
+      assertEquals(mode.name(), 5, rdbmsMap.size());
+
+      rdbmsMap.close();
+    }
+  }
+
+  @Test
+  public void testKeyTypes() {
+
+    RdbmsMap<String, Integer> strings = new RdbmsMap<>(dataSource);
+    NavigableMap<String, Integer> stringMap = new RdbmsNavigableMap<>(strings, String.class);
+
+    List<String> keys = Arrays.asList("b", "B", "a", "aa", "A", "ab", "");
+    for (String key : keys) {
+      stringMap.put(key, key.length());
+    }
+
+    List<String> sorted = new ArrayList<>(keys);
+    Collections.sort(sorted);
+    assertEquals(sorted, new ArrayList<>(stringMap.keySet()));
+    assertEquals(Arrays.asList("a", "aa", "ab"), new ArrayList<>(stringMap.subMap("a", "b").keySet()));
+
+    strings.close();
+
+    RdbmsMap<BigDecimal, String> decimals = new RdbmsMap<>(dataSource);
+    NavigableMap<BigDecimal, String> decimalMap = new RdbmsNavigableMap<>(decimals, BigDecimal.class);
+
+    decimalMap.put(new BigDecimal("1.5"), "a");
+    decimalMap.put(new BigDecimal("-2"), "b");
+    decimalMap.put(new BigDecimal("10"), "c");
+
+    assertEquals(new BigDecimal("-2"), decimalMap.firstKey());
+    assertEquals(0, new BigDecimal("1.5").compareTo(decimalMap.ceilingKey(BigDecimal.ZERO)));
+    assertEquals(0, new BigDecimal("10").compareTo(decimalMap.higherKey(new BigDecimal("1.50"))));
+
+    decimals.close();
+
+    RdbmsMap<Double, String> doubles = new RdbmsMap<>(dataSource);
+    NavigableMap<Double, String> doubleMap = new RdbmsNavigableMap<>(doubles, Double.class);
+
+    doubleMap.put(2.5, "a");
+    doubleMap.put(-1.0, "b");
+    doubleMap.put(100.0, "c");
+
+    assertEquals(Arrays.asList(100.0, 2.5, -1.0), new ArrayList<>(doubleMap.descendingKeySet()));
+    assertEquals(Double.valueOf(2.5), doubleMap.floorKey(99.0));
+
+    doubles.close();
+
+    try {
+      new RdbmsNavigableMap<>(new RdbmsMap<Object, Object>(dataSource), Object.class);
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+  }
+}
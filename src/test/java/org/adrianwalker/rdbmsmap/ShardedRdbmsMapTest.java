@@ -0,0 +1,183 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class ShardedRdbmsMapTest {
+
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  // shards would normally be in different databases
+  private static PGSimpleDataSource dataSource;
+
+  public ShardedRdbmsMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @Test
+  public void testSharding() {
+
+    List<RdbmsMap<Integer, String>> shards = Arrays.asList(
+            new RdbmsMap<Integer, String>(dataSource),
+            new RdbmsMap<Integer, String>(dataSource),
+            new RdbmsMap<Integer, String>(dataSource));
+
+    ShardedRdbmsMap<Integer, String> map = new ShardedRdbmsMap<>(shards);
+    assertTrue(map.isEmpty());
+
+    Map<Integer, String> values = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      values.put(i, "v" + i);
+    }
+
+    map.putAll(values);
+    assertNull(map.put(300, "v300"));
+    values.put(300, "v300");
+
+    assertEquals(301, map.size());
+    assertFalse(map.isEmpty());
+
+    for (RdbmsMap<Integer, String> shard : shards) {
+      assertTrue(shard.size() > 50);
+    }
+
+    assertEquals("v150", map.get(150));
+    assertTrue(map.containsKey(299));
+    assertFalse(map.containsKey(301));
+    assertTrue(map.containsValue("v1"));
+    assertFalse(map.containsValue("v301"));
+
+    Set<Integer> keys = new HashSet<>();
+    for (Entry<Integer, String> entry : map.entrySet()) {
+      assertEquals("v" + entry.getKey(), entry.getValue());
+      keys.add(entry.getKey());
+    }
+    assertEquals(values.keySet(), keys);
+
+    Iterator<Entry<Integer, String>> entries = map.entrySet().iterator();
+    while (entries.hasNext()) {
+      if (entries.next().getKey() >= 250) {
+        entries.remove();
+      }
+    }
+    assertEquals(250, map.size());
+    assertEquals("v1", map.remove(1));
+    assertEquals(249, map.size());
+
+    map.clear();
+    assertTrue(map.isEmpty());
+
+    map.close();
+  }
+
+  @Test
+  public void testAddShard() throws Exception {
+
+    List<RdbmsMap<String, Integer>> shards = Arrays.asList(
+            new RdbmsMap<String, Integer>(dataSource),
+            new RdbmsMap<String, Integer>(dataSource));
+
+    ShardedRdbmsMap<String, Integer> map = new ShardedRdbmsMap<>(shards);
+
+    Map<String, Integer> values = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      values.put("k" + i, i);
+    }
+    map.putAll(values);
+
+    RdbmsMap<String, Integer> shard = new RdbmsMap<>(dataSource);
+    shard.setBatchSize(50);
+    map.addShard(shard);
+
+    assertEquals(3, map.getShards().size());
+    assertEquals(1000, map.size());
+    assertTrue(shard.size() > 200);
+    assertTrue(shard.size() < 500);
+
+    assertEquals(values, new HashMap<>(map));
+    assertEquals(Integer.valueOf(10), map.get("k10"));
+
+    Iterator<Entry<String, Integer>> entries = map.entrySet().iterator();
+    assertTrue(entries.hasNext());
+    ((AutoCloseable) entries).close();
+
+    map.close();
+  }
+
+  @Test
+  public void testViews() throws Exception {
+
+    List<RdbmsMap<Integer, String>> shards = Arrays.asList(
+            new RdbmsMap<Integer, String>(dataSource),
+            new RdbmsMap<Integer, String>(dataSource));
+
+    ShardedRdbmsMap<Integer, String> map = new ShardedRdbmsMap<>(shards);
+
+    for (int i = 0; i < 20; i++) {
+      map.put(i, "v" + (i % 10));
+    }
+
+    assertTrue(map.keySet().contains(5));
+    assertTrue(map.keySet().remove(5));
+    assertFalse(map.keySet().remove(5));
+    assertTrue(map.entrySet().contains(new SimpleEntry<>(6, "v6")));
+    assertFalse(map.entrySet().contains(new SimpleEntry<>(6, "v7")));
+    assertFalse(map.entrySet().remove(new SimpleEntry<>(6, "v7")));
+    assertTrue(map.entrySet().remove(new SimpleEntry<>(6, "v6")));
+    assertTrue(map.values().contains("v7"));
+    assertTrue(map.values().remove("v7"));
+    assertTrue(map.values().remove("v7"));
+    assertFalse(map.values().remove("v7"));
+    assertEquals(16, map.size());
+    assertEquals(16, map.keySet().size());
+
+    Iterator<String> values = map.values().iterator();
+    assertTrue(values.hasNext());
+    values.next();
+    ((AutoCloseable) values).close();
+    assertFalse(values.hasNext());
+
+    Set<Integer> keys = new HashSet<>(map.keySet());
+    assertEquals(16, keys.size());
+    assertFalse(keys.contains(7));
+    assertFalse(keys.contains(17));
+
+    map.close();
+  }
+
+  @Test
+  public void testConnectionShard() throws SQLException {
+
+    try (Connection connection = dataSource.getConnection()) {
+      try {
+        new ShardedRdbmsMap<>(Arrays.asList(new RdbmsMap<Integer, Integer>(connection)));
+        fail();
+      } catch (final IllegalArgumentException iae) {
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package org.adrianwalker.rdbmsmap;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public final class WriteBehindMapTest {
+
+  private static final String DRIVER = "org.postgresql.Driver";
+  private static final String URL = "jdbc:postgresql://localhost:5432/postgres";
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static Connection connection;
+
+  public WriteBehindMapTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws ClassNotFoundException, SQLException {
+
+    Class.forName(DRIVER);
+
+    connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws SQLException {
+
+    if (null != connection) {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testReadsSeeBufferedWrites() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.put(1, 2);
+
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 1000, 1, TimeUnit.HOURS);
+    assertEquals(2, writeBehind.put(1, 3));
+    writeBehind.set("1", "2");
+    writeBehind.set(null, null);
+
+    assertEquals(3, writeBehind.get(1));
+    assertEquals("2", writeBehind.get("1"));
+    assertTrue(writeBehind.containsKey(null));
+    assertEquals(3, writeBehind.getPendingCount());
+    assertEquals(2, map.get(1));
+
+    assertEquals(3, writeBehind.remove(1));
+    assertFalse(writeBehind.containsKey(1));
+    assertNull(writeBehind.get(1));
+
+    writeBehind.close();
+
+    assertEquals(0, writeBehind.getPendingCount());
+    assertFalse(map.containsKey(1));
+    assertEquals("2", map.get("1"));
+    assertTrue(map.containsKey(null));
+    assertEquals(2, map.size());
+  }
+
+  @Test
+  public void testCoalescing() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 1000, 1, TimeUnit.HOURS);
+
+    for (int i = 0; i < 100; i++) {
+      writeBehind.set(i % 10, i);
+    }
+
+    assertEquals(10, writeBehind.getPendingCount());
+    assertEquals(10, writeBehind.size());
+    assertEquals(0, writeBehind.getPendingCount());
+    assertEquals(99, map.get(9));
+
+    writeBehind.close();
+  }
+
+  @Test
+  public void testBackgroundFlush() throws InterruptedException {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 10, 1, TimeUnit.HOURS);
+
+    Map values = new HashMap();
+    for (int i = 0; i < 10; i++) {
+      values.put(i, i);
+    }
+    writeBehind.putAll(values);
+
+    for (int i = 0; i < 100 && writeBehind.getPendingCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(0, writeBehind.getPendingCount());
+    writeBehind.close();
+    assertEquals(10, map.size());
+  }
+
+  @Test
+  public void testViews() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    map.setFetchSize(10);
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 5, 1, TimeUnit.HOURS);
+
+    for (int i = 0; i < 50; i++) {
+      writeBehind.set(i, i);
+    }
+
+    // writes buffered while iterating are flushed between pages
+    // entries written during the iteration may be read again, after their new rows
+    Set seen = new HashSet();
+    int count = 0;
+    Iterator<Map.Entry> entries = writeBehind.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry entry = entries.next();
+
+      if (!(entry.getKey() instanceof Integer) || !seen.add(entry.getKey())) {
+        continue;
+      }
+
+      count++;
+
+      if ((Integer) entry.getKey() < 10) {
+        entries.remove();
+      } else if ((Integer) entry.getKey() < 20) {
+        entry.setValue(-1);
+      }
+
+      writeBehind.set("k" + count, count);
+    }
+    assertEquals(50, count);
+
+    assertFalse(writeBehind.containsKey(5));
+    assertEquals(-1, writeBehind.get(15));
+    assertTrue(writeBehind.keySet().contains(25));
+    assertTrue(writeBehind.keySet().remove(25));
+    assertFalse(writeBehind.keySet().contains(25));
+    assertTrue(writeBehind.entrySet().contains(new AbstractMap.SimpleEntry(26, 26)));
+    assertTrue(writeBehind.entrySet().remove(new AbstractMap.SimpleEntry(26, 26)));
+    assertTrue(writeBehind.values().contains(-1));
+
+    writeBehind.close();
+
+    assertEquals(88, map.size());
+    assertEquals(-1, map.get(15));
+  }
+
+  @Test
+  public void testUnsupportedType() {
+
+    RdbmsMap map = new RdbmsMap(connection);
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 1000, 1, TimeUnit.HOURS);
+    writeBehind.set(1, 2);
+
+    try {
+      writeBehind.set(2, new Object());
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+
+    try {
+      writeBehind.put(new Object(), 3);
+      fail();
+    } catch (final IllegalArgumentException iae) {
+    }
+
+    assertEquals(1, writeBehind.getPendingCount());
+
+    writeBehind.close();
+
+    assertEquals(2, map.get(1));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testBufferLimit() throws SQLException {
+
+    Connection failing = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+    RdbmsMap map = new RdbmsMap(failing);
+    WriteBehindMap writeBehind = new WriteBehindMap(map, 2, 1, TimeUnit.HOURS);
+    failing.close();
+
+    // flushes fail, so the buffer fills up to 4 * maximumPending keys
+    for (int i = 0; i < 8; i++) {
+      writeBehind.set(i, i);
+    }
+
+    try {
+      writeBehind.set(8, 8);
+      fail();
+    } catch (final RuntimeException re) {
+    }
+
+    // keys already buffered can still be written
+    writeBehind.set(0, -1);
+    assertEquals(-1, writeBehind.get(0));
+    assertEquals(8, writeBehind.getPendingCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClose() {
+
+    WriteBehindMap writeBehind = new WriteBehindMap(new RdbmsMap(connection), 10, 1, TimeUnit.HOURS);
+    writeBehind.close();
+    writeBehind.set(1, 2);
+  }
+}